@@ -0,0 +1,51 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The search for the crops of a harvest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdjacencyBenchmark {
+
+    @Param({ "2", "5", "10" })
+    int radius;
+
+    @Param({ "0.5", "1.0" })
+    double density;
+
+    @Param({ "FLAT", "TERRACED" })
+    SyntheticFarm.Terrain terrain;
+
+    FarmingUpgradePlugin plugin;
+
+    SyntheticFarm farm;
+
+    Set<Material> crops;
+
+    @Setup
+    public void setup() throws Exception {
+        plugin = StandIns.plugin(Map.of());
+        farm = new SyntheticFarm(radius, density, SyntheticFarm.Water.CHANNELS, terrain, Material.WHEAT, 1);
+        crops = EnumSet.of(Material.WHEAT);
+    }
+
+    @Benchmark
+    public Collection<Block> findAdjacentMaterials() {
+        return plugin.findAdjacentMaterials(crops, farm.centre, radius, true);
+    }
+
+}
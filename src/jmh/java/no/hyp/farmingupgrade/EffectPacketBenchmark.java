@@ -0,0 +1,100 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The particles and sounds of a harvest that is watched by other players. Besides the time of a harvest, the number
+ * of particle and sound packets sent to the players for each harvest is reported. The farm is regrown and the tool
+ * repaired before each invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EffectPacketBenchmark {
+
+    /**
+     * The packets sent by each invocation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Packets {
+
+        public long particlePackets;
+
+        public long soundPackets;
+
+    }
+
+    @Param({ "false", "true" })
+    boolean batch;
+
+    @Param({ "false", "true" })
+    boolean levelOfDetail;
+
+    /**
+     * Players that watch the harvest, at increasing distances.
+     */
+    @Param({ "1", "20" })
+    int viewers;
+
+    FarmingUpgradePlugin plugin;
+
+    SyntheticFarm farm;
+
+    Player player;
+
+    ItemStack toolItem;
+
+    FarmingUpgradePlugin.HarvestToolType toolType;
+
+    @Setup
+    public void setup() throws Exception {
+        var tool = Map.of("material", "DIAMOND_HOE", "radius", 4.5, "maximumRadius", 4);
+        plugin = StandIns.plugin(Map.of(
+                "toolUpgrade.tools", List.of(tool),
+                "toolUpgrade.onlyHarvestMature", false,
+                "effects.batch", batch,
+                "effects.levelOfDetail", levelOfDetail));
+        farm = new SyntheticFarm(4, 1.0, SyntheticFarm.Water.CHANNELS, SyntheticFarm.Terrain.FLAT, Material.WHEAT, 1);
+        toolItem = new ItemStack(Material.DIAMOND_HOE);
+        player = farm.world.player(0, SyntheticFarm.GROUND + 1, 0, toolItem);
+        var i = 1;
+        while (i < viewers) {
+            farm.world.player(2.0 * i, SyntheticFarm.GROUND + 1, 0, new ItemStack(Material.AIR));
+            i++;
+        }
+        assert plugin.toolUpgrade != null;
+        toolType = plugin.toolUpgrade.toolType(toolItem, player, Material.WHEAT);
+    }
+
+    @Setup(Level.Invocation)
+    public void regrow() {
+        farm.regrow();
+        toolItem.setItemMeta(null);
+        toolItem.setAmount(1);
+    }
+
+    @Benchmark
+    public void harvest(Packets packets) {
+        assert plugin.toolUpgrade != null;
+        // The plugin is not enabled, so the particle budget of each player is not reset by a task.
+        if (plugin.particleLod != null) plugin.particleLod.sent.clear();
+        farm.world.resetCounts();
+        var cropMaterials = plugin.toolUpgrade.cropMaterials();
+        var crops = plugin.findAdjacentMaterials(cropMaterials, farm.centre, plugin.calculateRadius(toolType, toolItem), true);
+        plugin.harvestCrops(player, toolType, toolItem, cropMaterials, crops);
+        packets.particlePackets += farm.world.particlePackets;
+        packets.soundPackets += farm.world.soundPackets;
+    }
+
+}
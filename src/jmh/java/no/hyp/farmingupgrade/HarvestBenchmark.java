@@ -0,0 +1,73 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole harvest with a tool: finding the crops, breaking them, replanting them at once and handling their drops.
+ * The farm is regrown and the tool repaired before each invocation, so that every harvest breaks mature crops with
+ * full drops.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HarvestBenchmark {
+
+    @Param({ "1", "4", "10" })
+    int radius;
+
+    @Param({ "false", "true" })
+    boolean collect;
+
+    @Param({ "false", "true" })
+    boolean aggregateDrops;
+
+    FarmingUpgradePlugin plugin;
+
+    SyntheticFarm farm;
+
+    Player player;
+
+    ItemStack toolItem;
+
+    FarmingUpgradePlugin.HarvestToolType toolType;
+
+    @Setup
+    public void setup() throws Exception {
+        var tool = Map.of("material", "DIAMOND_HOE", "radius", radius + 0.5, "maximumRadius", radius, "collect", collect);
+        plugin = StandIns.plugin(Map.of(
+                "toolUpgrade.tools", List.of(tool),
+                "toolUpgrade.onlyHarvestMature", false,
+                "toolUpgrade.aggregateDrops", aggregateDrops));
+        farm = new SyntheticFarm(radius, 1.0, SyntheticFarm.Water.CHANNELS, SyntheticFarm.Terrain.FLAT, Material.WHEAT, 1);
+        toolItem = new ItemStack(Material.DIAMOND_HOE);
+        player = farm.world.player(0, SyntheticFarm.GROUND + 1, 0, toolItem);
+        assert plugin.toolUpgrade != null;
+        toolType = plugin.toolUpgrade.toolType(toolItem, player, Material.WHEAT);
+    }
+
+    @Setup(Level.Invocation)
+    public void regrow() {
+        farm.regrow();
+        toolItem.setItemMeta(null);
+        toolItem.setAmount(1);
+    }
+
+    @Benchmark
+    public void harvest() {
+        assert plugin.toolUpgrade != null;
+        var cropMaterials = plugin.toolUpgrade.cropMaterials();
+        var crops = plugin.findAdjacentMaterials(cropMaterials, farm.centre, plugin.calculateRadius(toolType, toolItem), true);
+        plugin.harvestCrops(player, toolType, toolItem, cropMaterials, crops);
+    }
+
+}
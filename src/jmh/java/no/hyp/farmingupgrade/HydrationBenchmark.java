@@ -0,0 +1,68 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The water search of upgraded hydration, over every Farmland of a farm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HydrationBenchmark {
+
+    @Param({ "true", "false" })
+    boolean waterIndex;
+
+    @Param({ "65536", "0" })
+    int hintCacheSize;
+
+    @Param({ "CHANNELS", "SCATTERED", "NONE" })
+    SyntheticFarm.Water water;
+
+    FarmingUpgradePlugin plugin;
+
+    FarmingUpgradePlugin.HydrationUpgrade upgrade;
+
+    List<Block> farmland;
+
+    int next;
+
+    @Setup
+    public void setup() throws Exception {
+        plugin = StandIns.plugin(Map.of("hydrationUpgrade.waterIndex", waterIndex, "hydrationUpgrade.hintCacheSize", hintCacheSize));
+        upgrade = plugin.hydrationUpgrade;
+        var farm = new SyntheticFarm(24, 0.0, water, SyntheticFarm.Terrain.FLAT, Material.WHEAT, 1);
+        farmland = new ArrayList<>();
+        var x = -farm.radius;
+        while (x <= farm.radius) {
+            var z = -farm.radius;
+            while (z <= farm.radius) {
+                var block = farm.world.block(x, SyntheticFarm.GROUND, z);
+                if (block.getType() == Material.FARMLAND) farmland.add(block);
+                z++;
+            }
+            x++;
+        }
+    }
+
+    /**
+     * Search for the water of the next Farmland, in the order the Farmland was generated.
+     */
+    @Benchmark
+    public boolean isHydrated() {
+        var block = farmland.get(next);
+        next = next + 1 < farmland.size() ? next + 1 : 0;
+        return plugin.isHydrated(block, upgrade.horizontalSearchRadius(), upgrade.upwardSearchDistance(), upgrade.downwardSearchDistance());
+    }
+
+}
@@ -0,0 +1,510 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.*;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.data.Ageable;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.Waterlogged;
+import org.bukkit.block.data.type.Farmland;
+import org.bukkit.entity.Item;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/**
+ * A world kept in memory, for benchmarks. The world, its blocks, block states, block data, chunks, chunk snapshots
+ * and players are stand-ins that only implement what the plugin uses. Blocks are stored in sections of 16x16x16, in
+ * the same way as in a server.
+ * <p>
+ * The world counts the particle and sound packets that would be sent to its players, and the item entities spawned.
+ */
+final class InMemoryWorld {
+
+    static final int MIN_HEIGHT = -64;
+
+    static final int MAX_HEIGHT = 320;
+
+    static final class Section {
+
+        final Material[] types = new Material[4096];
+
+        final @Nullable BlockData[] data = new BlockData[4096];
+
+        int blocks;
+
+        Section() {
+            Arrays.fill(types, Material.AIR);
+        }
+
+    }
+
+    /**
+     * The state of a block data stand-in.
+     */
+    static final class Data {
+
+        final Material material;
+
+        int age;
+
+        int maximumAge;
+
+        int moisture;
+
+        boolean waterlogged;
+
+        Data(Material material) {
+            this.material = material;
+        }
+
+        /**
+         * The block data as a string, in the same format as the server, with the properties that the stand-in has.
+         */
+        String asString() {
+            var properties = new ArrayList<String>();
+            if (maximumAge > 0) properties.add("age=" + age);
+            if (material == Material.FARMLAND) properties.add("moisture=" + moisture);
+            if (waterloggable(material)) properties.add("waterlogged=" + waterlogged);
+            var key = material.getKey().toString();
+            return properties.isEmpty() ? key : key + "[" + String.join(",", properties) + "]";
+        }
+
+        Data copy() {
+            var copy = new Data(material);
+            copy.age = age;
+            copy.maximumAge = maximumAge;
+            copy.moisture = moisture;
+            copy.waterlogged = waterlogged;
+            return copy;
+        }
+
+    }
+
+    final UUID uid = UUID.randomUUID();
+
+    final String name;
+
+    final int minHeight;
+
+    final int maxHeight;
+
+    final Map<Long, Section> sections = new HashMap<>();
+
+    final World world;
+
+    final List<Player> players = new ArrayList<>();
+
+    final Random random = new Random(0);
+
+    long particlePackets;
+
+    long soundPackets;
+
+    long itemsSpawned;
+
+    InMemoryWorld() {
+        this("world", MIN_HEIGHT, MAX_HEIGHT);
+    }
+
+    InMemoryWorld(String name, int minHeight, int maxHeight) {
+        this.name = name;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+        this.world = StandIns.create(World.class, (proxy, method, arguments) -> switch (method) {
+            case "getUID" -> uid;
+            case "getName" -> name;
+            case "getMinHeight" -> minHeight;
+            case "getMaxHeight" -> maxHeight;
+            case "getType" -> arguments.length == 3 ? type((int) arguments[0], (int) arguments[1], (int) arguments[2]) : StandIns.UNHANDLED;
+            case "getBlockAt" -> arguments.length == 3
+                    ? block((int) arguments[0], (int) arguments[1], (int) arguments[2])
+                    : block(((Location) arguments[0]).getBlockX(), ((Location) arguments[0]).getBlockY(), ((Location) arguments[0]).getBlockZ());
+            case "isChunkLoaded" -> true;
+            case "getChunkAt" -> arguments.length == 2 ? chunk((int) arguments[0], (int) arguments[1]) : StandIns.UNHANDLED;
+            case "getPlayers" -> players;
+            case "spawnParticle" -> {
+                particlePackets += players.size();
+                yield null;
+            }
+            case "playSound" -> {
+                soundPackets += players.size();
+                yield null;
+            }
+            case "dropItemNaturally", "dropItem" -> item((Location) arguments[0], (ItemStack) arguments[1]);
+            default -> StandIns.UNHANDLED;
+        });
+        StandIns.worlds.put(uid, world);
+    }
+
+    static long sectionKey(int x, int y, int z) {
+        return FarmingUpgradePlugin.packPosition(x >> 4, y >> 4, z >> 4);
+    }
+
+    static int index(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    Material type(int x, int y, int z) {
+        @Nullable var section = sections.get(sectionKey(x, y, z));
+        return section == null ? Material.AIR : section.types[index(x, y, z)];
+    }
+
+    BlockData data(int x, int y, int z) {
+        @Nullable var section = sections.get(sectionKey(x, y, z));
+        if (section == null) return createData(Material.AIR);
+        var index = index(x, y, z);
+        @Nullable var data = section.data[index];
+        if (data == null) {
+            data = createData(section.types[index]);
+            section.data[index] = data;
+        }
+        return data;
+    }
+
+    void set(int x, int y, int z, Material type) {
+        set(x, y, z, createData(type));
+    }
+
+    void set(int x, int y, int z, BlockData data) {
+        var section = sections.computeIfAbsent(sectionKey(x, y, z), key -> new Section());
+        var index = index(x, y, z);
+        var type = data.getMaterial();
+        if (section.types[index].isAir() != type.isAir()) section.blocks += type.isAir() ? -1 : 1;
+        section.types[index] = type;
+        section.data[index] = data;
+    }
+
+    /**
+     * Create block data for a material. Crops are Ageable, Farmland is Farmland, and some blocks are Waterlogged.
+     */
+    static BlockData createData(Material material) {
+        var state = new Data(material);
+        state.maximumAge = maximumAge(material);
+        var interfaces = new ArrayList<Class<?>>();
+        if (state.maximumAge > 0) interfaces.add(Ageable.class);
+        if (material == Material.FARMLAND) interfaces.add(Farmland.class);
+        if (waterloggable(material)) interfaces.add(Waterlogged.class);
+        return data(state, interfaces.toArray(new Class<?>[0]));
+    }
+
+    /**
+     * Create block data from a string in the format of {@link BlockData#getAsString()}. Properties that the stand-in
+     * does not have are ignored.
+     */
+    static BlockData parseData(String string) {
+        var bracket = string.indexOf('[');
+        var key = bracket < 0 ? string : string.substring(0, bracket);
+        @Nullable var material = Material.matchMaterial(key);
+        if (material == null) throw new IllegalArgumentException(String.format("Unknown block %s.", key));
+        var data = createData(material);
+        if (bracket < 0) return data;
+        for (var property : string.substring(bracket + 1, string.length() - 1).split(",")) {
+            var equals = property.indexOf('=');
+            var value = property.substring(equals + 1);
+            switch (property.substring(0, equals)) {
+                case "age" -> {
+                    if (data instanceof Ageable ageable) ageable.setAge(Integer.parseInt(value));
+                }
+                case "moisture" -> {
+                    if (data instanceof Farmland farmland) farmland.setMoisture(Integer.parseInt(value));
+                }
+                case "waterlogged" -> {
+                    if (data instanceof Waterlogged waterlogged) waterlogged.setWaterlogged(Boolean.parseBoolean(value));
+                }
+                default -> { }
+            }
+        }
+        return data;
+    }
+
+    static BlockData data(Data state, Class<?>[] interfaces) {
+        return StandIns.create(BlockData.class, (proxy, name, arguments) -> switch (name) {
+            case "getMaterial" -> state.material;
+            case "getAge" -> state.age;
+            case "setAge" -> {
+                state.age = (int) arguments[0];
+                yield null;
+            }
+            case "getMaximumAge" -> state.maximumAge;
+            case "getMoisture" -> state.moisture;
+            case "setMoisture" -> {
+                state.moisture = (int) arguments[0];
+                yield null;
+            }
+            case "getMaximumMoisture" -> 7;
+            case "isWaterlogged" -> state.waterlogged;
+            case "setWaterlogged" -> {
+                state.waterlogged = (boolean) arguments[0];
+                yield null;
+            }
+            case "clone" -> data(state.copy(), interfaces);
+            case "getAsString" -> state.asString();
+            case "equals" -> arguments[0] instanceof BlockData other && Proxy.isProxyClass(other.getClass()) && other.getMaterial() == state.material
+                    && (!(other instanceof Ageable ageable) || ageable.getAge() == state.age)
+                    && (!(other instanceof Farmland farmland) || farmland.getMoisture() == state.moisture)
+                    && (!(other instanceof Waterlogged waterlogged) || waterlogged.isWaterlogged() == state.waterlogged);
+            case "hashCode" -> Objects.hash(state.material, state.age, state.moisture, state.waterlogged);
+            default -> StandIns.UNHANDLED;
+        }, interfaces);
+    }
+
+    static int maximumAge(Material material) {
+        return switch (material) {
+            case WHEAT, CARROTS, POTATOES, MELON_STEM, PUMPKIN_STEM -> 7;
+            case BEETROOTS -> 3;
+            default -> 0;
+        };
+    }
+
+    static boolean waterloggable(Material material) {
+        var name = material.name();
+        return name.endsWith("_SLAB") || name.endsWith("_STAIRS") || name.endsWith("_FENCE") || name.endsWith("_TRAPDOOR") || name.endsWith("_WALL");
+    }
+
+    Block block(int x, int y, int z) {
+        return StandIns.create(Block.class, new BlockHandler(this, x, y, z));
+    }
+
+    record BlockHandler(InMemoryWorld world, int x, int y, int z) implements StandIns.Handler {
+
+        @Override
+        public @Nullable Object handle(Object proxy, String name, Object[] arguments) {
+            return switch (name) {
+                case "getX" -> x;
+                case "getY" -> y;
+                case "getZ" -> z;
+                case "getWorld" -> world.world;
+                case "getType" -> world.type(x, y, z);
+                case "setType" -> {
+                    world.set(x, y, z, (Material) arguments[0]);
+                    yield null;
+                }
+                case "getBlockData" -> world.data(x, y, z);
+                case "setBlockData" -> {
+                    world.set(x, y, z, ((BlockData) arguments[0]).clone());
+                    yield null;
+                }
+                case "getState" -> world.state(x, y, z);
+                case "getRelative" -> arguments.length == 3
+                        ? world.block(x + (int) arguments[0], y + (int) arguments[1], z + (int) arguments[2])
+                        : world.block(x + ((BlockFace) arguments[0]).getModX(), y + ((BlockFace) arguments[0]).getModY(), z + ((BlockFace) arguments[0]).getModZ());
+                case "getLocation" -> arguments.length == 0 ? new Location(world.world, x, y, z) : StandIns.UNHANDLED;
+                case "isPassable" -> !world.type(x, y, z).isSolid();
+                case "isEmpty" -> world.type(x, y, z).isAir();
+                case "isLiquid" -> world.type(x, y, z) == Material.WATER || world.type(x, y, z) == Material.LAVA;
+                case "getDrops" -> world.drops(x, y, z);
+                case "getChunk" -> world.chunk(x >> 4, z >> 4);
+                case "equals" -> arguments[0] instanceof Block other && Proxy.isProxyClass(other.getClass())
+                        && Proxy.getInvocationHandler(other) != null && other.getWorld() == world.world
+                        && other.getX() == x && other.getY() == y && other.getZ() == z;
+                case "hashCode" -> Long.hashCode(FarmingUpgradePlugin.packPosition(x, y, z));
+                case "toString" -> String.format("Block[%d, %d, %d]", x, y, z);
+                default -> StandIns.UNHANDLED;
+            };
+        }
+
+    }
+
+    BlockState state(int x, int y, int z) {
+        var type = new Material[] { type(x, y, z) };
+        var data = new BlockData[] { data(x, y, z).clone() };
+        return StandIns.create(BlockState.class, (proxy, name, arguments) -> switch (name) {
+            case "getX" -> x;
+            case "getY" -> y;
+            case "getZ" -> z;
+            case "getWorld" -> world;
+            case "getBlock" -> block(x, y, z);
+            case "getLocation" -> arguments.length == 0 ? new Location(world, x, y, z) : StandIns.UNHANDLED;
+            case "getType" -> type[0];
+            case "setType" -> {
+                type[0] = (Material) arguments[0];
+                data[0] = createData(type[0]);
+                yield null;
+            }
+            case "getBlockData" -> data[0];
+            case "setBlockData" -> {
+                data[0] = ((BlockData) arguments[0]).clone();
+                type[0] = data[0].getMaterial();
+                yield null;
+            }
+            case "update" -> {
+                set(x, y, z, data[0].clone());
+                yield true;
+            }
+            default -> StandIns.UNHANDLED;
+        });
+    }
+
+    /**
+     * The drops of a block. Mature crops drop their produce and some seeds, and other crops drop a seed.
+     */
+    List<ItemStack> drops(int x, int y, int z) {
+        var type = type(x, y, z);
+        var drops = new ArrayList<ItemStack>();
+        var mature = data(x, y, z) instanceof Ageable ageable && ageable.getAge() == ageable.getMaximumAge();
+        switch (type) {
+            case WHEAT -> {
+                if (mature) drops.add(new ItemStack(Material.WHEAT));
+                drops.add(new ItemStack(Material.WHEAT_SEEDS, mature ? 1 + random.nextInt(3) : 1));
+            }
+            case BEETROOTS -> {
+                if (mature) drops.add(new ItemStack(Material.BEETROOT));
+                drops.add(new ItemStack(Material.BEETROOT_SEEDS, mature ? 1 + random.nextInt(3) : 1));
+            }
+            case CARROTS -> drops.add(new ItemStack(Material.CARROT, mature ? 1 + random.nextInt(4) : 1));
+            case POTATOES -> drops.add(new ItemStack(Material.POTATO, mature ? 1 + random.nextInt(4) : 1));
+            default -> {
+                if (type.isItem() && !type.isAir()) drops.add(new ItemStack(type));
+            }
+        }
+        return drops;
+    }
+
+    Chunk chunk(int cx, int cz) {
+        return StandIns.create(Chunk.class, (proxy, name, arguments) -> switch (name) {
+            case "getX" -> cx;
+            case "getZ" -> cz;
+            case "getWorld" -> world;
+            case "isLoaded" -> true;
+            case "getChunkSnapshot" -> snapshot(cx, cz);
+            case "contains" -> arguments[0] instanceof BlockData data ? contains(cx, cz, data) : StandIns.UNHANDLED;
+            default -> StandIns.UNHANDLED;
+        });
+    }
+
+    /**
+     * If a chunk contains a block with the given data. The stand-in scans the sections instead of their palettes.
+     */
+    boolean contains(int cx, int cz, BlockData data) {
+        var material = data.getMaterial();
+        var y = minHeight;
+        while (y < maxHeight) {
+            @Nullable var section = sections.get(sectionKey(cx << 4, y, cz << 4));
+            if (section != null) {
+                var index = 0;
+                while (index < section.types.length) {
+                    if (section.types[index] == material && data.equals(data((cx << 4) | (index & 15), y | (index >> 8), (cz << 4) | ((index >> 4) & 15)))) return true;
+                    index++;
+                }
+            }
+            y += 16;
+        }
+        return false;
+    }
+
+    /**
+     * A snapshot of a chunk. The stand-in reads the world directly, since the benchmarks do not change the world while
+     * a snapshot is read.
+     */
+    ChunkSnapshot snapshot(int cx, int cz) {
+        return StandIns.create(ChunkSnapshot.class, (proxy, name, arguments) -> switch (name) {
+            case "getX" -> cx;
+            case "getZ" -> cz;
+            case "getWorldName" -> name;
+            case "getBlockType" -> type((cx << 4) + (int) arguments[0], (int) arguments[1], (cz << 4) + (int) arguments[2]);
+            case "getBlockData" -> data((cx << 4) + (int) arguments[0], (int) arguments[1], (cz << 4) + (int) arguments[2]);
+            case "isSectionEmpty" -> {
+                var y = minHeight + ((int) arguments[0] << 4);
+                @Nullable var section = sections.get(sectionKey(cx << 4, y, cz << 4));
+                yield section == null || section.blocks == 0;
+            }
+            default -> StandIns.UNHANDLED;
+        });
+    }
+
+    Item item(Location location, ItemStack stack) {
+        itemsSpawned++;
+        var itemStack = new ItemStack[] { stack.clone() };
+        return StandIns.create(Item.class, (proxy, name, arguments) -> switch (name) {
+            case "getItemStack" -> itemStack[0];
+            case "setItemStack" -> {
+                itemStack[0] = (ItemStack) arguments[0];
+                yield null;
+            }
+            case "getLocation" -> arguments.length == 0 ? location.clone() : StandIns.UNHANDLED;
+            case "getWorld" -> world;
+            case "isValid" -> true;
+            default -> StandIns.UNHANDLED;
+        });
+    }
+
+    /**
+     * Add a player that stands at a position and holds a tool in the main hand. The player can be moved with {@link
+     * Player#teleport(Location)}, and the items in the hands changed through the inventory. The inventory always has
+     * bone meal.
+     */
+    Player player(double x, double y, double z, ItemStack tool) {
+        var uid = UUID.randomUUID();
+        var storage = new ItemStack[36];
+        var hands = new ItemStack[] { tool, new ItemStack(Material.AIR) };
+        var location = new Location[] { new Location(world, x, y, z) };
+        var sneaking = new boolean[1];
+        PlayerInventory inventory = StandIns.create(PlayerInventory.class, (proxy, name, arguments) -> switch (name) {
+            case "getItemInMainHand" -> hands[0];
+            case "setItemInMainHand" -> {
+                hands[0] = (ItemStack) arguments[0];
+                yield null;
+            }
+            case "getItemInOffHand" -> hands[1];
+            case "setItemInOffHand" -> {
+                hands[1] = (ItemStack) arguments[0];
+                yield null;
+            }
+            case "getStorageContents" -> storage.clone();
+            case "getMaxStackSize" -> 64;
+            case "getItem" -> storage[(int) arguments[0]];
+            case "setItem" -> {
+                if (arguments[0] instanceof Integer slot && slot < storage.length) storage[slot] = (ItemStack) arguments[1];
+                yield null;
+            }
+            case "addItem", "removeItem" -> new HashMap<Integer, ItemStack>();
+            case "contains" -> arguments.length == 1 && arguments[0] == Material.BONE_MEAL ? true : StandIns.UNHANDLED;
+            case "iterator" -> Arrays.asList(storage).listIterator();
+            default -> StandIns.UNHANDLED;
+        });
+        var player = StandIns.create(Player.class, (proxy, name, arguments) -> switch (name) {
+            case "getUniqueId" -> uid;
+            case "getName" -> "Farmer";
+            case "getWorld" -> world;
+            case "getLocation" -> arguments.length == 0 ? location[0].clone() : StandIns.UNHANDLED;
+            case "getEyeLocation" -> location[0].clone().add(0, 1.62, 0);
+            case "teleport" -> {
+                location[0] = ((Location) arguments[0]).clone();
+                yield true;
+            }
+            case "isSneaking" -> sneaking[0];
+            case "setSneaking" -> {
+                sneaking[0] = (boolean) arguments[0];
+                yield null;
+            }
+            case "isOnline" -> true;
+            case "getGameMode" -> GameMode.SURVIVAL;
+            case "hasPermission" -> true;
+            case "getInventory" -> inventory;
+            case "spawnParticle" -> {
+                particlePackets++;
+                yield null;
+            }
+            case "playSound" -> {
+                soundPackets++;
+                yield null;
+            }
+            default -> StandIns.UNHANDLED;
+        });
+        players.add(player);
+        return player;
+    }
+
+    void resetCounts() {
+        particlePackets = 0;
+        soundPackets = 0;
+        itemsSpawned = 0;
+    }
+
+}
@@ -0,0 +1,74 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.permissions.Permission;
+import org.bukkit.persistence.PersistentDataType;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The tool type lookup that {@link ToolMatcher} replaced, kept as the baseline of {@link ToolTypeBenchmark}. It is the
+ * former ToolUpgrade.toolType, which walks every tool type in order. The only change is that it returns a nullable type
+ * instead of an Optional.
+ */
+final class LegacyToolType {
+
+    static @Nullable FarmingUpgradePlugin.HarvestToolType toolType(FarmingUpgradePlugin plugin, List<FarmingUpgradePlugin.HarvestToolType> tools, ItemStack toolItem, Player player, Material crop) {
+        var list = new LinkedList<FarmingUpgradePlugin.HarvestToolType>();
+        for (var toolType : tools) {
+            // If the type has a material, the item must be of the same material.
+            @Nullable var typeMaterial = toolType.material();
+            if (typeMaterial != null) {
+                if (!typeMaterial.contains(toolItem.getType())) continue;
+            }
+            // If the type has a lore, some line in the item lore must contain the type lore as a substring.
+            @Nullable var lore = toolType.lore();
+            if (lore != null) {
+                if (!toolItem.hasItemMeta()) continue;
+                assert toolItem.getItemMeta() != null;
+                @Nullable var itemLore = toolItem.getItemMeta().getLore();
+                if (itemLore == null) continue;
+                var foundLore = false;
+                for (var itemLoreLine : itemLore) {
+                    if (itemLoreLine.contains(lore)) {
+                        foundLore = true;
+                        break;
+                    }
+                }
+                if (!foundLore) continue;
+            }
+            // If the tool has an NBT tag filter, the NBT tag on the item must be set to true.
+            @Nullable var nbtTag = toolType.nbtTag();
+            if (nbtTag != null) {
+                if (!toolItem.hasItemMeta()) continue;
+                assert toolItem.getItemMeta() != null;
+                var itemNbt = toolItem.getItemMeta().getPersistentDataContainer();
+                var namespace = NamespacedKey.fromString(nbtTag, plugin);
+                assert namespace != null;
+                if (!itemNbt.has(namespace, PersistentDataType.BYTE)) continue;
+                var tag = itemNbt.get(namespace, PersistentDataType.BYTE);
+                assert tag != null;
+                if (tag == 0) continue;
+            }
+            @Nullable var permissionString = toolType.permission();
+            if (permissionString != null) {
+                @Nullable Permission permission = Bukkit.getServer().getPluginManager().getPermission(permissionString);
+                if (permission == null) continue; // The permission does not exist.
+                if (!player.hasPermission(permission)) continue;
+            }
+            @Nullable var crops = toolType.crops();
+            if (crops != null) {
+                if (!crops.contains(crop)) continue;
+            }
+            return toolType;
+        }
+        return null;
+    }
+
+}
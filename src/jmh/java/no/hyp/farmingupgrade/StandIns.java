@@ -0,0 +1,285 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.meta.Damageable;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataContainer;
+import org.bukkit.permissions.Permission;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Stand-ins for the Bukkit interfaces, so that the plugin can run outside a server in benchmarks. A stand-in is a
+ * proxy whose methods are handled by a handler. Methods that the handler does not handle return a default value: zero,
+ * false, an empty collection, or another stand-in for interfaces.
+ */
+final class StandIns {
+
+    /**
+     * Returned by a handler for methods it does not handle.
+     */
+    static final Object UNHANDLED = new Object();
+
+    interface Handler {
+
+        @Nullable Object handle(Object proxy, String name, Object[] arguments) throws Throwable;
+
+    }
+
+    static final Handler NONE = (proxy, name, arguments) -> UNHANDLED;
+
+    static final Map<UUID, World> worlds = new HashMap<>();
+
+    static @Nullable Server server;
+
+    static final TickScheduler scheduler = new TickScheduler();
+
+    static <T> T create(Class<T> type, Handler handler, Class<?>... extra) {
+        var interfaces = new Class<?>[extra.length + 1];
+        interfaces[0] = type;
+        System.arraycopy(extra, 0, interfaces, 1, extra.length);
+        InvocationHandler invocationHandler = (proxy, method, arguments) -> invoke(proxy, method, arguments == null ? new Object[0] : arguments, handler);
+        return type.cast(Proxy.newProxyInstance(StandIns.class.getClassLoader(), interfaces, invocationHandler));
+    }
+
+    static @Nullable Object invoke(Object proxy, Method method, Object[] arguments, Handler handler) throws Throwable {
+        var result = handler.handle(proxy, method.getName(), arguments);
+        if (result != UNHANDLED) return result;
+        switch (method.getName()) {
+            case "equals":
+                if (arguments.length == 1) return proxy == arguments[0];
+                break;
+            case "hashCode":
+                if (arguments.length == 0) return System.identityHashCode(proxy);
+                break;
+            case "toString":
+                if (arguments.length == 0) return "StandIn[" + method.getDeclaringClass().getSimpleName() + "]";
+                break;
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    static @Nullable Object defaultValue(Class<?> type) {
+        if (type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == byte.class) return (byte) 0;
+        if (type == short.class) return (short) 0;
+        if (type == char.class) return (char) 0;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == float.class) return 0.0f;
+        if (type == double.class) return 0.0;
+        if (type == String.class) return "";
+        if (type == List.class || type == Collection.class || type == Iterable.class) return new ArrayList<>();
+        if (type == Set.class) return new HashSet<>();
+        if (type == Map.class) return new HashMap<>();
+        if (type == Optional.class) return Optional.empty();
+        if (type.isArray()) return Array.newInstance(type.getComponentType(), 0);
+        if (type.isInterface()) return create(type, NONE);
+        return null;
+    }
+
+    /**
+     * The damage, lore, unbreakability and persistent data of an item meta stand-in.
+     */
+    static final class MetaState {
+
+        int damage;
+
+        @Nullable List<String> lore;
+
+        boolean unbreakable;
+
+        final Map<NamespacedKey, Object> tags = new HashMap<>();
+
+        MetaState copy() {
+            var copy = new MetaState();
+            copy.damage = damage;
+            copy.lore = lore != null ? new ArrayList<>(lore) : null;
+            copy.unbreakable = unbreakable;
+            copy.tags.putAll(tags);
+            return copy;
+        }
+
+        boolean same(MetaState other) {
+            return damage == other.damage && Objects.equals(lore, other.lore) && unbreakable == other.unbreakable && tags.equals(other.tags);
+        }
+
+        int hash() {
+            return Objects.hash(damage, lore, unbreakable, tags);
+        }
+
+    }
+
+    /**
+     * Implemented by item meta stand-ins, so that the item factory can compare them.
+     */
+    interface MetaStandIn {
+
+        MetaState state();
+
+    }
+
+    /**
+     * Create an item meta stand-in. Like the metas of the server, it is always {@link Damageable}, since {@link
+     * org.bukkit.inventory.ItemStack#isSimilar(org.bukkit.inventory.ItemStack)} casts the meta to read the durability.
+     */
+    @SuppressWarnings("unchecked")
+    static ItemMeta meta(MetaState state) {
+        PersistentDataContainer container = create(PersistentDataContainer.class, (proxy, name, arguments) -> switch (name) {
+            case "has" -> state.tags.containsKey(arguments[0]);
+            case "get" -> state.tags.get(arguments[0]);
+            case "getOrDefault" -> state.tags.getOrDefault(arguments[0], arguments[2]);
+            case "set" -> {
+                state.tags.put((NamespacedKey) arguments[0], arguments[2]);
+                yield null;
+            }
+            case "remove" -> {
+                state.tags.remove(arguments[0]);
+                yield null;
+            }
+            case "isEmpty" -> state.tags.isEmpty();
+            case "getKeys" -> new HashSet<>(state.tags.keySet());
+            default -> UNHANDLED;
+        });
+        return create(Damageable.class, (proxy, name, arguments) -> switch (name) {
+            case "state" -> state;
+            case "getDamage" -> state.damage;
+            case "setDamage" -> {
+                state.damage = (int) arguments[0];
+                yield null;
+            }
+            case "hasDamage" -> state.damage > 0;
+            case "getLore" -> state.lore != null ? new ArrayList<>(state.lore) : null;
+            case "setLore" -> {
+                state.lore = arguments[0] != null ? new ArrayList<>((List<String>) arguments[0]) : null;
+                yield null;
+            }
+            case "hasLore" -> state.lore != null && !state.lore.isEmpty();
+            case "isUnbreakable" -> state.unbreakable;
+            case "setUnbreakable" -> {
+                state.unbreakable = (boolean) arguments[0];
+                yield null;
+            }
+            case "getPersistentDataContainer" -> container;
+            case "clone" -> meta(state.copy());
+            case "equals" -> arguments.length == 1 ? arguments[0] instanceof MetaStandIn other && state.same(other.state()) : UNHANDLED;
+            case "hashCode" -> arguments.length == 0 ? state.hash() : UNHANDLED;
+            default -> UNHANDLED;
+        }, MetaStandIn.class);
+    }
+
+    static MetaState state(@Nullable Object meta) {
+        return meta instanceof MetaStandIn standIn ? standIn.state() : new MetaState();
+    }
+
+    /**
+     * Create an item factory stand-in. An item without a meta is the same as an item with an empty meta.
+     */
+    static ItemFactory itemFactory() {
+        return create(ItemFactory.class, (proxy, name, arguments) -> switch (name) {
+            case "getItemMeta" -> meta(new MetaState());
+            case "isApplicable" -> true;
+            case "asMetaFor" -> meta(state(arguments[0]).copy());
+            case "equals" -> arguments.length == 2 ? state(arguments[0]).same(state(arguments[1])) : UNHANDLED;
+            case "updateMaterial" -> arguments[1];
+            default -> UNHANDLED;
+        });
+    }
+
+    /**
+     * Set up a stand-in server for Bukkit, once.
+     */
+    static synchronized Server server() {
+        if (server != null) return server;
+        var logger = Logger.getLogger("StandIn");
+        var itemFactory = itemFactory();
+        PluginManager pluginManager = create(PluginManager.class, (proxy, name, arguments) -> switch (name) {
+            case "getPermission" -> new Permission((String) arguments[0]);
+            default -> UNHANDLED;
+        });
+        var created = create(Server.class, (proxy, name, arguments) -> switch (name) {
+            case "getLogger" -> logger;
+            case "getName" -> "StandIn";
+            case "getVersion", "getBukkitVersion" -> "1.20.2-R0.1-SNAPSHOT";
+            case "getPluginManager" -> pluginManager;
+            case "getItemFactory" -> itemFactory;
+            case "createBlockData" -> arguments.length == 1 && arguments[0] instanceof Material material ? InMemoryWorld.createData(material)
+                    : arguments.length == 1 && arguments[0] instanceof String string ? InMemoryWorld.parseData(string) : UNHANDLED;
+            case "getScheduler" -> scheduler.scheduler;
+            case "getWorld" -> arguments[0] instanceof UUID uid ? worlds.get(uid) : UNHANDLED;
+            case "getWorlds" -> new ArrayList<>(worlds.values());
+            case "getPlayer" -> null;
+            case "isPrimaryThread" -> true;
+            default -> UNHANDLED;
+        });
+        Bukkit.setServer(created);
+        server = created;
+        return created;
+    }
+
+    /**
+     * Create the plugin outside a server, with the default configuration and some settings replaced. The plugin is
+     * not enabled, so it does not register listeners or open the journal. Its tasks only run when the {@link
+     * #scheduler} is advanced.
+     *
+     * @param settings Configuration paths and values that replace the defaults.
+     */
+    static FarmingUpgradePlugin plugin(Map<String, Object> settings) throws IOException {
+        var benchmarkSettings = new HashMap<String, Object>();
+        // Keep the benchmarks on the calling thread and within one invocation.
+        benchmarkSettings.put("toolUpgrade.snapshotHarvestRadius", 0);
+        benchmarkSettings.put("toolUpgrade.harvestMaximumMicrosecondsPerTick", 0);
+        benchmarkSettings.put("toolUpgrade.replantDelayMinimum", 0);
+        benchmarkSettings.put("toolUpgrade.replantDelayMaximum", 0);
+        benchmarkSettings.put("hydrationUpgrade.sweep", false);
+        benchmarkSettings.put("hydrationUpgrade.async", false);
+        benchmarkSettings.put("metrics.writeInterval", 0);
+        benchmarkSettings.put("governor", null);
+        benchmarkSettings.putAll(settings);
+        try {
+            return plugin(null, benchmarkSettings);
+        } catch (InvalidConfigurationException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Create the plugin outside a server, with a configuration and some settings replaced.
+     *
+     * @param configuration The configuration as YAML, or null for the default configuration.
+     * @param settings Configuration paths and values that replace the configuration.
+     */
+    @SuppressWarnings("deprecation")
+    static FarmingUpgradePlugin plugin(@Nullable String configuration, Map<String, Object> settings) throws IOException, InvalidConfigurationException {
+        var server = server();
+        var dataFolder = Files.createTempDirectory("farmingupgrade").toFile();
+        var description = new PluginDescriptionFile("FarmingUpgrade", "benchmark", FarmingUpgradePlugin.class.getName());
+        var plugin = new FarmingUpgradePlugin(new JavaPluginLoader(server), description, dataFolder, new File(dataFolder, "FarmingUpgrade.jar"));
+        plugin.saveDefaultConfig();
+        var config = plugin.getConfig();
+        if (configuration != null) config.loadFromString(configuration);
+        for (var setting : settings.entrySet()) config.set(setting.getKey(), setting.getValue());
+        plugin.readConfig();
+        return plugin;
+    }
+
+}
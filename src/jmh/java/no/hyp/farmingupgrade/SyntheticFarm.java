@@ -0,0 +1,115 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.Ageable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A generated farm in an in-memory world, for benchmarks. The farm is a square of Farmland on a layer of Dirt, with a
+ * crop on some of the Farmland. The crop in the centre is always planted.
+ */
+final class SyntheticFarm {
+
+    enum Water {
+        /**
+         * No water.
+         */
+        NONE,
+        /**
+         * A line of water in every ninth row, so that every Farmland is hydrated.
+         */
+        CHANNELS,
+        /**
+         * Water in one of every hundred columns, at random.
+         */
+        SCATTERED
+    }
+
+    enum Terrain {
+        FLAT,
+        /**
+         * The rows of the farm are one block higher or lower than their neighbours, in steps.
+         */
+        TERRACED
+    }
+
+    static final int GROUND = 64;
+
+    final InMemoryWorld world = new InMemoryWorld();
+
+    final int radius;
+
+    final Block centre;
+
+    final Material crop;
+
+    /**
+     * The positions of the planted crops, as {@link FarmingUpgradePlugin#packPosition(int, int, int)}.
+     */
+    final List<Long> planted = new ArrayList<>();
+
+    int crops;
+
+    SyntheticFarm(int radius, double density, Water water, Terrain terrain, Material crop, long seed) {
+        this.radius = radius;
+        this.crop = crop;
+        var random = new Random(seed);
+        var x = -radius;
+        while (x <= radius) {
+            var y = height(terrain, x);
+            var z = -radius;
+            while (z <= radius) {
+                world.set(x, y - 1, z, Material.DIRT);
+                var isWater = switch (water) {
+                    case NONE -> false;
+                    case CHANNELS -> Math.floorMod(x, 9) == 4 && (x != 0 || z != 0);
+                    case SCATTERED -> random.nextInt(100) == 0 && (x != 0 || z != 0);
+                };
+                if (isWater) {
+                    world.set(x, y, z, Material.WATER);
+                } else {
+                    world.set(x, y, z, Material.FARMLAND);
+                    if ((x == 0 && z == 0) || random.nextDouble() < density) {
+                        plant(x, y + 1, z, crop);
+                        planted.add(FarmingUpgradePlugin.packPosition(x, y + 1, z));
+                        crops++;
+                    }
+                }
+                z++;
+            }
+            x++;
+        }
+        this.centre = world.block(0, height(terrain, 0) + 1, 0);
+    }
+
+    static int height(Terrain terrain, int x) {
+        return switch (terrain) {
+            case FLAT -> GROUND;
+            case TERRACED -> GROUND + (Math.floorMod(x, 4) < 2 ? 0 : 1);
+        };
+    }
+
+    /**
+     * Plant every crop of the farm again as a mature crop, so that a harvested or replanted farm drops the same as a new
+     * one.
+     */
+    void regrow() {
+        for (var position : planted) {
+            plant(FarmingUpgradePlugin.unpackX(position), FarmingUpgradePlugin.unpackY(position), FarmingUpgradePlugin.unpackZ(position), crop);
+        }
+    }
+
+    /**
+     * Plant a mature crop.
+     */
+    void plant(int x, int y, int z, Material crop) {
+        var data = InMemoryWorld.createData(crop);
+        if (data instanceof Ageable ageable) ageable.setAge(ageable.getMaximumAge());
+        world.set(x, y, z, data);
+    }
+
+}
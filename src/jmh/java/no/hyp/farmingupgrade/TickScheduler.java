@@ -0,0 +1,116 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.PriorityQueue;
+
+/**
+ * A scheduler stand-in that runs tasks when it is advanced, instead of on a server thread. Asynchronous tasks are run
+ * on the calling thread as well, so that a replay is deterministic.
+ */
+final class TickScheduler {
+
+    static final class Task implements Comparable<Task> {
+
+        final int id;
+
+        final Plugin plugin;
+
+        final Runnable runnable;
+
+        final long period;
+
+        long due;
+
+        boolean cancelled;
+
+        final BukkitTask task;
+
+        Task(int id, Plugin plugin, Runnable runnable, long due, long period) {
+            this.id = id;
+            this.plugin = plugin;
+            this.runnable = runnable;
+            this.due = due;
+            this.period = period;
+            this.task = StandIns.create(BukkitTask.class, (proxy, name, arguments) -> switch (name) {
+                case "getTaskId" -> id;
+                case "getOwner" -> plugin;
+                case "isSync" -> true;
+                case "isCancelled" -> cancelled;
+                case "cancel" -> {
+                    cancelled = true;
+                    yield null;
+                }
+                default -> StandIns.UNHANDLED;
+            });
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            var compare = Long.compare(due, other.due);
+            return compare != 0 ? compare : Integer.compare(id, other.id);
+        }
+
+    }
+
+    final PriorityQueue<Task> tasks = new PriorityQueue<>();
+
+    final BukkitScheduler scheduler;
+
+    long tick;
+
+    int nextId = 1;
+
+    TickScheduler() {
+        this.scheduler = StandIns.create(BukkitScheduler.class, (proxy, name, arguments) -> switch (name) {
+            case "runTask", "runTaskAsynchronously" -> arguments[1] instanceof Runnable runnable
+                    ? schedule((Plugin) arguments[0], runnable, 0, 0) : StandIns.UNHANDLED;
+            case "runTaskLater", "runTaskLaterAsynchronously" -> arguments[1] instanceof Runnable runnable
+                    ? schedule((Plugin) arguments[0], runnable, (long) arguments[2], 0) : StandIns.UNHANDLED;
+            case "runTaskTimer", "runTaskTimerAsynchronously" -> arguments[1] instanceof Runnable runnable
+                    ? schedule((Plugin) arguments[0], runnable, (long) arguments[2], (long) arguments[3]) : StandIns.UNHANDLED;
+            case "cancelTasks" -> {
+                for (var task : tasks) {
+                    if (task.plugin == arguments[0]) task.cancelled = true;
+                }
+                yield null;
+            }
+            default -> StandIns.UNHANDLED;
+        });
+    }
+
+    BukkitTask schedule(Plugin plugin, Runnable runnable, long delay, long period) {
+        // As on a server, a task runs on the next tick at the earliest.
+        var task = new Task(nextId++, plugin, runnable, tick + Math.max(1, delay), period);
+        tasks.add(task);
+        return task.task;
+    }
+
+    /**
+     * Advance a number of ticks, and run the tasks that are due in order.
+     */
+    void advance(long ticks) {
+        var end = tick + ticks;
+        while (!tasks.isEmpty() && tasks.peek().due <= end) {
+            var task = tasks.poll();
+            if (task.cancelled) continue;
+            tick = task.due;
+            task.runnable.run();
+            if (task.period > 0 && !task.cancelled) {
+                task.due += task.period;
+                tasks.add(task);
+            }
+        }
+        tick = end;
+    }
+
+    /**
+     * Forget every task, so that tasks of earlier runs do not run.
+     */
+    void clear() {
+        tasks.clear();
+    }
+
+}
@@ -0,0 +1,83 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the tool type of a held item, with the compiled {@link ToolMatcher} and with the linear walk it replaced.
+ * Both variants look up the same item in the same tool types.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ToolTypeBenchmark {
+
+    /**
+     * A hoe matches a tool, and a stick matches none.
+     */
+    @Param({ "DIAMOND_HOE", "STICK" })
+    Material material;
+
+    /**
+     * The default tools, or the default tools after a lore, an NBT and a permission tool that match neither item.
+     */
+    @Param({ "default", "filters" })
+    String tools;
+
+    FarmingUpgradePlugin plugin;
+
+    FarmingUpgradePlugin.ToolUpgrade toolUpgrade;
+
+    ItemStack toolItem;
+
+    Player player;
+
+    @Setup
+    public void setup() throws Exception {
+        plugin = switch (tools) {
+            case "default" -> StandIns.plugin(Map.of());
+            case "filters" -> StandIns.plugin(Map.of("toolUpgrade.tools", filterTools()));
+            default -> throw new IllegalArgumentException(tools);
+        };
+        toolUpgrade = plugin.toolUpgrade;
+        toolItem = new ItemStack(material);
+        player = new InMemoryWorld().player(0, SyntheticFarm.GROUND + 1, 0, toolItem);
+    }
+
+    static List<Object> filterTools() {
+        var stream = Objects.requireNonNull(FarmingUpgradePlugin.class.getResourceAsStream("/config.yml"));
+        var defaults = YamlConfiguration.loadConfiguration(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        var filterTools = new ArrayList<Object>();
+        filterTools.add(Map.of("lore", "Harvest I", "radius", 1.5));
+        filterTools.add(Map.of("nbt", "earth", "radius", 1.5));
+        filterTools.add(Map.of("permission", "farmer", "crops", List.of("BEETROOTS"), "radius", 1.5));
+        filterTools.addAll(Objects.requireNonNull(defaults.getList("toolUpgrade.tools")));
+        return filterTools;
+    }
+
+    @Benchmark
+    public @Nullable FarmingUpgradePlugin.HarvestToolType toolType() {
+        return toolUpgrade.toolType(toolItem, player, Material.WHEAT);
+    }
+
+    @Benchmark
+    public @Nullable FarmingUpgradePlugin.HarvestToolType legacyToolType() {
+        return LegacyToolType.toolType(plugin, toolUpgrade.tools(), toolItem, player, Material.WHEAT);
+    }
+
+}
@@ -0,0 +1,318 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.entity.Player;
+import org.bukkit.event.block.*;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.inventory.EquipmentSlot;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays a trace recorded by {@link TraceRecorder} through the event handlers of the plugin, against in-memory
+ * worlds that start with the recorded blocks. The plugin uses the recorded configuration, except that everything runs
+ * on the calling thread, no work is spread across ticks by time budgets, and the tool cache, whose entries expire by
+ * wall-clock time, is disabled, so that a replay with the same seed always does the same work. Scheduled tasks run as
+ * the recorded ticks pass.
+ * <p>
+ * After each event, the change that the server would make if the event is not cancelled is applied: broken crops
+ * become air, grown crops and Farmland with changed moisture get their recorded state, and places that were cancelled
+ * are reverted. Vanilla fertilisation is not replayed.
+ * <p>
+ * The time of each handler call is measured, and the throughput and latency percentiles of each handler are reported.
+ * <p>
+ * Usage: {@code TraceReplay <trace> [seed]}, or {@code ./gradlew replayTrace -Ptrace=<trace> [-Pseed=<seed>]}.
+ */
+public final class TraceReplay {
+
+    /**
+     * The latencies of the calls of a handler, in nanoseconds.
+     */
+    static final class Samples {
+
+        final String name;
+
+        long[] nanos = new long[1024];
+
+        int size;
+
+        Samples(String name) {
+            this.name = name;
+        }
+
+        void add(long sample) {
+            if (size == nanos.length) nanos = Arrays.copyOf(nanos, size * 2);
+            nanos[size] = sample;
+            size++;
+        }
+
+    }
+
+    final DataInputStream input;
+
+    final long seed;
+
+    final List<String> strings = new ArrayList<>();
+
+    final List<InMemoryWorld> worlds = new ArrayList<>();
+
+    final List<Player> players = new ArrayList<>();
+
+    final Map<Byte, Samples> samples = new LinkedHashMap<>();
+
+    @Nullable FarmingUpgradePlugin plugin;
+
+    long events;
+
+    TraceReplay(DataInputStream input, long seed) {
+        this.input = input;
+        this.seed = seed;
+        samples.put(TraceRecorder.BREAK, new Samples("farm"));
+        samples.put(TraceRecorder.PLACE, new Samples("plant"));
+        samples.put(TraceRecorder.FERTILISE, new Samples("fertilise"));
+        samples.put(TraceRecorder.MOISTURE_CHANGE, new Samples("moisture_change"));
+        samples.put(TraceRecorder.GROW, new Samples("crop_grow"));
+        samples.put(TraceRecorder.MOVE, new Samples("walk"));
+    }
+
+    public static void main(String[] arguments) throws Exception {
+        if (arguments.length < 1) {
+            System.err.println("Usage: TraceReplay <trace> [seed]");
+            System.exit(2);
+        }
+        var path = Path.of(arguments[0]);
+        var seed = arguments.length >= 2 ? Long.parseLong(arguments[1]) : 0;
+        try (var input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+            var replay = new TraceReplay(input, seed);
+            var start = System.nanoTime();
+            replay.run();
+            var elapsed = System.nanoTime() - start;
+            for (var line : replay.report(elapsed)) System.out.println(line);
+        }
+    }
+
+    void run() throws IOException, InvalidConfigurationException {
+        if (input.readInt() != TraceRecorder.MAGIC) throw new IOException("Not a FarmingUpgrade trace.");
+        var version = input.readInt();
+        if (version != TraceRecorder.VERSION) throw new IOException(String.format("Unsupported trace version %d.", version));
+        var configuration = new byte[input.readInt()];
+        input.readFully(configuration);
+        StandIns.scheduler.clear();
+        var settings = new HashMap<String, Object>();
+        settings.put("toolUpgrade.snapshotHarvestRadius", 0);
+        settings.put("toolUpgrade.harvestMaximumMicrosecondsPerTick", 0);
+        settings.put("toolUpgrade.toolCacheLifetime", 0);
+        settings.put("hydrationUpgrade.sweepMaximumMicrosecondsPerTick", 0);
+        settings.put("hydrationUpgrade.async", false);
+        settings.put("metrics.writeInterval", 0);
+        settings.put("governor", null);
+        plugin = StandIns.plugin(new String(configuration, StandardCharsets.UTF_8), settings);
+        plugin.random.setSeed(seed);
+        while (true) {
+            var type = input.readByte();
+            switch (type) {
+                case TraceRecorder.END -> {
+                    return;
+                }
+                case TraceRecorder.STRING -> strings.add(input.readUTF());
+                case TraceRecorder.WORLD -> worlds.add(new InMemoryWorld(input.readUTF(), input.readInt(), input.readInt()));
+                case TraceRecorder.PLAYER -> players.add(worlds.get(readVarInt()).player(0, 0, 0, new ItemStack(Material.AIR)));
+                case TraceRecorder.SECTION -> readSection();
+                default -> readEvent(type);
+            }
+        }
+    }
+
+    void readSection() throws IOException {
+        var world = worlds.get(readVarInt());
+        var section = input.readLong();
+        var palette = new BlockData[readVarInt()];
+        var i = 0;
+        while (i < palette.length) {
+            palette[i] = InMemoryWorld.parseData(strings.get(readVarInt()));
+            i++;
+        }
+        var wide = palette.length > 256;
+        var x = FarmingUpgradePlugin.unpackX(section) << 4;
+        var y = FarmingUpgradePlugin.unpackY(section) << 4;
+        var z = FarmingUpgradePlugin.unpackZ(section) << 4;
+        i = 0;
+        while (i < 4096) {
+            var data = palette[wide ? input.readUnsignedShort() : input.readUnsignedByte()];
+            if (!data.getMaterial().isAir()) world.set(x + (i & 15), y + (i >> 8), z + ((i >> 4) & 15), data.clone());
+            i++;
+        }
+    }
+
+    void readEvent(byte type) throws IOException {
+        assert plugin != null;
+        var ticks = readVarLong();
+        if (ticks > 0) {
+            StandIns.scheduler.advance(ticks);
+            // The particle budgets are reset by a task while the plugin is enabled.
+            if (plugin.particleLod != null) plugin.particleLod.sent.clear();
+        }
+        var world = worlds.get(readVarInt());
+        var position = input.readLong();
+        var flags = input.readByte();
+        var cancelled = (flags & TraceRecorder.CANCELLED) != 0;
+        var block = world.block(FarmingUpgradePlugin.unpackX(position), FarmingUpgradePlugin.unpackY(position), FarmingUpgradePlugin.unpackZ(position));
+        var samples = this.samples.get(type);
+        if (samples == null) throw new IOException(String.format("Unknown record type %d.", type));
+        long start;
+        switch (type) {
+            case TraceRecorder.BREAK -> {
+                var player = players.get(readVarInt());
+                player.getInventory().setItemInMainHand(new ItemStack(material(readVarInt())));
+                stand(player, block);
+                var event = new BlockBreakEvent(block, player);
+                event.setCancelled(cancelled);
+                start = System.nanoTime();
+                plugin.onFarm(event);
+                samples.add(System.nanoTime() - start);
+                if (!event.isCancelled()) block.setType(Material.AIR);
+            }
+            case TraceRecorder.PLACE -> {
+                var player = players.get(readVarInt());
+                var placed = InMemoryWorld.parseData(strings.get(readVarInt()));
+                var item = new ItemStack(material(readVarInt()));
+                player.getInventory().setItemInMainHand(new ItemStack(material(readVarInt())));
+                player.getInventory().setItemInOffHand(new ItemStack(material(readVarInt())));
+                stand(player, block);
+                var replaced = block.getState();
+                block.setBlockData(placed);
+                var event = new BlockPlaceEvent(block, replaced, block.getRelative(BlockFace.DOWN), item, player, true, EquipmentSlot.HAND);
+                event.setCancelled(cancelled);
+                start = System.nanoTime();
+                plugin.onPlant(event);
+                samples.add(System.nanoTime() - start);
+                if (event.isCancelled()) replaced.update(true);
+            }
+            case TraceRecorder.FERTILISE -> {
+                var playerIndex = readVarInt();
+                @Nullable var player = playerIndex > 0 ? players.get(playerIndex - 1) : null;
+                if (player != null) stand(player, block);
+                var event = new BlockFertilizeEvent(block, player, new ArrayList<>());
+                event.setCancelled(cancelled);
+                start = System.nanoTime();
+                plugin.onFertilise(event);
+                samples.add(System.nanoTime() - start);
+            }
+            case TraceRecorder.MOISTURE_CHANGE -> {
+                var state = newState(block, readVarInt());
+                var event = new MoistureChangeEvent(block, state);
+                event.setCancelled(cancelled);
+                start = System.nanoTime();
+                plugin.onFarmlandMoistureChange(event);
+                samples.add(System.nanoTime() - start);
+                if (!event.isCancelled()) state.update(true);
+            }
+            case TraceRecorder.GROW -> {
+                var state = newState(block, readVarInt());
+                var event = new BlockGrowEvent(block, state);
+                event.setCancelled(cancelled);
+                start = System.nanoTime();
+                plugin.onCropGrow(event);
+                samples.add(System.nanoTime() - start);
+                if (!event.isCancelled()) state.update(true);
+            }
+            case TraceRecorder.MOVE -> {
+                var player = players.get(readVarInt());
+                var from = new Location(world.world, input.readFloat(), input.readFloat(), input.readFloat());
+                var to = new Location(world.world, input.readFloat(), input.readFloat(), input.readFloat());
+                player.setSneaking((flags & TraceRecorder.SNEAKING) != 0);
+                player.teleport(from);
+                var event = new PlayerMoveEvent(player, from, to);
+                event.setCancelled(cancelled);
+                start = System.nanoTime();
+                plugin.onWalk(event);
+                samples.add(System.nanoTime() - start);
+                if (!event.isCancelled()) player.teleport(to);
+            }
+            default -> throw new IOException(String.format("Unknown record type %d.", type));
+        }
+        events++;
+    }
+
+    /**
+     * Move a player onto a block, since the trace does not have the positions of players that break, place or
+     * fertilise.
+     */
+    static void stand(Player player, Block block) {
+        player.teleport(new Location(block.getWorld(), block.getX() + 0.5, block.getY(), block.getZ() + 0.5));
+    }
+
+    BlockState newState(Block block, int data) {
+        var state = block.getState();
+        state.setBlockData(InMemoryWorld.parseData(strings.get(data)));
+        return state;
+    }
+
+    Material material(int string) throws IOException {
+        @Nullable var material = Material.getMaterial(strings.get(string));
+        if (material == null) throw new IOException(String.format("Unknown material %s.", strings.get(string)));
+        return material;
+    }
+
+    int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    long readVarLong() throws IOException {
+        var value = 0L;
+        var shift = 0;
+        while (true) {
+            var b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+        }
+    }
+
+    /**
+     * The throughput and latency percentiles of each handler. The throughput is the number of calls per second of
+     * time spent in the handler.
+     */
+    List<String> report(long elapsedNanos) {
+        var lines = new ArrayList<String>();
+        lines.add(String.format(Locale.ROOT, "Replayed %d events in %.1f ms with seed %d.", events, elapsedNanos / 1_000_000.0, seed));
+        lines.add(String.format(Locale.ROOT, "%-16s %10s %14s %10s %10s %10s %10s %10s", "handler", "calls", "calls/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+        for (var handler : samples.values()) {
+            if (handler.size == 0) continue;
+            var sorted = Arrays.copyOf(handler.nanos, handler.size);
+            Arrays.sort(sorted);
+            var total = 0L;
+            for (var sample : sorted) total += sample;
+            lines.add(String.format(Locale.ROOT, "%-16s %10d %14.0f %10.1f %10.1f %10.1f %10.1f %10.1f", handler.name, sorted.length,
+                    sorted.length / (total / 1e9), percentile(sorted, 0.5) / 1000.0, percentile(sorted, 0.9) / 1000.0,
+                    percentile(sorted, 0.99) / 1000.0, percentile(sorted, 0.999) / 1000.0, sorted[sorted.length - 1] / 1000.0));
+        }
+        assert plugin != null;
+        for (var counter : plugin.metrics.counters) {
+            lines.add(String.format(Locale.ROOT, "%s: %d.", counter.name, counter.value.sum()));
+        }
+        return lines;
+    }
+
+    /**
+     * The nearest-rank percentile of sorted samples.
+     */
+    static long percentile(long[] sorted, double quantile) {
+        var rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+}
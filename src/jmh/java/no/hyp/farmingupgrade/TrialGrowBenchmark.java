@@ -0,0 +1,53 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.data.Ageable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The growth of a fertilised crop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrialGrowBenchmark {
+
+    @Param({ "3", "10" })
+    int trials;
+
+    @Param({ "0.1", "0.45" })
+    double probability;
+
+    final Random random = new Random(0);
+
+    double[] distribution;
+
+    InMemoryWorld world;
+
+    @Setup
+    public void setup() {
+        StandIns.server();
+        world = new InMemoryWorld();
+        distribution = FarmingUpgradePlugin.growthDistribution(trials, probability);
+    }
+
+    /**
+     * Grow a seedling, so that every stage counts.
+     */
+    @Benchmark
+    public int trialGrow() {
+        var data = InMemoryWorld.createData(Material.WHEAT);
+        ((Ageable) data).setAge(0);
+        world.set(0, SyntheticFarm.GROUND + 1, 0, data);
+        BlockState state = world.state(0, SyntheticFarm.GROUND + 1, 0);
+        return FarmingUpgradePlugin.trialGrow(random, distribution, state);
+    }
+
+}
@@ -0,0 +1,274 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the blocks of some materials that are horizontally adjacent to a centre block, following the height of the
+ * blocks up and down by one block at a time.
+ * <p>
+ * The search works on coordinates instead of Block objects. The order in which columns are visited is precomputed
+ * for each radius, the grid of found heights is reused by each thread, and the result is returned in a reusable
+ * buffer of packed positions (see {@link FarmingUpgradePlugin#packPosition(int, int, int)}).
+ */
+final class AdjacencySearch {
+
+    /**
+     * Grid value of a column where no block was found.
+     */
+    static final int EMPTY = Integer.MIN_VALUE;
+
+    /**
+     * Number of values for each step in a traversal table.
+     */
+    static final int STEP_SIZE = 6;
+
+    /**
+     * A growable buffer of packed positions.
+     */
+    static final class PositionBuffer {
+
+        long[] positions = new long[64];
+
+        int size;
+
+        /**
+         * The number of columns that were read by the search that filled the buffer.
+         */
+        int visited;
+
+        void clear() {
+            size = 0;
+            visited = 0;
+        }
+
+        void add(long position) {
+            if (size == positions.length) positions = Arrays.copyOf(positions, size * 2);
+            positions[size++] = position;
+        }
+
+        long get(int index) {
+            return positions[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+    }
+
+    /**
+     * Reads the blocks that the search visits.
+     */
+    interface BlockReader {
+
+        Material type(int x, int y, int z);
+
+        /**
+         * Check if a block can be passed through, following the height of the crops down past it.
+         *
+         * @param type The type of the block, as read by {@link #type(int, int, int)}.
+         */
+        boolean isPassable(int x, int y, int z, Material type);
+
+    }
+
+    /**
+     * Reads blocks from a world. Must be used on the main thread.
+     */
+    record WorldReader(World world) implements BlockReader {
+
+        @Override
+        public Material type(int x, int y, int z) {
+            return world.getType(x, y, z);
+        }
+
+        @Override
+        public boolean isPassable(int x, int y, int z, Material type) {
+            // Air is always passable, so only create a block to check passability for other materials.
+            return type.isAir() || world.getBlockAt(x, y, z).isPassable();
+        }
+
+    }
+
+    static final class Scratch {
+
+        int[] grid = new int[0];
+
+        final PositionBuffer result = new PositionBuffer();
+
+        int[] grid(int size) {
+            if (grid.length < size) grid = new int[size];
+            Arrays.fill(grid, 0, size, EMPTY);
+            return grid;
+        }
+
+    }
+
+    /**
+     * The order in which columns are visited for a radius. Each step is a column (i, k) relative to the centre, the
+     * grid cells of one or two columns to follow the height from (the second is -1 if there is none), the grid cell of
+     * the column itself, and the step to continue from if no block is found in the column.
+     */
+    record Traversal(int radius, int diameter, int[] steps, int count) {
+
+        int centreIndex() {
+            return cell(0, 0);
+        }
+
+        int cell(int i, int k) {
+            return ((i + radius) * diameter) + (k + radius);
+        }
+
+    }
+
+    static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    static final ConcurrentHashMap<Integer, Traversal> traversals = new ConcurrentHashMap<>();
+
+    /**
+     * Find all blocks of some materials that are horizontally adjacent to a centre block. The centre block must be of
+     * one of the materials.
+     *
+     * @param reader Reads the blocks of the world.
+     * @param materials The materials to find.
+     * @param x Centre x coordinate.
+     * @param y Centre y coordinate.
+     * @param z Centre z coordinate.
+     * @param radius The horizontal radius (of a square circle) to search within.
+     * @param addCentre If the centre block is included in the result.
+     * @return The packed positions of the found blocks. The buffer is reused by the next search on the same thread.
+     */
+    static PositionBuffer search(BlockReader reader, Set<Material> materials, int x, int y, int z, int radius, boolean addCentre) {
+        var scratch = AdjacencySearch.scratch.get();
+        var traversal = traversal(radius);
+        var diameter = traversal.diameter();
+        var grid = scratch.grid(diameter * diameter);
+        var centreIndex = traversal.centreIndex();
+        grid[centreIndex] = y;
+        var steps = traversal.steps();
+        var visited = 0;
+        var step = 0;
+        while (step < traversal.count()) {
+            var base = step * STEP_SIZE;
+            var columnX = x + steps[base];
+            var columnZ = z + steps[base + 1];
+            var first = grid[steps[base + 2]];
+            var found = EMPTY;
+            if (first != EMPTY) {
+                found = locateInColumn(reader, materials, columnX, columnZ, first);
+                visited++;
+            }
+            if (found == EMPTY && steps[base + 3] >= 0) {
+                var second = grid[steps[base + 3]];
+                if (second != EMPTY) {
+                    found = locateInColumn(reader, materials, columnX, columnZ, second);
+                    visited++;
+                }
+            }
+            if (found == EMPTY) {
+                step = steps[base + 5];
+                continue;
+            }
+            grid[steps[base + 4]] = found;
+            step++;
+        }
+        var result = scratch.result;
+        result.clear();
+        result.visited = visited;
+        var i = -radius;
+        var index = 0;
+        while (i <= radius) {
+            var k = -radius;
+            while (k <= radius) {
+                var foundY = grid[index];
+                if (foundY != EMPTY && (index != centreIndex || addCentre)) {
+                    result.add(FarmingUpgradePlugin.packPosition(x + i, foundY, z + k));
+                }
+                index++;
+                k++;
+            }
+            i++;
+        }
+        return result;
+    }
+
+    /**
+     * Locate a block with a material in a column, at most one block above or below the height of an adjacent block.
+     * The block below is only checked if the block beside is passable.
+     *
+     * @return The y coordinate of the block, or {@link #EMPTY}.
+     */
+    static int locateInColumn(BlockReader reader, Set<Material> materials, int x, int z, int adjacentY) {
+        if (materials.contains(reader.type(x, adjacentY + 1, z))) return adjacentY + 1;
+        var besideType = reader.type(x, adjacentY, z);
+        if (materials.contains(besideType)) return adjacentY;
+        if (!reader.isPassable(x, adjacentY, z, besideType)) return EMPTY;
+        if (materials.contains(reader.type(x, adjacentY - 1, z))) return adjacentY - 1;
+        return EMPTY;
+    }
+
+    static Traversal traversal(int radius) {
+        return traversals.computeIfAbsent(radius, AdjacencySearch::createTraversal);
+    }
+
+    /**
+     * Create the traversal for a radius. The axes are visited first, outwards from the centre, and stop at the first
+     * column without a block. Then each quadrant is visited, following the height from the column closer to the
+     * centre along either axis.
+     */
+    static Traversal createTraversal(int radius) {
+        var diameter = radius + radius + 1;
+        var layout = new Traversal(radius, diameter, new int[0], 0);
+        var steps = new ArrayList<int[]>();
+        // Axes: +x, -x, +z, -z.
+        int[][] axes = { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 } };
+        for (var axis : axes) {
+            var axisStart = steps.size();
+            var n = 1;
+            while (n <= radius) {
+                var i = axis[0] * n;
+                var k = axis[1] * n;
+                var previous = layout.cell(i - axis[0], k - axis[1]);
+                steps.add(new int[] { i, k, previous, -1, layout.cell(i, k), 0 });
+                n++;
+            }
+            var axisEnd = steps.size();
+            var s = axisStart;
+            while (s < axisEnd) {
+                steps.get(s)[5] = axisEnd;
+                s++;
+            }
+        }
+        // Quadrants: (+x, +z), (-x, +z), (-x, -z), (+x, -z).
+        int[][] quadrants = { { 1, 1 }, { -1, 1 }, { -1, -1 }, { 1, -1 } };
+        for (var quadrant : quadrants) {
+            var a = 1;
+            while (a <= radius) {
+                var b = 1;
+                while (b <= radius) {
+                    var i = quadrant[0] * a;
+                    var k = quadrant[1] * b;
+                    var first = layout.cell(i - quadrant[0], k);
+                    var second = layout.cell(i, k - quadrant[1]);
+                    steps.add(new int[] { i, k, first, second, layout.cell(i, k), steps.size() + 1 });
+                    b++;
+                }
+                a++;
+            }
+        }
+        var table = new int[steps.size() * STEP_SIZE];
+        var s = 0;
+        while (s < steps.size()) {
+            System.arraycopy(steps.get(s), 0, table, s * STEP_SIZE, STEP_SIZE);
+            s++;
+        }
+        return new Traversal(radius, diameter, table, steps.size());
+    }
+
+}
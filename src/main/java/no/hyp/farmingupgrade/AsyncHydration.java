@@ -0,0 +1,189 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.type.Farmland;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+/**
+ * Calculates the moisture of Farmland on worker threads. The chunks that the water search touches are captured as
+ * ChunkSnapshots on the main thread, the new moisture is calculated from the snapshots by a worker, and the result is
+ * applied on the main thread.
+ * <p>
+ * A result is stale if the Farmland has changed since the snapshot was captured, or if the snapshot is older than the
+ * maximum age. The age is counted in game time, which is not changed by the daylight cycle or by setting the time.
+ * Stale results are discarded and the Farmland is queued again.
+ */
+final class AsyncHydration {
+
+    final FarmingUpgradePlugin plugin;
+
+    final ExecutorService executor;
+
+    final int maximumStaleTicks;
+
+    /**
+     * Farmland with a calculation in progress. Only accessed from the main thread.
+     */
+    final Set<Block> inFlight = new HashSet<>();
+
+    AsyncHydration(FarmingUpgradePlugin plugin, int threads, int maximumStaleTicks) {
+        this.plugin = plugin;
+        this.maximumStaleTicks = maximumStaleTicks;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            var thread = new Thread(runnable, "FarmingUpgrade Hydration");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A Farmland and the snapshots of the chunks around it.
+     */
+    record Request(Block farmland, int x, int y, int z, int minHeight, int maxHeight, Map<Long, ChunkSnapshot> snapshots, long captureTime) { }
+
+    /**
+     * The calculated state of a Farmland. If the Farmland turns into Dirt, the new data is null.
+     */
+    record Result(Block farmland, BlockData before, @Nullable BlockData after, long captureTime) { }
+
+    /**
+     * Capture snapshots for a batch of Farmland and calculate their moisture on a worker thread. Must be called on the
+     * main thread.
+     */
+    void submit(List<Block> farmlands, int range, boolean dry, int[] offsets) {
+        if (farmlands.isEmpty()) return;
+        // Snapshots are shared between Farmland in the same batch.
+        var worldSnapshots = new HashMap<UUID, Map<Long, ChunkSnapshot>>();
+        var requests = new ArrayList<Request>(farmlands.size());
+        for (var farmland : farmlands) {
+            var world = farmland.getWorld();
+            var snapshots = worldSnapshots.computeIfAbsent(world.getUID(), x -> new HashMap<>());
+            var captureTime = world.getGameTime();
+            var cx = (farmland.getX() - range) >> 4;
+            while (cx <= (farmland.getX() + range) >> 4) {
+                var cz = (farmland.getZ() - range) >> 4;
+                while (cz <= (farmland.getZ() + range) >> 4) {
+                    var key = WaterIndex.chunkKey(cx, cz);
+                    if (!snapshots.containsKey(key)) {
+                        snapshots.put(key, world.getChunkAt(cx, cz).getChunkSnapshot(false, false, false));
+                    }
+                    cz++;
+                }
+                cx++;
+            }
+            requests.add(new Request(farmland, farmland.getX(), farmland.getY(), farmland.getZ(), world.getMinHeight(), world.getMaxHeight(), snapshots, captureTime));
+            inFlight.add(farmland);
+        }
+        executor.execute(() -> {
+            var results = new ArrayList<Result>(requests.size());
+            try {
+                for (var request : requests) {
+                    @Nullable var result = calculate(request, dry, offsets);
+                    if (result != null) results.add(result);
+                }
+            } catch (Throwable throwable) {
+                plugin.getLogger().log(Level.SEVERE, "Could not calculate Farmland moisture.", throwable);
+            }
+            if (!plugin.isEnabled()) return;
+            plugin.getServer().getScheduler().runTask(plugin, () -> apply(requests, results));
+        });
+    }
+
+    /**
+     * Calculate the new state of a Farmland from snapshots, in the same way as
+     * {@link FarmingUpgradePlugin#farmlandDetermineUpgradedMoisture}.
+     *
+     * @return The new state, or null if the block is not Farmland in the snapshot.
+     */
+    static @Nullable Result calculate(Request request, boolean dry, int[] offsets) {
+        var x = request.x();
+        var y = request.y();
+        var z = request.z();
+        var before = blockData(request, x, y, z);
+        if (!(before instanceof Farmland)) return null;
+        var aboveType = y + 1 < request.maxHeight() ? blockType(request, x, y + 1, z) : Material.AIR;
+        if (aboveType.isOccluding()) {
+            return new Result(request.farmland(), before, null, request.captureTime());
+        }
+        var data = before.clone();
+        var farmland = (Farmland) data;
+        if (isHydrated(request, offsets)) {
+            farmland.setMoisture(Math.min(farmland.getMoisture() + 1, farmland.getMaximumMoisture()));
+        } else if (farmland.getMoisture() <= 0) {
+            if (dry) return new Result(request.farmland(), before, null, request.captureTime());
+        } else {
+            farmland.setMoisture(Math.max(farmland.getMoisture() - 1, 0));
+        }
+        return new Result(request.farmland(), before, data, request.captureTime());
+    }
+
+    static boolean isHydrated(Request request, int[] offsets) {
+        var i = 0;
+        while (i < offsets.length) {
+            var searchX = request.x() + offsets[i];
+            var searchY = request.y() + offsets[i + 1];
+            var searchZ = request.z() + offsets[i + 2];
+            i += 3;
+            if (searchY < request.minHeight() || searchY >= request.maxHeight()) continue;
+            var type = blockType(request, searchX, searchY, searchZ);
+            if (type == Material.WATER) return true;
+            if (WaterIndex.waterloggable(type) && WaterIndex.isWaterlogged(blockData(request, searchX, searchY, searchZ))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Material blockType(Request request, int x, int y, int z) {
+        var snapshot = request.snapshots().get(WaterIndex.chunkKey(x >> 4, z >> 4));
+        return snapshot.getBlockType(x & 15, y, z & 15);
+    }
+
+    static BlockData blockData(Request request, int x, int y, int z) {
+        var snapshot = request.snapshots().get(WaterIndex.chunkKey(x >> 4, z >> 4));
+        return snapshot.getBlockData(x & 15, y, z & 15);
+    }
+
+    /**
+     * Apply calculated states on the main thread. Stale results are queued again.
+     */
+    void apply(List<Request> requests, List<Result> results) {
+        for (var request : requests) {
+            inFlight.remove(request.farmland());
+        }
+        for (var result : results) {
+            var farmland = result.farmland();
+            World world = farmland.getWorld();
+            if (!world.isChunkLoaded(farmland.getX() >> 4, farmland.getZ() >> 4)) continue;
+            var stale = world.getGameTime() - result.captureTime() > maximumStaleTicks
+                    || !farmland.getBlockData().equals(result.before());
+            if (stale) {
+                plugin.dirtyFarmland.add(farmland);
+                continue;
+            }
+            var state = farmland.getState();
+            @Nullable var after = result.after();
+            if (after == null) {
+                state.setType(Material.DIRT);
+            } else {
+                state.setBlockData(after);
+            }
+            plugin.farmlandApplyMoisture(farmland, state);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        inFlight.clear();
+    }
+
+}
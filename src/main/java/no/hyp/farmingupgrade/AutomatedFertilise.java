@@ -0,0 +1,194 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Merges the fertilisations of dispensers, which are called without a player. Redstone farms can fertilise the same
+ * crops several times per second, and each fertilisation would otherwise search its radius, call an event for every
+ * crop and schedule its own task.
+ * <p>
+ * The fertilisations of a tick are queued and done at the start of the next tick. Fertilisations whose areas overlap
+ * are merged into one pass over the crops of all their areas, which grows the crops by up to the target growth stages
+ * of every bonemeal that was used. A dispenser uses its bonemeal before the event is called, even if the event is
+ * cancelled, so a bonemeal is dropped for every bonemeal of a merged fertilisation that was not needed.
+ * <p>
+ * Each chunk allows a maximum number of upgraded fertilisations per second. Fertilisations beyond it are left to
+ * Minecraft, which only fertilises the target crop.
+ */
+final class AutomatedFertilise {
+
+    /**
+     * The upgraded fertilisations a chunk has left. It is refilled continuously up to the maximum per second.
+     */
+    static final class Allowance {
+
+        double remaining;
+
+        long nanos;
+
+        Allowance(double remaining, long nanos) {
+            this.remaining = remaining;
+            this.nanos = nanos;
+        }
+
+    }
+
+    final FarmingUpgradePlugin plugin;
+
+    /**
+     * The maximum number of upgraded fertilisations in a chunk per second, or 0 for no maximum.
+     */
+    final int maximumPerChunkPerSecond;
+
+    /**
+     * The allowances of the chunks that were fertilised recently, by world and chunk key. Full allowances are removed.
+     */
+    final Map<UUID, Map<Long, Allowance>> allowances = new HashMap<>();
+
+    /**
+     * The fertilised crops of this tick.
+     */
+    final List<Block> pending = new ArrayList<>();
+
+    @Nullable BukkitTask task;
+
+    AutomatedFertilise(FarmingUpgradePlugin plugin, int maximumPerChunkPerSecond) {
+        this.plugin = plugin;
+        this.maximumPerChunkPerSecond = maximumPerChunkPerSecond;
+    }
+
+    /**
+     * Queue a fertilisation by a dispenser, if the chunk of the crop allows it.
+     *
+     * @return If the fertilisation was queued. The event must then be cancelled.
+     */
+    boolean submit(Block block) {
+        if (!allow(block)) return false;
+        pending.add(block);
+        if (task == null) {
+            plugin.metrics.tasksScheduled.increment();
+            task = plugin.getServer().getScheduler().runTask(plugin, this::run);
+        }
+        return true;
+    }
+
+    boolean allow(Block block) {
+        if (maximumPerChunkPerSecond <= 0) return true;
+        var now = System.nanoTime();
+        var chunks = allowances.computeIfAbsent(block.getWorld().getUID(), world -> new HashMap<>());
+        var key = WaterIndex.chunkKey(block.getX() >> 4, block.getZ() >> 4);
+        @Nullable var allowance = chunks.get(key);
+        if (allowance == null) {
+            allowance = new Allowance(maximumPerChunkPerSecond, now);
+            chunks.put(key, allowance);
+        } else {
+            refill(allowance, now);
+        }
+        if (allowance.remaining < 1.0) return false;
+        allowance.remaining -= 1.0;
+        return true;
+    }
+
+    void refill(Allowance allowance, long now) {
+        var seconds = (now - allowance.nanos) / 1_000_000_000.0;
+        allowance.remaining = Math.min(maximumPerChunkPerSecond, allowance.remaining + seconds * maximumPerChunkPerSecond);
+        allowance.nanos = now;
+    }
+
+    /**
+     * Fertilise the queued crops. The crops are grouped so that crops whose areas overlap are in the same group, and
+     * each group is fertilised together.
+     */
+    void run() {
+        task = null;
+        forgetFullAllowances();
+        @Nullable var bonemealUpgrade = plugin.bonemealUpgrade;
+        if (bonemealUpgrade == null) {
+            refundPending();
+            return;
+        }
+        var blocks = pending.toArray(new Block[0]);
+        pending.clear();
+        // Union the crops whose areas overlap. There are few crops in a tick, so every pair is compared.
+        var reach = 2 * bonemealUpgrade.radius();
+        var groups = new int[blocks.length];
+        var i = 0;
+        while (i < blocks.length) {
+            groups[i] = i;
+            var j = 0;
+            while (j < i) {
+                if (blocks[i].getWorld().equals(blocks[j].getWorld())
+                        && Math.abs(blocks[i].getX() - blocks[j].getX()) <= reach
+                        && Math.abs(blocks[i].getZ() - blocks[j].getZ()) <= reach) {
+                    union(groups, i, j);
+                }
+                j++;
+            }
+            i++;
+        }
+        var merged = new LinkedHashMap<Integer, List<Block>>();
+        i = 0;
+        while (i < blocks.length) {
+            merged.computeIfAbsent(find(groups, i), group -> new ArrayList<>()).add(blocks[i]);
+            i++;
+        }
+        for (var group : merged.values()) {
+            var crops = new LinkedHashSet<Block>();
+            for (var block : group) {
+                // The crop may have changed since it was queued.
+                if (!bonemealUpgrade.isFertilisable(block.getType())) continue;
+                crops.addAll(plugin.findAdjacentMaterials(bonemealUpgrade.fertilisableMaterials(), block, bonemealUpgrade.radius(), true));
+            }
+            plugin.metrics.fertilisesCoalesced.add(group.size() - 1);
+            plugin.fertiliseCrops(group.get(0), new ArrayList<>(crops), null, false, group.size());
+        }
+    }
+
+    static int find(int[] groups, int i) {
+        while (groups[i] != i) {
+            groups[i] = groups[groups[i]];
+            i = groups[i];
+        }
+        return i;
+    }
+
+    static void union(int[] groups, int i, int j) {
+        groups[find(groups, i)] = find(groups, j);
+    }
+
+    void forgetFullAllowances() {
+        if (maximumPerChunkPerSecond <= 0) return;
+        var now = System.nanoTime();
+        var worlds = allowances.values().iterator();
+        while (worlds.hasNext()) {
+            var chunks = worlds.next();
+            chunks.values().removeIf(allowance -> {
+                refill(allowance, now);
+                return allowance.remaining >= maximumPerChunkPerSecond;
+            });
+            if (chunks.isEmpty()) worlds.remove();
+        }
+    }
+
+    /**
+     * Drop the bonemeal of the queued fertilisations, since the dispensers have already used it.
+     */
+    void refundPending() {
+        for (var block : pending) plugin.dropItem(block, new ItemStack(Material.BONE_MEAL));
+        pending.clear();
+    }
+
+    void shutdown() {
+        if (task != null) task.cancel();
+        task = null;
+        refundPending();
+        allowances.clear();
+    }
+
+}
@@ -0,0 +1,199 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Location;
+import org.bukkit.Particle;
+import org.bukkit.Sound;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the particles and sounds of an operation on many blocks, and spawns them together when the operation is
+ * done. The particles of the blocks in each 4x4x4 cell are spawned as one burst that covers the blocks, and each sound
+ * is played once at the centre of the blocks that requested it. The number of particles is the same as when the
+ * effects are spawned for each block.
+ * <p>
+ * If batching is disabled, the effects are spawned at once for each block, as before.
+ */
+final class EffectBatch {
+
+    static final int CELL_SHIFT = 2;
+
+    record BurstKey(World world, long cell, Particle particle, @Nullable BlockData data) { }
+
+    static final class Burst {
+
+        final double offsetX;
+
+        final double offsetY;
+
+        final double offsetZ;
+
+        final double spreadX;
+
+        final double spreadY;
+
+        final double spreadZ;
+
+        int minX = Integer.MAX_VALUE;
+
+        int minY = Integer.MAX_VALUE;
+
+        int minZ = Integer.MAX_VALUE;
+
+        int maxX = Integer.MIN_VALUE;
+
+        int maxY = Integer.MIN_VALUE;
+
+        int maxZ = Integer.MIN_VALUE;
+
+        double count;
+
+        Burst(double offsetX, double offsetY, double offsetZ, double spreadX, double spreadY, double spreadZ) {
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.offsetZ = offsetZ;
+            this.spreadX = spreadX;
+            this.spreadY = spreadY;
+            this.spreadZ = spreadZ;
+        }
+
+    }
+
+    record SoundKey(World world, Sound sound) { }
+
+    static final class SoundCentre {
+
+        final float pitch;
+
+        float volume;
+
+        double x;
+
+        double y;
+
+        double z;
+
+        int count;
+
+        SoundCentre(float pitch) {
+            this.pitch = pitch;
+        }
+
+    }
+
+    final FarmingUpgradePlugin plugin;
+
+    final boolean batch;
+
+    final Map<BurstKey, Burst> bursts = new LinkedHashMap<>();
+
+    final Map<SoundKey, SoundCentre> sounds = new HashMap<>();
+
+    EffectBatch(FarmingUpgradePlugin plugin, boolean batch) {
+        this.plugin = plugin;
+        this.batch = batch;
+    }
+
+    /**
+     * The effect of a broken block. See {@link FarmingUpgradePlugin#breakBlockEffect(Block, BlockState, Sound, double)}.
+     */
+    void breakBlock(Block block, BlockState state, Sound sound, double particleScale) {
+        if (!batch) {
+            plugin.breakBlockEffect(block, state, sound, particleScale);
+            return;
+        }
+        particles(block, Particle.BLOCK_CRACK, state.getBlockData(), 10 * particleScale, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5);
+        sound(block, sound, 1, 1);
+    }
+
+    /**
+     * The effect of a fertilised block. See {@link FarmingUpgradePlugin#fertiliseEffect(Block, double)}.
+     */
+    void fertilise(Block block, double particleScale) {
+        if (!batch) {
+            plugin.fertiliseEffect(block, particleScale);
+            return;
+        }
+        particles(block, Particle.COMPOSTER, null, 15 * particleScale, 0.5, 0.5, 0.375, 0.4, 0.4, 0.35);
+    }
+
+    void particles(Block block, Particle particle, @Nullable BlockData data, double count, double offsetX, double offsetY, double offsetZ, double spreadX, double spreadY, double spreadZ) {
+        if (count <= 0.0) return;
+        var x = block.getX();
+        var y = block.getY();
+        var z = block.getZ();
+        var cell = FarmingUpgradePlugin.packPosition(x >> CELL_SHIFT, y >> CELL_SHIFT, z >> CELL_SHIFT);
+        var key = new BurstKey(block.getWorld(), cell, particle, data);
+        @Nullable var burst = bursts.get(key);
+        if (burst == null) {
+            burst = new Burst(offsetX, offsetY, offsetZ, spreadX, spreadY, spreadZ);
+            bursts.put(key, burst);
+        }
+        burst.minX = Math.min(burst.minX, x);
+        burst.minY = Math.min(burst.minY, y);
+        burst.minZ = Math.min(burst.minZ, z);
+        burst.maxX = Math.max(burst.maxX, x);
+        burst.maxY = Math.max(burst.maxY, y);
+        burst.maxZ = Math.max(burst.maxZ, z);
+        burst.count += count;
+    }
+
+    /**
+     * Play a sound at a block. If batching is enabled, the sound is played once for the whole batch, as loud as the
+     * loudest request.
+     */
+    void sound(Block block, Sound sound, float volume, float pitch) {
+        var world = block.getWorld();
+        if (!batch) {
+            world.playSound(block.getLocation().add(0.5, 0.5, 0.5), sound, volume, pitch);
+            return;
+        }
+        var key = new SoundKey(world, sound);
+        @Nullable var centre = sounds.get(key);
+        if (centre == null) {
+            centre = new SoundCentre(pitch);
+            sounds.put(key, centre);
+        }
+        centre.volume = Math.max(centre.volume, volume);
+        centre.x += block.getX();
+        centre.y += block.getY();
+        centre.z += block.getZ();
+        centre.count++;
+    }
+
+    /**
+     * Spawn the collected effects.
+     */
+    void flush() {
+        for (var entry : bursts.entrySet()) {
+            var key = entry.getKey();
+            var burst = entry.getValue();
+            var count = (int) burst.count;
+            if (count <= 0) continue;
+            var location = new Location(key.world(),
+                    (burst.minX + burst.maxX) / 2.0 + burst.offsetX,
+                    (burst.minY + burst.maxY) / 2.0 + burst.offsetY,
+                    (burst.minZ + burst.maxZ) / 2.0 + burst.offsetZ);
+            var spreadX = (burst.maxX - burst.minX) / 2.0 + burst.spreadX;
+            var spreadY = (burst.maxY - burst.minY) / 2.0 + burst.spreadY;
+            var spreadZ = (burst.maxZ - burst.minZ) / 2.0 + burst.spreadZ;
+            plugin.spawnParticle(key.world(), key.particle(), location, count, spreadX, spreadY, spreadZ, key.data());
+        }
+        bursts.clear();
+        for (var entry : sounds.entrySet()) {
+            var key = entry.getKey();
+            var centre = entry.getValue();
+            var location = new Location(key.world(), centre.x / centre.count + 0.5, centre.y / centre.count + 0.5, centre.z / centre.count + 0.5);
+            key.world().playSound(location, key.sound(), centre.volume, centre.pitch);
+        }
+        sounds.clear();
+    }
+
+}
@@ -0,0 +1,479 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.persistence.PersistentDataType;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * An index of the farmland and crops in loaded chunks, with two bitsets of 4096 bits for each section (16x16x16
+ * blocks). Used to skip blocks, sections and chunks without farms before any block is read.
+ * <p>
+ * The index of a chunk is stored in the persistent data container of the chunk, so that it survives restarts. A
+ * stored index is used if it was made for the same crop materials and in the current generation of its world.
+ * Otherwise, the index is rebuilt from a ChunkSnapshot the first time it is needed.
+ * <p>
+ * The generation of a world is kept in the persistent data container of the world, with the game time at which the
+ * stored indexes were last up to date. If the world has run since then without the index, for example while the
+ * plugin or the index was disabled, the generation is increased when the index starts, so that every stored index of
+ * the world is rebuilt. {@link #rebuildAll()} increases the generation of every world, for blocks that were changed
+ * without an event.
+ * <p>
+ * Blocks that are changed by an event are marked as both farmland and crop at once, since the events are called before
+ * the change is applied, and are read again on the next tick. The index may thus contain blocks that are not farmland
+ * or crops, but a block that is not in the index is not farmland or a crop, unless it was changed without an event.
+ */
+final class FarmIndex {
+
+    static final long VERSION = 3;
+
+    /**
+     * Version, minimum height, number of sections, crop fingerprint and generation.
+     */
+    static final int HEADER_SIZE = 5;
+
+    /**
+     * Game ticks that a world may run after its stored indexes were last up to date, before they are no longer trusted.
+     */
+    static final long MAXIMUM_UNTRACKED_TICKS = 20;
+
+    static final int SECTION_SIZE = 64;
+
+    /**
+     * The farm of a chunk, with a bitset of farmland and of crops for each section. A null bitset is empty.
+     */
+    static final class ChunkFarm {
+
+        final int minHeight;
+
+        final long[][] farmland;
+
+        final long[][] crops;
+
+        /**
+         * If the farm has changed since it was stored.
+         */
+        boolean dirty;
+
+        ChunkFarm(int minHeight, int sectionCount) {
+            this.minHeight = minHeight;
+            this.farmland = new long[sectionCount][];
+            this.crops = new long[sectionCount][];
+        }
+
+        static boolean get(long[][] sections, int minHeight, int x, int y, int z) {
+            var section = (y - minHeight) >> 4;
+            if (section < 0 || section >= sections.length) return false;
+            @Nullable var bits = sections[section];
+            if (bits == null) return false;
+            var bit = WaterIndex.bitIndex(x, y, z);
+            return (bits[bit >> 6] & (1L << bit)) != 0;
+        }
+
+        boolean set(long[][] sections, int x, int y, int z, boolean value) {
+            var section = (y - minHeight) >> 4;
+            if (section < 0 || section >= sections.length) return false;
+            @Nullable var bits = sections[section];
+            if (bits == null) {
+                if (!value) return false;
+                bits = new long[SECTION_SIZE];
+                sections[section] = bits;
+            }
+            var bit = WaterIndex.bitIndex(x, y, z);
+            var mask = 1L << bit;
+            if (((bits[bit >> 6] & mask) != 0) == value) return false;
+            bits[bit >> 6] ^= mask;
+            dirty = true;
+            return true;
+        }
+
+    }
+
+    /**
+     * Reads only the blocks that may be crops from another reader. Other blocks are read as {@link #NOT_CROP}, and
+     * are only read from the other reader if their passability is needed. The chunk farm that was used last is kept.
+     */
+    static final class Reader implements AdjacencySearch.BlockReader {
+
+        static final Material NOT_CROP = Material.BEDROCK;
+
+        final FarmIndex index;
+
+        final World world;
+
+        final AdjacencySearch.BlockReader reader;
+
+        long chunkKey;
+
+        @Nullable ChunkFarm chunk;
+
+        Reader(FarmIndex index, World world, AdjacencySearch.BlockReader reader) {
+            this.index = index;
+            this.world = world;
+            this.reader = reader;
+        }
+
+        @Override
+        public Material type(int x, int y, int z) {
+            var key = WaterIndex.chunkKey(x >> 4, z >> 4);
+            if (chunk == null || key != chunkKey) {
+                chunk = index.chunkFarm(world, x >> 4, z >> 4);
+                chunkKey = key;
+            }
+            if (chunk != null && !ChunkFarm.get(chunk.crops, chunk.minHeight, x, y, z)) return NOT_CROP;
+            return reader.type(x, y, z);
+        }
+
+        @Override
+        public boolean isPassable(int x, int y, int z, Material type) {
+            if (type == NOT_CROP) type = reader.type(x, y, z);
+            return reader.isPassable(x, y, z, type);
+        }
+
+    }
+
+    final FarmingUpgradePlugin plugin;
+
+    final NamespacedKey key;
+
+    final NamespacedKey generationKey;
+
+    final NamespacedKey trackedKey;
+
+    /**
+     * The materials that are indexed as crops.
+     */
+    final Set<Material> cropMaterials;
+
+    /**
+     * Identifies the crop materials of a stored index. Computed from the names of the materials, which do not change
+     * between versions like the ordinals may.
+     */
+    final long fingerprint;
+
+    final boolean persist;
+
+    /**
+     * Indexed chunks in each world, keyed by {@link WaterIndex#chunkKey(int, int)}.
+     */
+    final Map<UUID, Map<Long, ChunkFarm>> worlds = new HashMap<>();
+
+    /**
+     * The generation of the stored indexes of each world that has been opened.
+     */
+    final Map<UUID, Long> generations = new HashMap<>();
+
+    /**
+     * Blocks that have changed since the last refresh.
+     */
+    final Set<Block> pending = new LinkedHashSet<>();
+
+    FarmIndex(FarmingUpgradePlugin plugin, Set<Material> cropMaterials, boolean persist) {
+        this.plugin = plugin;
+        this.key = new NamespacedKey(plugin, "farm_index");
+        this.generationKey = new NamespacedKey(plugin, "farm_index_generation");
+        this.trackedKey = new NamespacedKey(plugin, "farm_index_tracked");
+        this.cropMaterials = cropMaterials.isEmpty() ? EnumSet.noneOf(Material.class) : EnumSet.copyOf(cropMaterials);
+        this.fingerprint = fingerprint(this.cropMaterials);
+        this.persist = persist;
+        // Chunks that were loaded before the index was created have not called a ChunkLoadEvent.
+        for (var world : plugin.getServer().getWorlds()) {
+            for (var chunk : world.getLoadedChunks()) loadStored(chunk);
+        }
+    }
+
+    /**
+     * The generation of the stored indexes of a world. When a world is first opened, the generation is increased if
+     * the world has run without the index since its indexes were stored.
+     */
+    long generation(World world) {
+        @Nullable var generation = generations.get(world.getUID());
+        if (generation != null) return generation;
+        var container = world.getPersistentDataContainer();
+        generation = container.getOrDefault(generationKey, PersistentDataType.LONG, 0L);
+        @Nullable var tracked = container.get(trackedKey, PersistentDataType.LONG);
+        if (tracked == null || world.getGameTime() - tracked > MAXIMUM_UNTRACKED_TICKS) {
+            generation++;
+            container.set(generationKey, PersistentDataType.LONG, generation);
+        }
+        generations.put(world.getUID(), generation);
+        return generation;
+    }
+
+    /**
+     * Forget the index of every chunk and stop using the stored indexes, so that the indexes are rebuilt from the
+     * blocks when they are next needed.
+     *
+     * @return The number of chunks that were indexed.
+     */
+    int rebuildAll() {
+        var size = size();
+        pending.clear();
+        worlds.clear();
+        if (persist) {
+            for (var world : plugin.getServer().getWorlds()) {
+                var generation = generation(world) + 1;
+                world.getPersistentDataContainer().set(generationKey, PersistentDataType.LONG, generation);
+                generations.put(world.getUID(), generation);
+            }
+        }
+        return size;
+    }
+
+    static long fingerprint(Set<Material> materials) {
+        var names = new ArrayList<String>(materials.size());
+        for (var material : materials) names.add(material.name());
+        Collections.sort(names);
+        var hash = 1125899906842597L;
+        for (var name : names) {
+            var i = 0;
+            while (i < name.length()) {
+                hash = 31 * hash + name.charAt(i);
+                i++;
+            }
+            hash = 31 * hash + ',';
+        }
+        return hash;
+    }
+
+    boolean isFarmland(World world, int x, int y, int z) {
+        @Nullable var chunk = chunkFarm(world, x >> 4, z >> 4);
+        return chunk == null || ChunkFarm.get(chunk.farmland, chunk.minHeight, x, y, z);
+    }
+
+    boolean isCrop(World world, int x, int y, int z) {
+        @Nullable var chunk = chunkFarm(world, x >> 4, z >> 4);
+        return chunk == null || ChunkFarm.get(chunk.crops, chunk.minHeight, x, y, z);
+    }
+
+    /**
+     * The farm of a chunk. Its index is rebuilt if the chunk has no index yet.
+     *
+     * @return The farm, or null if the chunk is not loaded.
+     */
+    @Nullable ChunkFarm chunkFarm(World world, int cx, int cz) {
+        var chunks = worlds.computeIfAbsent(world.getUID(), x -> new HashMap<>());
+        var key = WaterIndex.chunkKey(cx, cz);
+        @Nullable var farm = chunks.get(key);
+        if (farm == null) {
+            if (!world.isChunkLoaded(cx, cz)) return null;
+            farm = rebuild(world, world.getChunkAt(cx, cz).getChunkSnapshot(false, false, false));
+            chunks.put(key, farm);
+        }
+        return farm;
+    }
+
+    ChunkFarm rebuild(World world, ChunkSnapshot snapshot) {
+        var minHeight = world.getMinHeight();
+        var farm = new ChunkFarm(minHeight, (world.getMaxHeight() - minHeight) >> 4);
+        var section = 0;
+        while (section < farm.farmland.length) {
+            if (!snapshot.isSectionEmpty(section)) {
+                var bottom = minHeight + (section << 4);
+                var y = bottom;
+                while (y < bottom + 16) {
+                    var z = 0;
+                    while (z < 16) {
+                        var x = 0;
+                        while (x < 16) {
+                            var type = snapshot.getBlockType(x, y, z);
+                            if (type == Material.FARMLAND) farm.set(farm.farmland, x, y, z, true);
+                            else if (cropMaterials.contains(type)) farm.set(farm.crops, x, y, z, true);
+                            x++;
+                        }
+                        z++;
+                    }
+                    y++;
+                }
+            }
+            section++;
+        }
+        farm.dirty = true;
+        plugin.metrics.farmIndexRebuilds.increment();
+        return farm;
+    }
+
+    /**
+     * Use the stored index of a chunk that was loaded, if there is a valid one.
+     */
+    void loadStored(Chunk chunk) {
+        if (!persist) return;
+        var container = chunk.getPersistentDataContainer();
+        @Nullable var stored = container.get(key, PersistentDataType.LONG_ARRAY);
+        if (stored == null) return;
+        @Nullable var farm = decode(chunk, stored);
+        if (farm == null) {
+            container.remove(key); // Made for other crops, by another version or in an earlier generation.
+            return;
+        }
+        worlds.computeIfAbsent(chunk.getWorld().getUID(), x -> new HashMap<>()).put(WaterIndex.chunkKey(chunk.getX(), chunk.getZ()), farm);
+    }
+
+    /**
+     * Store the index of a chunk if it has changed.
+     */
+    void store(Chunk chunk, ChunkFarm farm) {
+        if (!persist || !farm.dirty) return;
+        chunk.getPersistentDataContainer().set(key, PersistentDataType.LONG_ARRAY, encode(farm, generation(chunk.getWorld())));
+        farm.dirty = false;
+    }
+
+    /**
+     * Encode a farm as the header, a mask of the sections with farmland, a mask of the sections with crops, and the
+     * bits of those sections.
+     */
+    long[] encode(ChunkFarm farm, long generation) {
+        var sectionCount = farm.farmland.length;
+        var maskSize = (sectionCount + 63) >> 6;
+        var size = HEADER_SIZE + 2 * maskSize;
+        var section = 0;
+        while (section < sectionCount) {
+            if (farm.farmland[section] != null) size += SECTION_SIZE;
+            if (farm.crops[section] != null) size += SECTION_SIZE;
+            section++;
+        }
+        var encoded = new long[size];
+        encoded[0] = VERSION;
+        encoded[1] = farm.minHeight;
+        encoded[2] = sectionCount;
+        encoded[3] = fingerprint;
+        encoded[4] = generation;
+        var offset = HEADER_SIZE + 2 * maskSize;
+        offset = encodeSections(farm.farmland, encoded, HEADER_SIZE, offset);
+        encodeSections(farm.crops, encoded, HEADER_SIZE + maskSize, offset);
+        return encoded;
+    }
+
+    static int encodeSections(long[][] sections, long[] encoded, int maskOffset, int offset) {
+        var section = 0;
+        while (section < sections.length) {
+            @Nullable var bits = sections[section];
+            if (bits != null) {
+                encoded[maskOffset + (section >> 6)] |= 1L << section;
+                System.arraycopy(bits, 0, encoded, offset, SECTION_SIZE);
+                offset += SECTION_SIZE;
+            }
+            section++;
+        }
+        return offset;
+    }
+
+    /**
+     * @return The farm, or null if the encoded farm is not valid for the chunk.
+     */
+    @Nullable ChunkFarm decode(Chunk chunk, long[] encoded) {
+        var world = chunk.getWorld();
+        if (encoded.length < HEADER_SIZE || encoded[0] != VERSION || encoded[3] != fingerprint || encoded[4] != generation(world)) return null;
+        var minHeight = world.getMinHeight();
+        var sectionCount = (world.getMaxHeight() - minHeight) >> 4;
+        if (encoded[1] != minHeight || encoded[2] != sectionCount) return null;
+        var maskSize = (sectionCount + 63) >> 6;
+        if (encoded.length < HEADER_SIZE + 2 * maskSize) return null;
+        var farm = new ChunkFarm(minHeight, sectionCount);
+        var offset = HEADER_SIZE + 2 * maskSize;
+        offset = decodeSections(farm.farmland, encoded, HEADER_SIZE, offset);
+        if (offset < 0) return null;
+        offset = decodeSections(farm.crops, encoded, HEADER_SIZE + maskSize, offset);
+        if (offset != encoded.length) return null;
+        return farm;
+    }
+
+    /**
+     * @return The offset after the sections, or -1 if the encoded farm is too short.
+     */
+    static int decodeSections(long[][] sections, long[] encoded, int maskOffset, int offset) {
+        var section = 0;
+        while (section < sections.length) {
+            if ((encoded[maskOffset + (section >> 6)] & (1L << section)) != 0) {
+                if (offset + SECTION_SIZE > encoded.length) return -1;
+                sections[section] = Arrays.copyOfRange(encoded, offset, offset + SECTION_SIZE);
+                offset += SECTION_SIZE;
+            }
+            section++;
+        }
+        return offset;
+    }
+
+    /**
+     * Read a changed block again on the next tick. Until then, it may be farmland or a crop.
+     */
+    void touch(Block block) {
+        @Nullable var chunks = worlds.get(block.getWorld().getUID());
+        if (chunks == null) return;
+        @Nullable var farm = chunks.get(WaterIndex.chunkKey(block.getX() >> 4, block.getZ() >> 4));
+        if (farm == null) return; // The chunk is read when its index is built.
+        farm.set(farm.farmland, block.getX(), block.getY(), block.getZ(), true);
+        farm.set(farm.crops, block.getX(), block.getY(), block.getZ(), true);
+        if (pending.isEmpty()) {
+            plugin.getServer().getScheduler().runTask(plugin, this::refreshPending);
+        }
+        pending.add(block);
+    }
+
+    void refreshPending() {
+        for (var block : pending) {
+            @Nullable var chunks = worlds.get(block.getWorld().getUID());
+            if (chunks == null) continue;
+            @Nullable var farm = chunks.get(WaterIndex.chunkKey(block.getX() >> 4, block.getZ() >> 4));
+            if (farm == null) continue;
+            var type = block.getType();
+            farm.set(farm.farmland, block.getX(), block.getY(), block.getZ(), type == Material.FARMLAND);
+            farm.set(farm.crops, block.getX(), block.getY(), block.getZ(), cropMaterials.contains(type));
+        }
+        pending.clear();
+    }
+
+    void unloadChunk(Chunk chunk) {
+        @Nullable var chunks = worlds.get(chunk.getWorld().getUID());
+        if (chunks == null) return;
+        @Nullable var farm = chunks.remove(WaterIndex.chunkKey(chunk.getX(), chunk.getZ()));
+        if (farm != null) store(chunk, farm);
+    }
+
+    /**
+     * Store the changed indexes of the loaded chunks in a world, and the game time at which they are up to date.
+     */
+    void storeWorld(World world) {
+        if (!persist) return;
+        @Nullable var chunks = worlds.get(world.getUID());
+        if (chunks != null) {
+            for (var entry : chunks.entrySet()) {
+                var farm = entry.getValue();
+                if (!farm.dirty) continue;
+                var cx = (int) (entry.getKey() >> 32);
+                var cz = (int) (long) entry.getKey();
+                if (world.isChunkLoaded(cx, cz)) store(world.getChunkAt(cx, cz), farm);
+            }
+        }
+        generation(world);
+        world.getPersistentDataContainer().set(trackedKey, PersistentDataType.LONG, world.getGameTime());
+    }
+
+    void unloadWorld(World world) {
+        storeWorld(world);
+        worlds.remove(world.getUID());
+        generations.remove(world.getUID());
+    }
+
+    int size() {
+        var size = 0;
+        for (var chunks : worlds.values()) size += chunks.size();
+        return size;
+    }
+
+    /**
+     * Store the changed indexes and forget every chunk.
+     */
+    void shutdown() {
+        refreshPending();
+        for (var world : plugin.getServer().getWorlds()) storeWorld(world);
+        worlds.clear();
+    }
+
+}
@@ -0,0 +1,97 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.player.PlayerEvent;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Called once when a player harvests an area of crops with a harvest tool, before any crop is harvested. Only called
+ * if bulkHarvestEvent is enabled in the configuration. No BlockBreakEvent is called for the crops of the harvest then,
+ * and no BlockPlaceEvent is called for crops that are replanted at once.
+ * <p>
+ * Cancelling the event cancels the whole harvest. Single crops can be left out by vetoing their index in {@link
+ * #getBlocks()}.
+ */
+public class FarmingUpgradeHarvestEvent extends PlayerEvent implements Cancellable {
+
+    private static final HandlerList handlers = new HandlerList();
+
+    private final ItemStack tool;
+
+    private final List<Block> blocks;
+
+    private final BitSet vetoed;
+
+    private boolean cancelled;
+
+    public FarmingUpgradeHarvestEvent(Player player, ItemStack tool, List<Block> blocks) {
+        super(player);
+        this.tool = tool;
+        this.blocks = List.copyOf(blocks);
+        this.vetoed = new BitSet(blocks.size());
+        this.cancelled = false;
+    }
+
+    /**
+     * The harvest tool.
+     */
+    public ItemStack getTool() {
+        return tool;
+    }
+
+    /**
+     * The crops that are candidates for the harvest. Crops that are not mature when they are reached may still be
+     * skipped if the plugin only harvests mature crops.
+     */
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * The indices in {@link #getBlocks()} of the crops that will not be harvested. Listeners may set and clear bits
+     * directly.
+     */
+    public BitSet getVetoed() {
+        return vetoed;
+    }
+
+    /**
+     * Leave a crop out of the harvest.
+     *
+     * @param index The index of the crop in {@link #getBlocks()}.
+     */
+    public void veto(int index) {
+        if (index < 0 || index >= blocks.size()) throw new IndexOutOfBoundsException(index);
+        vetoed.set(index);
+    }
+
+    public boolean isVetoed(int index) {
+        return vetoed.get(index);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+
+}
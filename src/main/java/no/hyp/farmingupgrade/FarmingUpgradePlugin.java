@@ -8,6 +8,7 @@ import org.bukkit.block.BlockFace;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.data.Ageable;
 import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.Directional;
 import org.bukkit.block.data.Waterlogged;
 import org.bukkit.block.data.type.Farmland;
 import org.bukkit.command.Command;
@@ -18,23 +19,34 @@ import org.bukkit.entity.Item;
 import org.bukkit.entity.Player;
 import org.bukkit.event.*;
 import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.entity.EntityPickupItemEvent;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
 import org.bukkit.event.player.*;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldSaveEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.inventory.EquipmentSlot;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.PlayerInventory;
 import org.bukkit.inventory.meta.Damageable;
 import org.bukkit.permissions.*;
-import org.bukkit.persistence.PersistentDataType;
-import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitTask;
 import org.bukkit.util.Vector;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.logging.Level;
 
 public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
 
@@ -42,14 +54,91 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
 
     @Nullable FarmingUpgradePlugin.ToolUpgrade toolUpgrade;
 
+    /**
+     * Cache of the tool types resolved for the items held by players, if enabled.
+     */
+    @Nullable ToolCache toolCache;
+
+    /**
+     * Finds the crops of large harvests on a worker thread, if enabled.
+     */
+    @Nullable SnapshotHarvest snapshotHarvest;
+
+    /**
+     * Spreads harvests across ticks, if enabled.
+     */
+    @Nullable HarvestJobs harvestJobs;
+
+    /**
+     * Replants harvested crops after their delay.
+     */
+    final ReplantScheduler replantScheduler = new ReplantScheduler(this);
+
+    /**
+     * Journal of pending replants and fertilisations, or null if it could not be opened.
+     */
+    @Nullable PendingJournal pendingJournal;
+
     @Nullable HydrationUpgrade hydrationUpgrade;
 
+    /**
+     * Index of water blocks used by upgraded hydration, if enabled.
+     */
+    @Nullable WaterIndex waterIndex;
+
+    /**
+     * Cache of the water that last hydrated each Farmland, if enabled.
+     */
+    @Nullable HydrationHints hydrationHints;
+
+    /**
+     * Relative positions in the upgraded hydration search region, ordered from nearest to furthest. Stored as
+     * consecutive x, y, z triples.
+     */
+    int[] hydrationSearchOffsets = new int[0];
+
     @Nullable BonemealUpgrade bonemealUpgrade;
 
+    /**
+     * Merges the fertilisations of dispensers, if enabled.
+     */
+    @Nullable AutomatedFertilise automatedFertilise;
+
     @Nullable TrampleUpgrade trampleUpgrade;
 
+    /**
+     * Filters player movement for trampling by walking, if trampling is upgraded.
+     */
+    @Nullable WalkFilter walkFilter;
+
+    /**
+     * The farmland and crops in loaded chunks, if enabled.
+     */
+    @Nullable FarmIndex farmIndex;
+
+    @Nullable Effects effects;
+
+    @Nullable ParticleLod particleLod;
+
+    /**
+     * Scales back the work of the plugin while the server is overloaded, if enabled.
+     */
+    @Nullable TickGovernor tickGovernor;
+
     final Random random = new Random();
 
+    final Metrics metrics = new Metrics();
+
+    /**
+     * Writes the metrics to a file, if enabled.
+     */
+    @Nullable BukkitTask metricsTask;
+
+    /**
+     * Records the handled events while a trace is being recorded.
+     */
+    @Nullable TraceRecorder traceRecorder;
+
     /*
      * The plugin replaces Vanilla features by catching events, cancelling them, and then executing its own logic. The
      * plugin calls its own events in this logic, whose types matches those caught by the plugin. To prevent the plugin
@@ -72,6 +161,17 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
      * Plugin
      */
 
+    public FarmingUpgradePlugin() {
+        super();
+    }
+
+    /**
+     * Create the plugin outside a server, for benchmarks.
+     */
+    FarmingUpgradePlugin(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
+
     @Override
     public void onEnable() {
         // Save the default config if it does not exist.
@@ -79,6 +179,13 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         // Upgrade the configuration if necessary.
         this.configurationUpgrade();
         readConfig();
+        // Open the journal and replay the tasks that were pending when the plugin was disabled.
+        try {
+            this.pendingJournal = new PendingJournal(this, this.getDataFolder().toPath());
+            this.getServer().getScheduler().runTask(this, this::replayPendingJournal);
+        } catch (IOException exception) {
+            this.getLogger().log(Level.SEVERE, "Could not open the pending replant journal.", exception);
+        }
         // Register the event listeners.
         this.getServer().getPluginManager().registerEvents(this, this);
         // Set listeners.
@@ -91,7 +198,52 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
     }
 
     @Override
-    public void onDisable() { }
+    public void onDisable() {
+        if (asyncHydration != null) asyncHydration.shutdown();
+        if (snapshotHarvest != null) snapshotHarvest.shutdown();
+        if (harvestJobs != null) harvestJobs.shutdown();
+        if (automatedFertilise != null) automatedFertilise.shutdown();
+        if (farmIndex != null) farmIndex.shutdown();
+        farmIndex = null;
+        if (tickGovernor != null) tickGovernor.shutdown();
+        if (metricsTask != null) metricsTask.cancel();
+        metricsTask = null;
+        if (traceRecorder != null) traceRecorder.stop();
+        traceRecorder = null;
+        replantScheduler.cancelAll();
+        if (pendingJournal != null) pendingJournal.close();
+        pendingJournal = null;
+    }
+
+    /**
+     * Run the replants and fertilisations that were pending when the plugin was last disabled. Replants are done
+     * in the same way as when the player is offline, so the seed is dropped. Entries in worlds that are not loaded are
+     * kept.
+     */
+    void replayPendingJournal() {
+        if (pendingJournal == null) return;
+        var effects = effectBatch();
+        for (var replant : pendingJournal.pendingReplants()) {
+            @Nullable var world = getServer().getWorld(replant.world());
+            if (world == null) continue;
+            var position = replant.position();
+            var block = world.getBlockAt(unpackX(position), unpackY(position), unpackZ(position));
+            replantCrop(block, replant.crop(), getServer().getPlayer(replant.player()), new ItemStack(replant.seed()), replant.drop(), effects);
+            pendingJournal.done(replant.id());
+        }
+        for (var fertilise : pendingJournal.pendingFertilises()) {
+            @Nullable var world = getServer().getWorld(fertilise.world());
+            if (world == null) continue;
+            var centre = fertilise.centre();
+            var fertilisedBlocks = new ArrayList<Block>(fertilise.positions().length);
+            for (var position : fertilise.positions()) {
+                fertilisedBlocks.add(world.getBlockAt(unpackX(position), unpackY(position), unpackZ(position)));
+            }
+            completeFertilise(world.getBlockAt(unpackX(centre), unpackY(centre), unpackZ(centre)), fertilisedBlocks, new BitSet(), null, fertilise.creative(), fertilise.bonemeal());
+            pendingJournal.done(fertilise.id());
+        }
+        effects.flush();
+    }
 
     /**
      * If the configuration file is of an old version, save it as another file and replace the configuration file
@@ -119,7 +271,13 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
     public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] arguments) {
         if (!command.getName().equalsIgnoreCase("farmingupgrade")) return null;
         if (arguments.length == 1) {
-            return ImmutableList.of("reload");
+            return ImmutableList.of("reload", "stats", "governor", "trace", "farmindex");
+        } else if (arguments.length == 2 && arguments[0].equalsIgnoreCase("stats")) {
+            return ImmutableList.of("reset");
+        } else if (arguments.length == 2 && arguments[0].equalsIgnoreCase("trace")) {
+            return ImmutableList.of("start", "stop");
+        } else if (arguments.length == 2 && arguments[0].equalsIgnoreCase("farmindex")) {
+            return ImmutableList.of("rebuild");
         } else {
             return ImmutableList.of();
         }
@@ -135,16 +293,113 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
                 readConfig();
                 sender.sendMessage("FarmingUpgrade configuration reloaded.");
                 return true;
+            } else if (subcommand.equalsIgnoreCase("stats")) {
+                sendStats(sender);
+                return true;
+            } else if (subcommand.equalsIgnoreCase("governor")) {
+                sendGovernor(sender);
+                return true;
             } else {
-                sender.sendMessage(ChatColor.RESET + "/farmingupgrade reload" + ChatColor.RED + " - Reload the configuration.");
+                sendHelp(sender);
                 return true;
             }
+        } else if (arguments.length == 2 && arguments[0].equalsIgnoreCase("stats") && arguments[1].equalsIgnoreCase("reset")) {
+            metrics.reset();
+            sender.sendMessage("FarmingUpgrade metrics reset.");
+            return true;
+        } else if (arguments.length == 2 && arguments[0].equalsIgnoreCase("trace")) {
+            if (arguments[1].equalsIgnoreCase("start")) {
+                startTrace(sender);
+            } else if (arguments[1].equalsIgnoreCase("stop")) {
+                stopTrace(sender);
+            } else {
+                sendHelp(sender);
+            }
+            return true;
+        } else if (arguments.length == 2 && arguments[0].equalsIgnoreCase("farmindex") && arguments[1].equalsIgnoreCase("rebuild")) {
+            rebuildFarmIndex(sender);
+            return true;
         } else {
-            sender.sendMessage(ChatColor.RESET + "/farmingupgrade reload" + ChatColor.RED + " - Reload the configuration.");
+            sendHelp(sender);
             return true;
         }
     }
 
+    void sendHelp(CommandSender sender) {
+        sender.sendMessage(ChatColor.RESET + "/farmingupgrade reload" + ChatColor.RED + " - Reload the configuration.");
+        sender.sendMessage(ChatColor.RESET + "/farmingupgrade stats" + ChatColor.RED + " - Show cache statistics and metrics.");
+        sender.sendMessage(ChatColor.RESET + "/farmingupgrade stats reset" + ChatColor.RED + " - Reset the metrics.");
+        sender.sendMessage(ChatColor.RESET + "/farmingupgrade governor" + ChatColor.RED + " - Show the degradation level.");
+        sender.sendMessage(ChatColor.RESET + "/farmingupgrade trace start" + ChatColor.RED + " - Record the handled events to a trace.");
+        sender.sendMessage(ChatColor.RESET + "/farmingupgrade trace stop" + ChatColor.RED + " - Stop recording the trace.");
+        sender.sendMessage(ChatColor.RESET + "/farmingupgrade farmindex rebuild" + ChatColor.RED + " - Rebuild the farm index from the blocks.");
+    }
+
+    void rebuildFarmIndex(CommandSender sender) {
+        if (farmIndex == null) {
+            sender.sendMessage("Farm index: disabled.");
+            return;
+        }
+        var chunks = farmIndex.rebuildAll();
+        sender.sendMessage(String.format("Farm index: forgot %d chunks. Every chunk is indexed again from its blocks when it is next needed.", chunks));
+    }
+
+    void startTrace(CommandSender sender) {
+        if (traceRecorder != null) {
+            sender.sendMessage(String.format("A trace is already being recorded to %s.", traceRecorder.path.getFileName()));
+            return;
+        }
+        var name = String.format("trace-%1$tY%1$tm%1$td-%1$tH%1$tM%1$tS.trace.gz", new Date());
+        var path = getDataFolder().toPath().resolve("traces").resolve(name);
+        try {
+            traceRecorder = new TraceRecorder(this, path);
+            sender.sendMessage(String.format("Recording a trace to %s.", name));
+        } catch (IOException exception) {
+            getLogger().log(Level.SEVERE, "Could not start the event trace.", exception);
+            sender.sendMessage("Could not start the trace. See the server log.");
+        }
+    }
+
+    void stopTrace(CommandSender sender) {
+        if (traceRecorder == null) {
+            sender.sendMessage("No trace is being recorded.");
+            return;
+        }
+        traceRecorder.stop();
+        sender.sendMessage(String.format("Recorded %d events to %s.", traceRecorder.events, traceRecorder.path.getFileName()));
+        traceRecorder = null;
+    }
+
+    void sendGovernor(CommandSender sender) {
+        if (tickGovernor == null) {
+            sender.sendMessage("Governor: disabled.");
+            return;
+        }
+        sender.sendMessage(String.format("Governor: level %d of %d (%s), average tick time %.1f ms.",
+                tickGovernor.level, TickGovernor.MAXIMUM_LEVEL, TickGovernor.describe(tickGovernor.level), tickGovernor.averageMilliseconds));
+    }
+
+    void sendStats(CommandSender sender) {
+        if (hydrationHints != null) {
+            sender.sendMessage(String.format("Hydration hints: %d hits, %d misses (%.1f%% hit rate), %d entries.",
+                    hydrationHints.hits, hydrationHints.misses, 100.0 * hydrationHints.hitRate(), hydrationHints.size()));
+        } else {
+            sender.sendMessage("Hydration hints: disabled.");
+        }
+        if (toolCache != null) {
+            sender.sendMessage(String.format("Tool cache: %d hits, %d misses (%.1f%% hit rate).",
+                    toolCache.hits, toolCache.misses, 100.0 * toolCache.hitRate()));
+        } else {
+            sender.sendMessage("Tool cache: disabled.");
+        }
+        if (farmIndex != null) {
+            sender.sendMessage(String.format("Farm index: %d chunks indexed.", farmIndex.size()));
+        } else {
+            sender.sendMessage("Farm index: disabled.");
+        }
+        for (var line : metrics.summary()) sender.sendMessage(line);
+    }
+
     /*
      * Configuration
      */
@@ -153,9 +408,55 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         var config = this.getConfig();
         this.required = config.getBoolean("required");
         this.toolUpgrade = readFarmingToolsUpgrade(config);
+        this.toolCache = toolUpgrade != null && toolUpgrade.toolCacheLifetime > 0 ? new ToolCache(toolUpgrade.toolCacheLifetime) : null;
+        if (snapshotHarvest != null) snapshotHarvest.shutdown();
+        this.snapshotHarvest = toolUpgrade != null && toolUpgrade.snapshotHarvestRadius > 0 ? new SnapshotHarvest(this) : null;
+        if (harvestJobs != null) harvestJobs.shutdown();
+        this.harvestJobs = toolUpgrade != null && toolUpgrade.harvestMaximumMicrosecondsPerTick > 0 ? new HarvestJobs(this, toolUpgrade.harvestMaximumMicrosecondsPerTick) : null;
         this.hydrationUpgrade = readHydrationUpgrade(config);
+        this.waterIndex = hydrationUpgrade != null && hydrationUpgrade.waterIndex ? new WaterIndex(this) : null;
+        this.hydrationHints = hydrationUpgrade != null && hydrationUpgrade.hintCacheSize > 0 ? new HydrationHints(hydrationUpgrade.hintCacheSize) : null;
+        if (hydrationUpgrade != null) {
+            this.hydrationSearchOffsets = nearestFirstOffsets(hydrationUpgrade.horizontalSearchRadius, hydrationUpgrade.upwardSearchDistance, hydrationUpgrade.downwardSearchDistance);
+        }
+        restartHydrationSweep();
         this.bonemealUpgrade = readBonemealUpgrade(config);
+        if (automatedFertilise != null) automatedFertilise.shutdown();
+        this.automatedFertilise = bonemealUpgrade != null && bonemealUpgrade.coalesceAutomated ? new AutomatedFertilise(this, bonemealUpgrade.automatedMaximumPerChunkPerSecond) : null;
         this.trampleUpgrade = readTrampleUpgrade(config);
+        this.walkFilter = trampleUpgrade != null ? new WalkFilter(trampleUpgrade.trampleCooldown) : null;
+        if (farmIndex != null) farmIndex.shutdown();
+        this.farmIndex = config.get("farmIndex", null) != null ? new FarmIndex(this, indexedCropMaterials(), config.getBoolean("farmIndex.persist")) : null;
+        this.effects = readEffects(config);
+        this.particleLod = effects != null && effects.levelOfDetail ? new ParticleLod(this, random, effects.viewDistance, effects.fullDetailDistance, effects.maximumParticlesPerPlayerPerTick) : null;
+        if (tickGovernor != null) tickGovernor.shutdown();
+        @Nullable var governor = readGovernor(config);
+        this.tickGovernor = governor != null ? new TickGovernor(this, governor) : null;
+        if (metricsTask != null) metricsTask.cancel();
+        var metricsWriteInterval = config.getInt("metrics.writeInterval");
+        this.metricsTask = metricsWriteInterval > 0 ? getServer().getScheduler().runTaskTimerAsynchronously(this, this::writeMetrics, metricsWriteInterval, metricsWriteInterval) : null;
+    }
+
+    /**
+     * The materials of every crop that an enabled feature handles.
+     */
+    Set<Material> indexedCropMaterials() {
+        var materials = EnumSet.noneOf(Material.class);
+        if (toolUpgrade != null) materials.addAll(toolUpgrade.cropMaterials());
+        if (bonemealUpgrade != null) materials.addAll(bonemealUpgrade.fertilisableMaterials());
+        if (trampleUpgrade != null) materials.addAll(trampleUpgrade.trampleablePlants());
+        return materials;
+    }
+
+    /**
+     * Write the metrics to metrics.prom in the data folder.
+     */
+    void writeMetrics() {
+        try {
+            metrics.write(getDataFolder().toPath().resolve("metrics.prom"));
+        } catch (IOException exception) {
+            getLogger().log(Level.WARNING, "Could not write the metrics.", exception);
+        }
     }
 
     @Nullable FarmingUpgradePlugin.ToolUpgrade readFarmingToolsUpgrade(Configuration configuration) {
@@ -173,16 +474,26 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         var collectDefault = configuration.getBoolean("toolUpgrade.collectDefault");
         var plantDefault = configuration.getBoolean("toolUpgrade.plantDefault");
         var damageDefault = configuration.getInt("toolUpgrade.damageDefault");
-        var tools = readTools(configuration, replantDefault, collectDefault, plantDefault, damageDefault);
+        var maximumRadiusDefault = configuration.getInt("toolUpgrade.maximumRadiusDefault");
+        var tools = readTools(configuration, replantDefault, collectDefault, plantDefault, damageDefault, maximumRadiusDefault);
         var crops = readCrops(configuration);
+        var cropMaterials = crops.isEmpty() ? EnumSet.noneOf(Material.class) : EnumSet.copyOf(crops.keySet());
+        var toolMatcher = new ToolMatcher(this, tools);
+        var toolCacheLifetime = configuration.getInt("toolUpgrade.toolCacheLifetime");
+        var snapshotHarvestRadius = configuration.getInt("toolUpgrade.snapshotHarvestRadius");
+        var harvestMaximumMicrosecondsPerTick = configuration.getInt("toolUpgrade.harvestMaximumMicrosecondsPerTick");
+        var aggregateDrops = configuration.getBoolean("toolUpgrade.aggregateDrops");
+        var batchCollect = configuration.getBoolean("toolUpgrade.batchCollect");
+        var bulkHarvestEvent = configuration.getBoolean("toolUpgrade.bulkHarvestEvent");
         return new ToolUpgrade(
-                tools, crops, radiusPerEfficiencyLevel, applyUnbreaking, onlyHarvestMature, minimumReplantDelay,
+                tools, toolMatcher, crops, cropMaterials, radiusPerEfficiencyLevel, applyUnbreaking, onlyHarvestMature, minimumReplantDelay,
                 maximumReplantDelay, replantParticleMultiplier, harvestParticleMultiplier, plantParticleMultiplier,
-                toolSwingParticleEffect
+                toolSwingParticleEffect, toolCacheLifetime, snapshotHarvestRadius, harvestMaximumMicrosecondsPerTick, aggregateDrops,
+                batchCollect, bulkHarvestEvent
         );
     }
 
-    List<HarvestToolType> readTools(Configuration configuration, boolean replantDefault, boolean collectDefault, boolean plantDefault, int damageDefault) {
+    List<HarvestToolType> readTools(Configuration configuration, boolean replantDefault, boolean collectDefault, boolean plantDefault, int damageDefault, int maximumRadiusDefault) {
         var tools = new LinkedList<HarvestToolType>();
         var toolSectionMaps = (List<Map<?, ?>>) configuration.getList("toolUpgrade.tools");
         assert toolSectionMaps != null;
@@ -193,15 +504,21 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
             @Nullable var nbtTag = toolSection.getString("nbt", null);
             @Nullable var permission = toolSection.getString("permission", null);
             var radius = toolSection.getDouble("radius", 0);
+            var maximumRadius = toolSection.getInt("maximumRadius", maximumRadiusDefault);
             var damage = toolSection.getInt("damage", damageDefault);
             var replant = toolSection.getBoolean("replant", replantDefault);
             var collect = toolSection.getBoolean("collect", collectDefault);
             var plant = toolSection.getBoolean("plant", plantDefault);
-            @Nullable var crops = readMaterialStringOrList(toolSection, "crops").orElse(null);
-            if (crops == null) {
-                crops = readMaterialStringOrList(toolSection, "speciality").orElse(null);
+            @Nullable var cropList = readMaterialStringOrList(toolSection, "crops").orElse(null);
+            if (cropList == null) {
+                cropList = readMaterialStringOrList(toolSection, "speciality").orElse(null);
             }
-            tools.add(new HarvestToolType(material, lore, nbtTag, permission, radius, damage, replant, collect, plant, crops));
+            @Nullable Set<Material> crops = null;
+            if (cropList != null) {
+                crops = EnumSet.noneOf(Material.class);
+                crops.addAll(cropList);
+            }
+            tools.add(new HarvestToolType(material, lore, nbtTag, permission, radius, maximumRadius, damage, replant, collect, plant, crops));
         }
         return tools;
     }
@@ -239,10 +556,10 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         }
     }
 
-    record HarvestToolType(@Nullable List<Material> material, @Nullable String lore, @Nullable String nbtTag, @Nullable String permission, double radius, int damage, boolean replant, boolean collect, boolean plant, @Nullable List<Material> crops) { }
+    record HarvestToolType(@Nullable List<Material> material, @Nullable String lore, @Nullable String nbtTag, @Nullable String permission, double radius, int maximumRadius, int damage, boolean replant, boolean collect, boolean plant, @Nullable Set<Material> crops) { }
 
-    ImmutableList<ReplantableCrop> readCrops(ConfigurationSection configuration) {
-        var crops = new LinkedList<ReplantableCrop>();
+    Map<Material, ReplantableCrop> readCrops(ConfigurationSection configuration) {
+        var crops = new EnumMap<Material, ReplantableCrop>(Material.class);
         var cropSectionMaps = (List<Map<?, ?>>) configuration.getList("toolUpgrade.crops");
         assert cropSectionMaps != null;
         for (var cropSectionMap : cropSectionMaps) {
@@ -250,7 +567,10 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
             var cropString = cropSection.getString("crop");
             assert cropString != null;
             @Nullable var cropMaterial = Material.matchMaterial(cropString);
-            if (cropMaterial == null) this.getLogger().severe(cropString + " is not a valid crop material.");
+            if (cropMaterial == null) {
+                this.getLogger().severe(cropString + " is not a valid crop material.");
+                continue;
+            }
             @Nullable var seedsString = cropSection.getString("seeds");
             @Nullable Material seedsMaterial;
             if (seedsString != null) {
@@ -259,9 +579,9 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
             } else {
                 seedsMaterial = null;
             }
-            crops.add(new ReplantableCrop(cropMaterial, seedsMaterial));
+            crops.put(cropMaterial, new ReplantableCrop(cropMaterial, seedsMaterial));
         }
-        return ImmutableList.copyOf(crops);
+        return crops;
     }
 
     record ReplantableCrop(Material crop, @Nullable Material seeds) { }
@@ -272,50 +592,115 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         var upwardsSearchDistance = configuration.getInt("hydrationUpgrade.upwardSearchDistance");
         var downwardSearchDistance = configuration.getInt("hydrationUpgrade.downwardSearchDistance");
         var dry = configuration.getBoolean("hydrationUpgrade.dry");
-        return new HydrationUpgrade(horizontalRadius, upwardsSearchDistance, downwardSearchDistance, dry);
+        var waterIndex = configuration.getBoolean("hydrationUpgrade.waterIndex");
+        var hintCacheSize = configuration.getInt("hydrationUpgrade.hintCacheSize");
+        var sweep = configuration.getBoolean("hydrationUpgrade.sweep");
+        var sweepMaximumPerTick = configuration.getInt("hydrationUpgrade.sweepMaximumPerTick");
+        var sweepMaximumMicrosecondsPerTick = configuration.getInt("hydrationUpgrade.sweepMaximumMicrosecondsPerTick");
+        var async = configuration.getBoolean("hydrationUpgrade.async");
+        var asyncThreads = configuration.getInt("hydrationUpgrade.asyncThreads");
+        var asyncMaximumStaleTicks = Math.max(1, configuration.getInt("hydrationUpgrade.asyncMaximumStaleTicks"));
+        return new HydrationUpgrade(
+                horizontalRadius, upwardsSearchDistance, downwardSearchDistance, dry, waterIndex, hintCacheSize, sweep,
+                sweepMaximumPerTick, sweepMaximumMicrosecondsPerTick, async, asyncThreads, asyncMaximumStaleTicks
+        );
     }
 
     @Nullable BonemealUpgrade readBonemealUpgrade(Configuration configuration) {
         if (configuration.get("bonemealUpgrade", null) == null) return null;
-        var plants = readPlants(configuration);
-        var radius = configuration.getInt("bonemealUpgrade.radius");
         var trials = configuration.getInt("bonemealUpgrade.trials");
+        var plants = readPlants(configuration, trials);
+        var plantMaterials = plants.isEmpty() ? EnumSet.noneOf(Material.class) : EnumSet.copyOf(plants.keySet());
+        var radius = configuration.getInt("bonemealUpgrade.radius");
         var targetGrowthStages = configuration.getInt("bonemealUpgrade.targetGrowthStages");
         var minimumDelay = configuration.getInt("bonemealUpgrade.minimumDelay");
         var maximumDelay = configuration.getInt("bonemealUpgrade.maximumDelay");
         var fertiliseParticleMultiplier = configuration.getInt("bonemealUpgrade.fertiliseParticleMultiplier");
-        return new BonemealUpgrade(plants, radius, trials, targetGrowthStages, minimumDelay, maximumDelay, fertiliseParticleMultiplier);
+        var coalesceAutomated = configuration.getBoolean("bonemealUpgrade.coalesceAutomated");
+        var automatedMaximumPerChunkPerSecond = configuration.getInt("bonemealUpgrade.automatedMaximumPerChunkPerSecond");
+        return new BonemealUpgrade(plants, plantMaterials, radius, trials, targetGrowthStages, minimumDelay, maximumDelay, fertiliseParticleMultiplier,
+                coalesceAutomated, automatedMaximumPerChunkPerSecond);
+    }
+
+    @Nullable Effects readEffects(Configuration configuration) {
+        if (configuration.get("effects", null) == null) return null;
+        var batch = configuration.getBoolean("effects.batch");
+        var levelOfDetail = configuration.getBoolean("effects.levelOfDetail");
+        var viewDistance = configuration.getDouble("effects.viewDistance");
+        var fullDetailDistance = configuration.getDouble("effects.fullDetailDistance");
+        var maximumParticlesPerPlayerPerTick = configuration.getInt("effects.maximumParticlesPerPlayerPerTick");
+        return new Effects(batch, levelOfDetail, viewDistance, fullDetailDistance, maximumParticlesPerPlayerPerTick);
+    }
+
+    @Nullable Governor readGovernor(Configuration configuration) {
+        if (configuration.get("governor", null) == null) return null;
+        var smoothing = configuration.getDouble("governor.smoothing");
+        var thresholdList = configuration.getDoubleList("governor.thresholds");
+        var thresholds = new double[thresholdList.size()];
+        var i = 0;
+        while (i < thresholds.length) {
+            thresholds[i] = thresholdList.get(i);
+            i++;
+        }
+        var recoveryMargin = configuration.getDouble("governor.recoveryMargin");
+        var particleMultiplier = configuration.getDouble("governor.particleMultiplier");
+        var hydrationSweepInterval = configuration.getInt("governor.hydrationSweepInterval");
+        var replantDelay = configuration.getInt("governor.replantDelay");
+        var radiusMultiplier = configuration.getDouble("governor.radiusMultiplier");
+        return new Governor(smoothing, thresholds, recoveryMargin, particleMultiplier, hydrationSweepInterval, replantDelay, radiusMultiplier);
     }
 
-    static ImmutableList<FertilisablePlant> readPlants(ConfigurationSection configuration) {
-        var plants = new LinkedList<FertilisablePlant>();
+    Map<Material, FertilisablePlant> readPlants(ConfigurationSection configuration, int trials) {
+        var plants = new EnumMap<Material, FertilisablePlant>(Material.class);
         var plantSectionMaps = (List<Map<?, ?>>) configuration.getList("bonemealUpgrade.plants");
         assert plantSectionMaps != null;
         for (var plantSectionMap : plantSectionMaps) {
             var plantSection = new MemoryConfiguration().createSection("section", plantSectionMap);
             var plantName = plantSection.getString("plant");
             assert plantName != null;
-            var plantMaterial = Material.matchMaterial(plantName);
+            @Nullable var plantMaterial = Material.matchMaterial(plantName);
+            if (plantMaterial == null) {
+                this.getLogger().severe(plantName + " is not a valid plant material.");
+                continue;
+            }
             var growth = plantSection.getDouble("growth");
-            plants.add(new FertilisablePlant(plantMaterial, growth));
+            plants.put(plantMaterial, new FertilisablePlant(plantMaterial, growth, growthDistribution(trials, growth)));
         }
-        return ImmutableList.copyOf(plants);
+        return plants;
     }
 
     @Nullable TrampleUpgrade readTrampleUpgrade(Configuration configuration) {
         if (configuration.get("trampleUpgrade", null) == null) return null;
-        var trampleableCrops = configuration.getStringList("trampleUpgrade.trampleableCrops").stream().map(Material::matchMaterial).toList();
+        var trampleableCrops = EnumSet.noneOf(Material.class);
+        for (var cropString : configuration.getStringList("trampleUpgrade.trampleableCrops")) {
+            @Nullable var crop = Material.matchMaterial(cropString);
+            if (crop == null) {
+                this.getLogger().severe(cropString + " is not a valid crop material.");
+                continue;
+            }
+            trampleableCrops.add(crop);
+        }
         var trampleByWalking = configuration.getBoolean("trampleUpgrade.trampleByWalking");
         var dryEmptyOnTrample = configuration.getBoolean("trampleUpgrade.dryEmptyOnTrample");
         var trampleParticleMultiplier = configuration.getDouble("trampleUpgrade.trampleParticleMultiplier");
-        return new TrampleUpgrade(trampleableCrops, trampleByWalking, dryEmptyOnTrample, trampleParticleMultiplier);
+        var trampleCooldown = configuration.getInt("trampleUpgrade.trampleCooldown");
+        return new TrampleUpgrade(trampleableCrops, trampleByWalking, dryEmptyOnTrample, trampleParticleMultiplier, trampleCooldown);
     }
 
-    record FertilisablePlant(Material plant, double growth) { }
+    /**
+     * A plant that can be fertilised.
+     *
+     * @param growth The probability of each trial to grow the plant one stage.
+     * @param distribution The cumulative distribution of the number of stages the plant grows. See {@link
+     * #growthDistribution(int, double)}.
+     */
+    record FertilisablePlant(Material plant, double growth, double[] distribution) { }
 
     record ToolUpgrade(
             List<HarvestToolType> tools,
-            List<ReplantableCrop> crops,
+            ToolMatcher toolMatcher,
+            Map<Material, ReplantableCrop> crops,
+            Set<Material> cropMaterials,
             double radiusPerEfficiencyLevel,
             boolean applyUnbreaking,
             boolean harvestOnlyMature,
@@ -324,79 +709,37 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
             double replantParticleMultiplier,
             double harvestParticleMultiplier,
             double plantParticleMultiplier,
-            boolean toolSwingParticleEffect
+            boolean toolSwingParticleEffect,
+            int toolCacheLifetime,
+            int snapshotHarvestRadius,
+            int harvestMaximumMicrosecondsPerTick,
+            boolean aggregateDrops,
+            boolean batchCollect,
+            boolean bulkHarvestEvent
     ) {
 
-        Optional<HarvestToolType> toolType(FarmingUpgradePlugin plugin, ItemStack toolItem, Player player, Material crop) {
-            var list = new LinkedList<HarvestToolType>();
-            for (var toolType : tools) {
-                // If the type has a material, the item must be of the same material.
-                @Nullable var typeMaterial = toolType.material();
-                if (typeMaterial != null) {
-                    if (!typeMaterial.contains(toolItem.getType())) continue;
-                }
-                // If the type has a lore, some line in the item lore must contain the type lore as a substring.
-                @Nullable var lore = toolType.lore();
-                if (lore != null) {
-                    if (!toolItem.hasItemMeta()) continue;
-                    assert toolItem.getItemMeta() != null;
-                    @Nullable var itemLore = toolItem.getItemMeta().getLore();
-                    if (itemLore == null) continue;
-                    var foundLore = false;
-                    for (var itemLoreLine : itemLore) {
-                        if (itemLoreLine.contains(lore)) {
-                            foundLore = true;
-                            break;
-                        }
-                    }
-                    if (!foundLore) continue;
-                }
-                // If the tool has an NBT tag filter, the NBT tag on the item must be set to true.
-                @Nullable var nbtTag = toolType.nbtTag();
-                if (nbtTag != null) {
-                    if (!toolItem.hasItemMeta()) continue;
-                    assert toolItem.getItemMeta() != null;
-                    var itemNbt = toolItem.getItemMeta().getPersistentDataContainer();
-                    var namespace = NamespacedKey.fromString(nbtTag, plugin);
-                    assert namespace != null;
-                    if (!itemNbt.has(namespace, PersistentDataType.BYTE)) continue;
-                    var tag = itemNbt.get(namespace, PersistentDataType.BYTE);
-                    assert tag != null;
-                    if (tag == 0) continue;
-                }
-                @Nullable var permissionString = toolType.permission();
-                if (permissionString != null) {
-                    @Nullable Permission permission = Bukkit.getServer().getPluginManager().getPermission(permissionString);
-                    if (permission == null) continue; // The permission does not exist.
-                    if (!player.hasPermission(permission)) continue;
-                }
-                @Nullable var crops = toolType.crops();
-                if (crops != null) {
-                    if (!crops.contains(crop)) continue;
-                }
-                return Optional.of(toolType);
-            }
-            return Optional.empty();
+        /**
+         * Find the first configured tool type that matches an item.
+         *
+         * @return The tool type, or null if the item is not a harvest tool for the crop.
+         */
+        @Nullable HarvestToolType toolType(ItemStack toolItem, Player player, Material crop) {
+            return toolMatcher.match(toolItem, player, crop);
         }
 
         public boolean isCrop(Material type) {
-            for (var crop : crops) {
-                if (crop.crop() == type) return true;
-            }
-            return false;
-        }
-
-        public Collection<Material> cropMaterials() {
-            return crops.stream().map(ReplantableCrop::crop).collect(Collectors.toUnmodifiableSet());
+            return cropMaterials.contains(type);
         }
 
-        public Optional<Material> seeds(Material material) throws IllegalArgumentException {
-            for (var crop : crops) {
-                if (crop.crop() == material) {
-                    return Optional.ofNullable(crop.seeds());
-                }
-            }
-            throw new IllegalArgumentException(String.format("Material %s is not harvestable.", material.name()));
+        /**
+         * The seeds that replant a crop.
+         *
+         * @return The seeds, or null if the crop has no seeds.
+         */
+        public @Nullable Material seeds(Material material) throws IllegalArgumentException {
+            @Nullable var crop = crops.get(material);
+            if (crop == null) throw new IllegalArgumentException(String.format("Material %s is not harvestable.", material.name()));
+            return crop.seeds();
         }
 
     }
@@ -405,41 +748,77 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
             int horizontalSearchRadius,
             int upwardSearchDistance,
             int downwardSearchDistance,
-            boolean dry
+            boolean dry,
+            boolean waterIndex,
+            int hintCacheSize,
+            boolean sweep,
+            int sweepMaximumPerTick,
+            int sweepMaximumMicrosecondsPerTick,
+            boolean async,
+            int asyncThreads,
+            int asyncMaximumStaleTicks
     ) { }
 
     record BonemealUpgrade(
-            List<FertilisablePlant> plants,
+            Map<Material, FertilisablePlant> plants,
+            Set<Material> fertilisableMaterials,
             int radius,
             int trials,
             int targetGrowthStages,
             int minimumDelay,
             int maximumDelay,
-            double fertiliseParticleMultiplier
+            double fertiliseParticleMultiplier,
+            boolean coalesceAutomated,
+            int automatedMaximumPerChunkPerSecond
     ) {
 
         public boolean isFertilisable(Material material) {
-            return plants.stream().anyMatch(x -> x.plant() == material);
+            return fertilisableMaterials.contains(material);
         }
 
-        public Collection<Material> fertilisableMaterials() {
-            return plants.stream().map(FertilisablePlant::plant).collect(Collectors.toSet());
+        /**
+         * The cumulative distribution of the number of stages a plant grows when it is fertilised.
+         */
+        public double[] growthDistribution(Material material) throws IllegalArgumentException {
+            @Nullable var plant = plants.get(material);
+            if (plant == null) throw new IllegalArgumentException(String.format("Material %s is not fertilisable.", material.name()));
+            return plant.distribution();
         }
 
-        public double fertilisableGrowth(Material material) throws IllegalArgumentException {
-            for (var plant : plants) {
-                if (plant.plant() == material) return plant.growth();
-            }
-            throw new IllegalArgumentException(String.format("Material %s is not fertilisable.", material.name()));
-        }
+    }
+
+    record Effects(
+            boolean batch,
+            boolean levelOfDetail,
+            double viewDistance,
+            double fullDetailDistance,
+            int maximumParticlesPerPlayerPerTick
+    ) { }
+
+    record Governor(
+            double smoothing,
+            double[] thresholds,
+            double recoveryMargin,
+            double particleMultiplier,
+            int hydrationSweepInterval,
+            int replantDelay,
+            double radiusMultiplier
+    ) { }
 
+    /**
+     * Create a batch for the effects of an operation on many blocks. The batch must be flushed when the operation is
+     * done.
+     */
+    EffectBatch effectBatch() {
+        return new EffectBatch(this, effects != null && effects.batch);
     }
 
     record TrampleUpgrade(
-            List<Material> trampleablePlants,
+            Set<Material> trampleablePlants,
             boolean trampleByWalking,
             boolean dryEmptyOnTrample,
-            double trampleParticleMultiplier
+            double trampleParticleMultiplier,
+            int trampleCooldown
     ) {
 
         boolean isCropTrampleable(Material cropMaterial) {
@@ -461,6 +840,13 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
      */
     @EventHandler(priority = EventPriority.LOWEST)
     public void onFarm(BlockBreakEvent event) {
+        if (traceRecorder != null && !callingBlockBreakEvent) traceRecorder.recordBreak(event);
+        var start = System.nanoTime();
+        farm(event);
+        metrics.farm.record(System.nanoTime() - start);
+    }
+
+    void farm(BlockBreakEvent event) {
         if (toolUpgrade == null) return;
         if (callingBlockBreakEvent) return; // Do not handle events that are called by FarmingUpgrade.
         var player = event.getPlayer();
@@ -468,34 +854,115 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         var material = centre.getType();
         if (!toolUpgrade.isCrop(material)) return; // Farming only applies to crops.
         var toolItem = player.getInventory().getItemInMainHand();
-        @Nullable HarvestToolType toolType = toolUpgrade.toolType(this, toolItem, player, material).orElse(null);
+        @Nullable HarvestToolType toolType = resolveToolType(player, EquipmentSlot.HAND, toolItem, material);
         if (toolType == null) return; // If the crop was not broken by a harvest tool, proceed with Vanilla mechanics.
         event.setCancelled(true); // Cancel the Vanilla event to cancel the Vanilla mechanics.
         initiateHarvest(player, toolType, toolItem, centre);
     }
 
+    /**
+     * Find the tool type of an item held by a player, using the tool cache if it is enabled.
+     */
+    @Nullable HarvestToolType resolveToolType(Player player, EquipmentSlot hand, ItemStack toolItem, Material crop) {
+        assert toolUpgrade != null;
+        if (toolCache == null) return toolUpgrade.toolType(toolItem, player, crop);
+        return toolCache.toolType(toolUpgrade, player, hand, toolItem, crop);
+    }
+
     /**
      * Called when a player uses a harvest tool on a crop.
      */
     void initiateHarvest(Player player, HarvestToolType toolType, ItemStack toolItem, Block centre) {
         assert toolUpgrade != null;
         if (toolUpgrade.toolSwingParticleEffect()) harvestSwingParticles(player);
-        var toolDamage = toolType.damage();
         var radius = calculateRadius(toolType, toolItem);
         var cropMaterials = toolType.crops() != null ? toolType.crops() : toolUpgrade.cropMaterials();
+        if (snapshotHarvest != null && toolUpgrade.snapshotHarvestRadius <= radius) {
+            var world = centre.getWorld();
+            snapshotHarvest.findCrops(centre, radius, cropMaterials, toolUpgrade.harvestOnlyMature, positions -> {
+                if (toolUpgrade == null) return; // The feature was disabled while the crops were found.
+                if (!player.isOnline() || !player.getWorld().equals(world)) return;
+                if (!toolItem.equals(player.getInventory().getItemInMainHand())) return; // The tool is no longer held.
+                var adjacentCropBlocks = new ArrayList<Block>(positions.length);
+                for (var position : positions) {
+                    adjacentCropBlocks.add(world.getBlockAt(unpackX(position), unpackY(position), unpackZ(position)));
+                }
+                harvestCrops(player, toolType, toolItem, cropMaterials, adjacentCropBlocks);
+            });
+            return;
+        }
         var adjacentCropBlocks = findAdjacentMaterials(cropMaterials, centre, radius, true);
-        var replant = toolType.replant;
-        var applyUnbreaking = toolUpgrade.applyUnbreaking;
-        var collect = toolType.collect;
-        var onlyMature = toolUpgrade.harvestOnlyMature;
+        harvestCrops(player, toolType, toolItem, cropMaterials, adjacentCropBlocks);
+    }
+
+    /**
+     * Harvest the crops found by a harvest tool, until the tool breaks.
+     */
+    void harvestCrops(Player player, HarvestToolType toolType, ItemStack toolItem, Set<Material> cropMaterials, Collection<Block> adjacentCropBlocks) {
+        assert toolUpgrade != null;
+        if (toolUpgrade.bulkHarvestEvent) {
+            @Nullable var approved = callHarvestEvent(player, toolItem, adjacentCropBlocks);
+            if (approved == null) return;
+            adjacentCropBlocks = approved;
+        }
+        if (harvestJobs != null) {
+            harvestJobs.submit(player, toolType, toolItem, cropMaterials, adjacentCropBlocks);
+            return;
+        }
+        var context = harvestContext(toolType);
         for (var adjacentCropBlock : adjacentCropBlocks) {
-            @Nullable var seeds = toolUpgrade.seeds(adjacentCropBlock.getType()).orElse(null);
-            var harvested = harvestCrop(player, adjacentCropBlock, toolItem, replant, collect, onlyMature, seeds);
-            if (harvested) {
-                var destroyed = damageTool(random, player, toolItem, toolDamage, applyUnbreaking);
-                if (destroyed) break; // Stop harvesting if the tool breaks.
-            }
+            var destroyed = harvestCropWithTool(player, toolType, toolItem, cropMaterials, adjacentCropBlock, context);
+            if (destroyed) break; // Stop harvesting if the tool breaks.
+        }
+        context.flush(this, player);
+    }
+
+    /**
+     * Call a FarmingUpgradeHarvestEvent for the crops of a harvest.
+     *
+     * @return The crops that were not vetoed, or null if the harvest was cancelled.
+     */
+    @Nullable List<Block> callHarvestEvent(Player player, ItemStack toolItem, Collection<Block> adjacentCropBlocks) {
+        var blocks = new ArrayList<>(adjacentCropBlocks);
+        var harvestEvent = new FarmingUpgradeHarvestEvent(player, toolItem, blocks);
+        callEvent(harvestEvent);
+        if (harvestEvent.isCancelled()) return null;
+        var vetoed = harvestEvent.getVetoed();
+        if (vetoed.isEmpty()) return blocks;
+        var approved = new ArrayList<Block>(blocks.size() - vetoed.cardinality());
+        var i = 0;
+        while (i < blocks.size()) {
+            if (!vetoed.get(i)) approved.add(blocks.get(i));
+            i++;
         }
+        return approved;
+    }
+
+    /**
+     * Create the context of a new harvest with a tool.
+     */
+    HarvestContext harvestContext(HarvestToolType toolType) {
+        assert toolUpgrade != null;
+        @Nullable var drops = toolUpgrade.aggregateDrops ? new HarvestDrops() : null;
+        @Nullable var collector = toolType.collect && toolUpgrade.batchCollect ? new HarvestCollector() : null;
+        return new HarvestContext(drops, collector, effectBatch(), toolUpgrade.bulkHarvestEvent);
+    }
+
+    /**
+     * Harvest one crop with a harvest tool, and damage the tool if the crop was harvested.
+     *
+     * @param context What the harvest gathers across its crops.
+     * @return If the tool was destroyed.
+     */
+    boolean harvestCropWithTool(Player player, HarvestToolType toolType, ItemStack toolItem, Set<Material> cropMaterials, Block crop, HarvestContext context) {
+        assert toolUpgrade != null;
+        // The crop may have changed since it was found.
+        var type = crop.getType();
+        if (!cropMaterials.contains(type)) return false;
+        @Nullable var seeds = toolUpgrade.seeds(type);
+        var harvested = harvestCrop(player, crop, toolItem, toolType.replant, toolType.collect, toolUpgrade.harvestOnlyMature, seeds, context);
+        if (!harvested) return false;
+        return damageTool(random, player, toolItem, toolType.damage(), toolUpgrade.applyUnbreaking);
     }
 
     /**
@@ -506,7 +973,7 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         //direction.add(new Vector(0.0, -direction.getY(), 0.0)).multiply(1.0 / direction.length());
         Location location = player.getEyeLocation();
         location.add(direction.multiply(1.5));
-        player.getWorld().spawnParticle(Particle.SWEEP_ATTACK, location, 1);
+        spawnParticle(player.getWorld(), Particle.SWEEP_ATTACK, location, 1, 0, 0, 0, null);
     }
 
     int calculateRadius(HarvestToolType toolType, ItemStack toolItem) {
@@ -515,14 +982,15 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         assert toolUpgrade != null;
         var efficiencyRangePerLevel = toolUpgrade.radiusPerEfficiencyLevel;
         radius += toolItem.getEnchantmentLevel(Enchantment.DIG_SPEED) * efficiencyRangePerLevel;
-        radius = Math.min(10, radius); // Do not allow the radius to crash the server.
+        radius = Math.min(toolType.maximumRadius(), radius); // Do not allow the radius to crash the server.
+        if (tickGovernor != null) radius = tickGovernor.radius(radius);
         return (int) radius;
     }
 
     /**
      * Called to harvest one of the crops within range.
      */
-    boolean harvestCrop(Player player, Block block, ItemStack tool, boolean replant, boolean collect, boolean onlyMature, @Nullable Material seed) {
+    boolean harvestCrop(Player player, Block block, ItemStack tool, boolean replant, boolean collect, boolean onlyMature, @Nullable Material seed, HarvestContext context) {
         // If harvest is enabled, only break crops that are mature.
         if (onlyMature) {
             var grown = isMature(block);
@@ -530,12 +998,14 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
                 return false;
             }
         }
-        // Call an event that is handled by the plugin.
+        // Call an event that is handled by the plugin, unless the whole harvest was approved by a FarmingUpgradeHarvestEvent.
         BlockBreakEvent upgradedEvent = new BlockBreakEvent(block, player);
-        callingBlockBreakEvent = true;
-        Bukkit.getServer().getPluginManager().callEvent(upgradedEvent);
-        callingBlockBreakEvent = false;
-        if (upgradedEvent.isCancelled()) return false;
+        if (!context.approved) {
+            callingBlockBreakEvent = true;
+            callEvent(upgradedEvent);
+            callingBlockBreakEvent = false;
+            if (upgradedEvent.isCancelled()) return false;
+        }
         // A state representing the crop after the harvest.
         BlockState state = block.getState();
         // Calculate drops depending on tool.
@@ -543,7 +1013,7 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         // Break the crop and spawn effects.
         assert toolUpgrade != null;
         var particleScale = toolUpgrade.harvestParticleMultiplier;
-        FarmingUpgradePlugin.breakBlockEffect(block, state, Sound.BLOCK_CROP_BREAK, particleScale);
+        context.effects.breakBlock(block, state, Sound.BLOCK_CROP_BREAK, particleScale);
         block.setType(Material.AIR);
         // A seed that can replant the crop.
         @Nullable ItemStack foundSeed = null;
@@ -573,62 +1043,62 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
             } else {
                 delay = toolUpgrade.minimumReplantDelay + random.nextInt(delayRange);
             }
+            if (tickGovernor != null) delay = tickGovernor.replantDelay(delay);
             var replantParticlesMultiplier = toolUpgrade.replantParticleMultiplier;
             if (delay == 0) {
                 // Send a BlockPlaceEvent for the replanted crop.
                 var replacedState = block.getState();
                 block.setType(state.getType());
                 var plantEvent = new BlockPlaceEvent(block, replacedState, block.getRelative(0, -1, 0), foundSeed.clone(), player, true, EquipmentSlot.HAND);
-                callingBlockPlaceEvent = true;
-                this.getServer().getPluginManager().callEvent(plantEvent);
-                callingBlockPlaceEvent = false;
+                if (!context.approved) {
+                    callingBlockPlaceEvent = true;
+                    callEvent(plantEvent);
+                    callingBlockPlaceEvent = false;
+                }
                 if (plantEvent.isCancelled() || !plantEvent.canBuild()) {
                     // If cancelled, revert block state to air and add seed to drops.
                     replacedState.update();
                     itemDrops.add(foundSeed);
                 } else {
-                    if (replantParticlesMultiplier > 0.0) fertiliseEffect(block, replantParticlesMultiplier);
+                    if (replantParticlesMultiplier > 0.0) context.effects.fertilise(block, replantParticlesMultiplier);
                 }
             } else {
-                final @Nullable var finalFoundSeed = foundSeed;
                 boolean drop = upgradedEvent.isDropItems() || mode != GameMode.CREATIVE;
-                getServer().getScheduler().runTaskLater(this, () -> {
-                    // Player must be online for a BlockPlaceEvent to happen, otherwise weird stuff could happen.
-                    if (player.isOnline()) {
-                        if (block.isEmpty()) {
-                            var replacedState = block.getState();
-                            block.setType(state.getType());
-                            var plantEvent = new BlockPlaceEvent(block, replacedState, block.getRelative(0, -1, 0), finalFoundSeed.clone(), player, true, EquipmentSlot.HAND);
-                            callingBlockPlaceEvent = true;
-                            this.getServer().getPluginManager().callEvent(plantEvent);
-                            callingBlockPlaceEvent = false;
-                            if (plantEvent.isCancelled() || !plantEvent.canBuild()) {
-                                replacedState.update();
-                                if (drop) dropItem(block, finalFoundSeed);
-                            } else {
-                                if (replantParticlesMultiplier > 0.0) fertiliseEffect(block, replantParticlesMultiplier);
-                            }
-                        } else {
-                            if (drop) dropItem(block, finalFoundSeed);
-                        }
-                    } else {
-                        if (drop) dropItem(block, finalFoundSeed);
-                    }
-                }, delay);
+                replantScheduler.schedule(block, state.getType(), player, foundSeed, drop, delay);
             }
         }
         // Clear all drops if in creative.
         if (mode == GameMode.CREATIVE) itemDrops.clear();
         // If collect is enabled, items are sent to the inventory if there is space.
         if (collect) {
+            // If collection is batched, the items are added when the harvest is done.
+            if (context.collector != null) {
+                context.collector.add(block, state, itemDrops);
+                return true;
+            }
             Inventory inventory = player.getInventory();
-            Set<ItemStack> notAddedItems = new HashSet<>();
+            List<ItemStack> notAddedItems = new ArrayList<>();
             for (ItemStack item : itemDrops) {
                 notAddedItems.addAll(inventory.addItem(item).values());
             }
             itemDrops = notAddedItems;
             // player.playSound(player.getLocation(), Sound.ENTITY_ITEM_PICKUP, 0.2f, 0.75f + random.nextFloat() * 0.5f);
         }
+        dropHarvestItems(player, block, state, itemDrops, context.drops);
+        return true;
+    }
+
+    /**
+     * Drop the items of a harvested crop, and call a BlockDropItemEvent for them.
+     *
+     * @param harvestDrops Collects the drops of the harvest, or null to drop them at the crop.
+     */
+    void dropHarvestItems(Player player, Block block, BlockState state, Collection<ItemStack> itemDrops, @Nullable HarvestDrops harvestDrops) {
+        // If the drops of the harvest are aggregated, they are spawned when the harvest is done.
+        if (harvestDrops != null) {
+            harvestDrops.add(block, state, itemDrops);
+            return;
+        }
         // Calculate the dropped item entities.
         List<Item> drops = new ArrayList<>();
         for (ItemStack itemDrop : itemDrops) {
@@ -636,21 +1106,63 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
                 drops.add(block.getWorld().dropItemNaturally(block.getLocation(), itemDrop));
             }
         }
+        metrics.itemsSpawned.add(drops.size());
         // Send a BlockDropItemEvent for the drops.
         List<Item> copy = Lists.newArrayList(drops);
         BlockDropItemEvent dropEvent = new BlockDropItemEvent(block, state, player, copy);
-        Bukkit.getServer().getPluginManager().callEvent(dropEvent);
+        callEvent(dropEvent);
         // Kill those items that were removed from the copied drop list, or all of them
         // if the event is cancelled.
         if (dropEvent.isCancelled()) {
             copy.clear();
         }
+        Set<Item> kept = new HashSet<>(copy);
         for (Item drop : drops) {
-            if (!copy.contains(drop)) {
+            if (!kept.contains(drop)) {
                 drop.remove();
             }
         }
-        return true;
+    }
+
+    /**
+     * Replant a harvested crop after its delay. If the crop cannot be planted, the seed is dropped instead.
+     *
+     * @param block The block to replant.
+     * @param crop The crop to plant.
+     * @param player The player that harvested the crop, or null if the player is offline.
+     * @param seed The seed that plants the crop.
+     * @param drop Drop the seed if the crop cannot be planted.
+     * @param effects The batch of the replant effect.
+     */
+    void replantCrop(Block block, Material crop, @Nullable Player player, ItemStack seed, boolean drop, EffectBatch effects) {
+        // Player must be online for a BlockPlaceEvent to happen, otherwise weird stuff could happen.
+        if (player != null && player.isOnline()) {
+            if (block.isEmpty()) {
+                var replacedState = block.getState();
+                block.setType(crop);
+                var plantEvent = new BlockPlaceEvent(block, replacedState, block.getRelative(0, -1, 0), seed.clone(), player, true, EquipmentSlot.HAND);
+                callingBlockPlaceEvent = true;
+                callEvent(plantEvent);
+                callingBlockPlaceEvent = false;
+                if (plantEvent.isCancelled() || !plantEvent.canBuild()) {
+                    replacedState.update();
+                    if (drop) dropItem(block, seed);
+                } else {
+                    var replantParticlesMultiplier = toolUpgrade != null ? toolUpgrade.replantParticleMultiplier : 0.0;
+                    if (replantParticlesMultiplier > 0.0) effects.fertilise(block, replantParticlesMultiplier);
+                }
+            } else {
+                if (drop) dropItem(block, seed);
+            }
+        } else {
+            if (drop) dropItem(block, seed);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onReplantWorldUnload(WorldUnloadEvent event) {
+        if (event.isCancelled()) return;
+        replantScheduler.cancel(event.getWorld());
     }
 
     /**
@@ -662,6 +1174,13 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
      */
     @EventHandler(priority = EventPriority.MONITOR)
     void onPlant(BlockPlaceEvent event) {
+        if (traceRecorder != null && !callingBlockPlaceEvent) traceRecorder.recordPlace(event);
+        var start = System.nanoTime();
+        plant(event);
+        metrics.plant.record(System.nanoTime() - start);
+    }
+
+    void plant(BlockPlaceEvent event) {
         if (callingBlockPlaceEvent) return;
         if (toolUpgrade == null) return;
         var crop = event.getBlock(); // The block/blockState is updated before the event is called. If the event is cancelled, the blockState is reverted to the original. That is why the planting task is delayed by 1 tick.
@@ -674,13 +1193,13 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         ItemStack toolItem;
         {
             var mainHand = player.getInventory().getItemInMainHand();
-            var mainHandTool = toolUpgrade.toolType(this, mainHand, player, cropType).orElse(null);
+            var mainHandTool = resolveToolType(player, EquipmentSlot.HAND, mainHand, cropType);
             if (mainHandTool != null) {
                 toolItem = mainHand.clone();
                 tool = mainHandTool;
             } else {
                 var offHand = player.getInventory().getItemInOffHand();
-                tool = toolUpgrade.toolType(this, offHand, player, cropType).orElse(null);
+                tool = resolveToolType(player, EquipmentSlot.OFF_HAND, offHand, cropType);
                 toolItem = offHand.clone();
             }
         }
@@ -690,6 +1209,7 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         var seedItem = event.getItemInHand().clone();
         seedItem.setAmount(1);
         // Wait one tick, to ensure that the event has finished.
+        metrics.tasksScheduled.increment();
         this.getServer().getScheduler().runTaskLater(this, () -> {
             if (!player.isOnline()) return;
             var inventory = player.getInventory();
@@ -705,8 +1225,9 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
             var centre = crop.getRelative(0, -1, 0);
             if (centre.getType() != soilType) return;
             var radius = calculateRadius(tool, toolItem);
-            var soilBlocks = findAdjacentMaterials(List.of(soilType), centre, radius, false);
+            var soilBlocks = findAdjacentMaterials(EnumSet.of(soilType), centre, radius, false);
             var particleMultiplier = toolUpgrade.plantParticleMultiplier;
+            var effects = effectBatch();
             var creative = player.getGameMode() == GameMode.CREATIVE;
             for (var soil : soilBlocks) {
                 var aboveSoil = soil.getRelative(0, 1, 0);
@@ -727,18 +1248,70 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
                 aboveSoil.setType(cropType);
                 var placeEvent = new BlockPlaceEvent(aboveSoil, savedState, soil, event.getItemInHand(), player, event.canBuild()); //TODO canBuild
                 callingBlockPlaceEvent = true;
-                getServer().getPluginManager().callEvent(placeEvent);
+                callEvent(placeEvent);
                 callingBlockPlaceEvent = false;
                 if (placeEvent.isCancelled() || !placeEvent.canBuild()) {
                     savedState.update(); // Revert if event was cancelled.
                     continue;
                 }
-                FarmingUpgradePlugin.fertiliseEffect(aboveSoil, particleMultiplier);
+                effects.fertilise(aboveSoil, particleMultiplier);
             }
-            FarmingUpgradePlugin.fertiliseEffect(crop, particleMultiplier); // Particles for centre crop.
+            effects.fertilise(crop, particleMultiplier); // Particles for centre crop.
+            effects.flush();
         }, 1);
     }
 
+    /*
+     * Tool cache
+     *
+     * Forget the tool types resolved for a player when the items held by the player may have changed.
+     */
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onToolCacheItemHeld(PlayerItemHeldEvent event) {
+        if (toolCache != null) toolCache.invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onToolCacheSwapHands(PlayerSwapHandItemsEvent event) {
+        if (toolCache != null) toolCache.invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onToolCacheInventoryClick(InventoryClickEvent event) {
+        if (toolCache != null && event.getWhoClicked() instanceof Player player) toolCache.invalidate(player);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onToolCacheInventoryDrag(InventoryDragEvent event) {
+        if (toolCache != null && event.getWhoClicked() instanceof Player player) toolCache.invalidate(player);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onToolCacheDropItem(PlayerDropItemEvent event) {
+        if (toolCache != null) toolCache.invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onToolCachePickupItem(EntityPickupItemEvent event) {
+        if (toolCache != null && event.getEntity() instanceof Player player) toolCache.invalidate(player);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onToolCacheItemBreak(PlayerItemBreakEvent event) {
+        if (toolCache != null) toolCache.invalidate(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onToolCacheChangedWorld(PlayerChangedWorldEvent event) {
+        if (toolCache != null) toolCache.invalidate(event.getPlayer()); // Permissions may depend on the world.
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onToolCacheQuit(PlayerQuitEvent event) {
+        if (toolCache != null) toolCache.invalidate(event.getPlayer());
+    }
+
     /*
      * Upgraded hydration
      */
@@ -781,6 +1354,12 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
      */
     @EventHandler(priority = EventPriority.LOWEST)
     public void onFarmlandDry(BlockFadeEvent event) {
+        var start = System.nanoTime();
+        farmlandDry(event);
+        metrics.farmlandDry.record(System.nanoTime() - start);
+    }
+
+    void farmlandDry(BlockFadeEvent event) {
         if (callingBlockFadeEvent) return; // Do not handle events that are delegated by FarmingUpgrade.
         // Check that this is a Farmland dry or trample event.
         Block farmland = event.getBlock();
@@ -797,7 +1376,7 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
                 int depth = hydrationUpgrade.downwardSearchDistance;
                 int height = hydrationUpgrade.upwardSearchDistance;
                 boolean dry = hydrationUpgrade.dry;
-                farmlandUpgradedChangeMoisture(farmland, range, depth, height, dry);
+                updateFarmland(farmland, range, depth, height, dry);
             }
         }
         // The trampled farmland check is no longer needed after handling the event.
@@ -819,7 +1398,14 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
      */
     @EventHandler(priority = EventPriority.LOWEST)
     public void onFarmlandMoistureChange(MoistureChangeEvent event) {
-        if (hydrationUpgrade == null) return;
+        if (traceRecorder != null && !callingMoistureChangeEvent) traceRecorder.recordMoistureChange(event);
+        var start = System.nanoTime();
+        farmlandMoistureChange(event);
+        metrics.moistureChange.record(System.nanoTime() - start);
+    }
+
+    void farmlandMoistureChange(MoistureChangeEvent event) {
+        if (hydrationUpgrade == null) return;
         if (callingMoistureChangeEvent) return; // Do not handle events that are called by FarmingUpgrade.
         Block farmland = event.getBlock();
         if (farmland.getType() != Material.FARMLAND) return;
@@ -828,7 +1414,7 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         var depth = hydrationUpgrade.downwardSearchDistance;
         var height = hydrationUpgrade.upwardSearchDistance;
         var dry = hydrationUpgrade.dry;
-        farmlandUpgradedChangeMoisture(farmland, range, depth, height, dry);
+        updateFarmland(farmland, range, depth, height, dry);
     }
 
     /**
@@ -842,14 +1428,39 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
      */
     @EventHandler(priority = EventPriority.MONITOR)
     public void onCropGrow(BlockGrowEvent event) {
+        if (traceRecorder != null) traceRecorder.recordGrow(event);
+        var start = System.nanoTime();
+        cropGrow(event);
+        metrics.cropGrow.record(System.nanoTime() - start);
+    }
+
+    void cropGrow(BlockGrowEvent event) {
         if (hydrationUpgrade == null) return;
         if (event.isCancelled()) return;
-        var farmland = event.getBlock().getRelative(0, -1, 0);
+        // Without the sweep, the governor slows hydration by skipping the re-checks of growing crops in some ticks.
+        if (!hydrationUpgrade.sweep && tickGovernor != null && !tickGovernor.isHydrationTick()) return;
+        var block = event.getBlock();
+        // Most growing blocks, such as grass, vines and sugar cane, are not on farmland.
+        if (farmIndex != null && !farmIndex.isFarmland(block.getWorld(), block.getX(), block.getY() - 1, block.getZ())) return;
+        var farmland = block.getRelative(0, -1, 0);
         if (farmland.getType() == Material.FARMLAND) {
             var range = hydrationUpgrade.horizontalSearchRadius;
             var depth = hydrationUpgrade.downwardSearchDistance;
             var height = hydrationUpgrade.upwardSearchDistance;
             var dry = hydrationUpgrade.dry;
+            updateFarmland(farmland, range, depth, height, dry);
+        }
+    }
+
+    /**
+     * Update the moisture of a Farmland. If the hydration sweep is enabled, the Farmland is queued and updated by the
+     * sweep instead.
+     */
+    void updateFarmland(Block farmland, int range, int depth, int height, boolean dry) {
+        assert hydrationUpgrade != null;
+        if (hydrationUpgrade.sweep) {
+            dirtyFarmland.add(farmland);
+        } else {
             farmlandUpgradedChangeMoisture(farmland, range, depth, height, dry);
         }
     }
@@ -858,23 +1469,29 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         if (farmland.getType() == Material.FARMLAND) {
             BlockState state = farmland.getState();
             farmlandDetermineUpgradedMoisture(state, range, depth, height, dry);
-            PluginManager manager = Bukkit.getPluginManager();
-            if (state.getType() == Material.FARMLAND) {
-                MoistureChangeEvent event = new MoistureChangeEvent(farmland, state);
-                callingMoistureChangeEvent = true;
-                manager.callEvent(event);
-                callingMoistureChangeEvent = false;
-                if (!event.isCancelled()) {
-                    state.update(true);
-                }
-            } else {
-                BlockFadeEvent event = new BlockFadeEvent(farmland, state);
-                callingBlockFadeEvent = true;
-                manager.callEvent(event);
-                callingBlockFadeEvent = false;
-                if (!event.isCancelled()) {
-                    state.update(true);
-                }
+            farmlandApplyMoisture(farmland, state);
+        }
+    }
+
+    /**
+     * Call an event for the new state of a Farmland, and update the Farmland if the event is not cancelled.
+     */
+    void farmlandApplyMoisture(Block farmland, BlockState state) {
+        if (state.getType() == Material.FARMLAND) {
+            MoistureChangeEvent event = new MoistureChangeEvent(farmland, state);
+            callingMoistureChangeEvent = true;
+            callEvent(event);
+            callingMoistureChangeEvent = false;
+            if (!event.isCancelled()) {
+                state.update(true);
+            }
+        } else {
+            BlockFadeEvent event = new BlockFadeEvent(farmland, state);
+            callingBlockFadeEvent = true;
+            callEvent(event);
+            callingBlockFadeEvent = false;
+            if (!event.isCancelled()) {
+                state.update(true);
             }
         }
     }
@@ -882,7 +1499,7 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
     void farmlandDetermineUpgradedMoisture(BlockState state, int range, int depth, int height, boolean dry) {
         Material aboveType = state.getBlock().getRelative(0, 1, 0).getType();
         if (!aboveType.isOccluding()) {
-            if (isHydrated(Lists.newArrayList(Material.WATER), state.getBlock(), range, height, depth)) {
+            if (isHydrated(state.getBlock(), range, height, depth)) {
                 BlockData data = state.getBlockData();
                 Farmland farmland = (Farmland) data;
                 farmland.setMoisture(Math.min(farmland.getMoisture() + 1, farmland.getMaximumMoisture()));
@@ -904,8 +1521,98 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         }
     }
 
+    /*
+     * Hydration sweep
+     */
+
+    /**
+     * Farmland waiting to have its moisture updated by the hydration sweep. A Farmland may be queued by many events
+     * before the sweep reaches it, but it is only updated once.
+     */
+    final Set<Block> dirtyFarmland = new LinkedHashSet<>();
+
+    @Nullable BukkitTask hydrationSweepTask;
+
+    /**
+     * Calculates Farmland moisture on worker threads, if enabled.
+     */
+    @Nullable AsyncHydration asyncHydration;
+
+    /**
+     * Start the hydration sweep task if it is enabled, and stop any earlier task.
+     */
+    void restartHydrationSweep() {
+        if (hydrationSweepTask != null) hydrationSweepTask.cancel();
+        hydrationSweepTask = null;
+        if (asyncHydration != null) asyncHydration.shutdown();
+        asyncHydration = null;
+        dirtyFarmland.clear();
+        if (hydrationUpgrade != null && hydrationUpgrade.sweep) {
+            hydrationSweepTask = getServer().getScheduler().runTaskTimer(this, this::sweepFarmland, 1, 1);
+            if (hydrationUpgrade.async) {
+                asyncHydration = new AsyncHydration(this, hydrationUpgrade.asyncThreads, hydrationUpgrade.asyncMaximumStaleTicks);
+            }
+        }
+    }
+
+    /**
+     * Update the moisture of queued Farmland, until the queue is empty or the budget for this tick is spent. The new
+     * states are calculated first, and then the events are called and the states updated together.
+     */
+    void sweepFarmland() {
+        if (dirtyFarmland.isEmpty()) return;
+        var start = System.nanoTime();
+        sweepDirtyFarmland();
+        metrics.hydrationSweep.record(System.nanoTime() - start);
+    }
+
+    void sweepDirtyFarmland() {
+        if (hydrationUpgrade == null) return;
+        if (dirtyFarmland.isEmpty()) return;
+        if (tickGovernor != null && !tickGovernor.isHydrationTick()) return;
+        var start = System.nanoTime();
+        var maximumCount = hydrationUpgrade.sweepMaximumPerTick;
+        var maximumNanos = hydrationUpgrade.sweepMaximumMicrosecondsPerTick * 1000L;
+        var range = hydrationUpgrade.horizontalSearchRadius;
+        var depth = hydrationUpgrade.downwardSearchDistance;
+        var height = hydrationUpgrade.upwardSearchDistance;
+        var dry = hydrationUpgrade.dry;
+        var farmlands = new ArrayList<Block>();
+        var states = new ArrayList<BlockState>();
+        var iterator = dirtyFarmland.iterator();
+        while (iterator.hasNext()) {
+            if (maximumCount > 0 && farmlands.size() >= maximumCount) break;
+            if (maximumNanos > 0 && System.nanoTime() - start >= maximumNanos) break;
+            var farmland = iterator.next();
+            // Farmland that is being calculated asynchronously stays in the queue until the result is applied.
+            if (asyncHydration != null && asyncHydration.inFlight.contains(farmland)) continue;
+            iterator.remove();
+            // Do not load a chunk that was unloaded after the Farmland was queued.
+            if (!farmland.getWorld().isChunkLoaded(farmland.getX() >> 4, farmland.getZ() >> 4)) continue;
+            if (asyncHydration != null) {
+                farmlands.add(farmland);
+                continue;
+            }
+            if (farmland.getType() != Material.FARMLAND) continue;
+            var state = farmland.getState();
+            farmlandDetermineUpgradedMoisture(state, range, depth, height, dry);
+            farmlands.add(farmland);
+            states.add(state);
+        }
+        if (asyncHydration != null) {
+            asyncHydration.submit(farmlands, range, dry, hydrationSearchOffsets);
+            return;
+        }
+        var i = 0;
+        while (i < farmlands.size()) {
+            farmlandApplyMoisture(farmlands.get(i), states.get(i));
+            i++;
+        }
+    }
+
     /**
-     * Determine if a block has water in its vicinity.
+     * Determine if a Farmland has water in its vicinity. The water that hydrated the Farmland the last time is checked
+     * first, before the region is searched.
      *
      * @param block The centre block.
      * @param radius The horizontal radius (of a square circle) to search within.
@@ -913,33 +1620,334 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
      * @param lowest The lowest height to search in, relative to the block.
      * @return If there is water in the searched region.
      */
-    boolean isHydrated(Collection<Material> materials, Block block, int radius, int highest, int lowest) {
+    boolean isHydrated(Block block, int radius, int highest, int lowest) {
+        if (hydrationHints != null) {
+            var hint = hydrationHints.get(block);
+            if (hint != HydrationHints.NONE) {
+                var x = unpackX(hint);
+                var y = unpackY(hint);
+                var z = unpackZ(hint);
+                // The hint is only valid if it is still inside the region and is still water.
+                var inside = Math.abs(x - block.getX()) <= radius && Math.abs(z - block.getZ()) <= radius
+                        && y - block.getY() <= highest && block.getY() - y <= lowest;
+                if (inside && WaterIndex.isWater(block.getWorld().getBlockAt(x, y, z))) {
+                    hydrationHints.hits++;
+                    return true;
+                }
+            }
+            hydrationHints.misses++;
+        }
+        var water = waterIndex != null
+                ? waterIndex.findWater(block, radius, highest, lowest)
+                : findWater(block, hydrationSearchOffsets);
+        if (hydrationHints != null) {
+            if (water != HydrationHints.NONE) {
+                hydrationHints.put(block, water);
+            } else {
+                hydrationHints.remove(block);
+            }
+        }
+        return water != HydrationHints.NONE;
+    }
+
+    /**
+     * Find water or a waterlogged block in the vicinity of a block by reading the blocks in a search region.
+     *
+     * @param block The centre block.
+     * @param offsets Relative positions to search, as consecutive x, y, z triples.
+     * @return The packed position of the first water found, or {@link HydrationHints#NONE}.
+     */
+    static long findWater(Block block, int[] offsets) {
+        var world = block.getWorld();
+        var x = block.getX();
+        var y = block.getY();
+        var z = block.getZ();
+        var i = 0;
+        while (i < offsets.length) {
+            var searchX = x + offsets[i];
+            var searchY = y + offsets[i + 1];
+            var searchZ = z + offsets[i + 2];
+            // The Farmland is hydrated if there is water or a waterlogged block in the search region.
+            if (WaterIndex.isWater(world.getBlockAt(searchX, searchY, searchZ))) {
+                return packPosition(searchX, searchY, searchZ);
+            }
+            i += 3;
+        }
+        return HydrationHints.NONE;
+    }
+
+    /**
+     * Create a table of the relative positions in a search region, ordered by horizontal distance in rings around the
+     * centre, and then by vertical distance.
+     *
+     * @param radius The horizontal radius (of a square circle).
+     * @param highest The greatest height, relative to the centre.
+     * @param lowest The lowest height, relative to the centre.
+     * @return The positions as consecutive x, y, z triples.
+     */
+    static int[] nearestFirstOffsets(int radius, int highest, int lowest) {
+        var offsets = new ArrayList<int[]>();
         var i = -radius;
         while (i <= radius) {
             var k = -radius;
             while (k <= radius) {
                 var j = -lowest;
                 while (j <= highest) {
-                    // Return true if it is raining.
-                    var searchBlock = block.getRelative(i, j, k);
-                    // The Farmland is hydrated if there is water or a waterlogged block in the search region.
-                    if (materials.contains(searchBlock.getType())) {
-                        return true;
-                    } else {
-                        var data = searchBlock.getBlockData();
-                        if (data instanceof Waterlogged waterlogged) {
-                            if (waterlogged.isWaterlogged()) {
-                                return true;
-                            }
-                        }
-                    }
+                    offsets.add(new int[] { i, j, k });
                     j++;
                 }
                 k++;
             }
             i++;
         }
-        return false;
+        offsets.sort(Comparator.<int[]>comparingInt(o -> Math.max(Math.abs(o[0]), Math.abs(o[2])))
+                .thenComparingInt(o -> Math.abs(o[1]))
+                .thenComparingInt(o -> Math.abs(o[0]) + Math.abs(o[2])));
+        var table = new int[offsets.size() * 3];
+        var n = 0;
+        for (var offset : offsets) {
+            table[n++] = offset[0];
+            table[n++] = offset[1];
+            table[n++] = offset[2];
+        }
+        return table;
+    }
+
+    /*
+     * Water index
+     *
+     * Report blocks that may have become, or stopped being, water or waterlogged to the water index. The events are
+     * called before the change happens, so the index reads the blocks again on the next tick.
+     */
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexBlockPlace(BlockPlaceEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        waterIndex.touch(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexBlockBreak(BlockBreakEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        waterIndex.touch(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexFluidFlow(BlockFromToEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        waterIndex.touch(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexBucketEmpty(PlayerBucketEmptyEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        var clicked = event.getBlockClicked();
+        waterIndex.touch(clicked); // A waterlogged block may be filled in place.
+        waterIndex.touch(clicked.getRelative(event.getBlockFace()));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexDispense(BlockDispenseEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        // Dispensers place and pick up water in front of them.
+        if (event.getBlock().getBlockData() instanceof Directional directional) {
+            waterIndex.touch(event.getBlock().getRelative(directional.getFacing()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexBucketFill(PlayerBucketFillEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        waterIndex.touch(event.getBlockClicked());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexFade(BlockFadeEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        waterIndex.touch(event.getBlock()); // Ice melting into water.
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexForm(BlockFormEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        waterIndex.touch(event.getBlock()); // Water freezing into ice.
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexSpongeAbsorb(SpongeAbsorbEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        for (var state : event.getBlocks()) {
+            waterIndex.touch(state.getBlock());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexPistonExtend(BlockPistonExtendEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        for (var block : event.getBlocks()) {
+            waterIndex.touch(block);
+            waterIndex.touch(block.getRelative(event.getDirection()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexPistonRetract(BlockPistonRetractEvent event) {
+        if (waterIndex == null) return;
+        if (event.isCancelled()) return;
+        for (var block : event.getBlocks()) {
+            waterIndex.touch(block);
+            waterIndex.touch(block.getRelative(event.getDirection()));
+            waterIndex.touch(block.getRelative(event.getDirection().getOppositeFace()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWaterIndexChunkUnload(ChunkUnloadEvent event) {
+        if (waterIndex == null) return;
+        waterIndex.unloadChunk(event.getChunk());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onHydrationWorldUnload(WorldUnloadEvent event) {
+        if (event.isCancelled()) return;
+        if (waterIndex != null) waterIndex.unloadWorld(event.getWorld());
+        if (hydrationHints != null) hydrationHints.unloadWorld(event.getWorld());
+        dirtyFarmland.removeIf(farmland -> farmland.getWorld().equals(event.getWorld()));
+    }
+
+    /*
+     * Farm index
+     */
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexChunkLoad(ChunkLoadEvent event) {
+        if (farmIndex != null) farmIndex.loadStored(event.getChunk());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexChunkUnload(ChunkUnloadEvent event) {
+        if (farmIndex != null) farmIndex.unloadChunk(event.getChunk());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexWorldSave(WorldSaveEvent event) {
+        if (farmIndex != null) farmIndex.storeWorld(event.getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexWorldUnload(WorldUnloadEvent event) {
+        if (event.isCancelled()) return;
+        if (farmIndex != null) farmIndex.unloadWorld(event.getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexBlockPlace(BlockPlaceEvent event) {
+        if (farmIndex == null) return;
+        if (event.isCancelled()) return;
+        farmIndex.touch(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexBlockBreak(BlockBreakEvent event) {
+        if (farmIndex == null) return;
+        if (event.isCancelled()) return;
+        farmIndex.touch(event.getBlock());
+        farmIndex.touch(event.getBlock().getRelative(0, 1, 0)); // A crop breaks with its farmland.
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexInteract(PlayerInteractEvent event) {
+        if (farmIndex == null) return;
+        @Nullable var block = event.getClickedBlock();
+        if (block == null) return;
+        if (event.getAction() == Action.RIGHT_CLICK_BLOCK) {
+            farmIndex.touch(block); // Tilling creates farmland.
+        } else if (event.getAction() == Action.PHYSICAL && event.useInteractedBlock() != Event.Result.DENY) {
+            farmIndex.touch(block); // Trampling turns farmland into dirt.
+            farmIndex.touch(block.getRelative(0, 1, 0));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexFade(BlockFadeEvent event) {
+        if (farmIndex == null) return;
+        if (event.isCancelled()) return;
+        farmIndex.touch(event.getBlock());
+        farmIndex.touch(event.getBlock().getRelative(0, 1, 0));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexGrow(BlockGrowEvent event) {
+        if (farmIndex == null) return;
+        if (event.isCancelled()) return;
+        if (event.getNewState().getType() != event.getBlock().getType()) farmIndex.touch(event.getBlock()); // Stems grow fruit beside them.
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexFluidFlow(BlockFromToEvent event) {
+        if (farmIndex == null) return;
+        if (event.isCancelled()) return;
+        farmIndex.touch(event.getToBlock()); // Water washes crops away.
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexEntityChangeBlock(EntityChangeBlockEvent event) {
+        if (farmIndex == null) return;
+        if (event.isCancelled()) return;
+        farmIndex.touch(event.getBlock()); // Villagers plant and harvest crops, and mobs trample farmland.
+        farmIndex.touch(event.getBlock().getRelative(0, 1, 0));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexEntityExplode(EntityExplodeEvent event) {
+        if (farmIndex == null) return;
+        if (event.isCancelled()) return;
+        for (var block : event.blockList()) {
+            farmIndex.touch(block);
+            farmIndex.touch(block.getRelative(0, 1, 0));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexBlockExplode(BlockExplodeEvent event) {
+        if (farmIndex == null) return;
+        if (event.isCancelled()) return;
+        for (var block : event.blockList()) {
+            farmIndex.touch(block);
+            farmIndex.touch(block.getRelative(0, 1, 0));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexPistonExtend(BlockPistonExtendEvent event) {
+        if (farmIndex == null) return;
+        if (event.isCancelled()) return;
+        for (var block : event.getBlocks()) {
+            farmIndex.touch(block);
+            farmIndex.touch(block.getRelative(0, 1, 0));
+            farmIndex.touch(block.getRelative(event.getDirection()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onFarmIndexPistonRetract(BlockPistonRetractEvent event) {
+        if (farmIndex == null) return;
+        if (event.isCancelled()) return;
+        for (var block : event.getBlocks()) {
+            farmIndex.touch(block);
+            farmIndex.touch(block.getRelative(0, 1, 0));
+            farmIndex.touch(block.getRelative(event.getDirection()));
+        }
     }
 
     /*
@@ -951,66 +1959,145 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
      */
     @EventHandler(priority = EventPriority.LOWEST) //TODO: Do not fully grow the fertilised crop until all other crops in radius is fully grown
     void onFertilise(BlockFertilizeEvent e) {
+        if (traceRecorder != null && !callingFertiliseEvent) traceRecorder.recordFertilise(e);
+        var start = System.nanoTime();
+        fertilise(e);
+        metrics.fertilise.record(System.nanoTime() - start);
+    }
+
+    void fertilise(BlockFertilizeEvent e) {
         if (bonemealUpgrade == null) return; // Only handle if upgraded fertilisation is enabled.
         if (callingFertiliseEvent) return; // Do not handle delegated BlockFertilizeEvents.
         var block = e.getBlock();
         if (!bonemealUpgrade.isFertilisable(block.getType())) return; // Upgraded fertilisation mechanics are only enabled for specific crops.
-        e.setCancelled(true); // Cancel to let plugin handle event.
-        var radius = bonemealUpgrade.radius;
-        // Find adjacent fertilisable crops, send a BlockFertilizeEvent for them and apply fertiliser if the event is successful.
-        var fertilisedBlocks = new ArrayList<>(findAdjacentMaterials(bonemealUpgrade.fertilisableMaterials(), block, radius, true));
-        Collections.shuffle(fertilisedBlocks, random);
-        var trials = bonemealUpgrade.trials;
-        var particleMultiplier = bonemealUpgrade.fertiliseParticleMultiplier;
         var player = e.getPlayer();
+        // Fertilisations by dispensers are merged in the next tick. If the chunk has no allowance left, let Minecraft
+        // fertilise the crop.
+        if (player == null && automatedFertilise != null) {
+            if (automatedFertilise.submit(block)) e.setCancelled(true);
+            return;
+        }
+        e.setCancelled(true); // Cancel to let plugin handle event.
         var creative = player != null && player.getGameMode() == GameMode.CREATIVE;
         // Remove a bonemeal if not in creative.
-        if (e.getPlayer() != null && !creative) {
-            PlayerInventory inventory = e.getPlayer().getInventory();
+        if (player != null && !creative) {
+            PlayerInventory inventory = player.getInventory();
             if (!inventory.contains(Material.BONE_MEAL)) return; // Would be weird
             inventory.removeItem(new ItemStack(Material.BONE_MEAL));
         }
-        // Generate an event for all the fertilised crops.
-        for (var fertilisedBlock : fertilisedBlocks) {
-            var upgradedEvent = new BlockFertilizeEvent(fertilisedBlock, e.getPlayer(), Lists.newArrayList(fertilisedBlock.getState()));
+        // Find adjacent fertilisable crops, send a BlockFertilizeEvent for them and apply fertiliser if the event is successful.
+        var fertilisedBlocks = new ArrayList<>(findAdjacentMaterials(bonemealUpgrade.fertilisableMaterials(), block, bonemealUpgrade.radius, true));
+        fertiliseCrops(block, fertilisedBlocks, player, creative, 1);
+    }
+
+    /**
+     * Fertilise crops in a random order, now or after a delay.
+     *
+     * @param block The fertilised crop.
+     * @param fertilisedBlocks The crops to fertilise. They are shuffled.
+     * @param player The player that fertilised the crop, or null for a dispenser.
+     * @param creative If the player is in creative mode.
+     * @param bonemeal The number of bonemeal that was used.
+     */
+    void fertiliseCrops(Block block, List<Block> fertilisedBlocks, @Nullable Player player, boolean creative, int bonemeal) {
+        assert bonemealUpgrade != null;
+        Collections.shuffle(fertilisedBlocks, random);
+        var particleMultiplier = bonemealUpgrade.fertiliseParticleMultiplier;
+        // Generate an event for all the fertilised crops, and remember the crops whose events are cancelled. The states
+        // are read once, and are fertilised directly if there is no delay.
+        var states = new BlockState[fertilisedBlocks.size()];
+        var cancelled = new BitSet(states.length);
+        var i = 0;
+        while (i < states.length) {
+            var fertilisedBlock = fertilisedBlocks.get(i);
+            var state = fertilisedBlock.getState();
+            states[i] = state;
+            var upgradedEvent = new BlockFertilizeEvent(fertilisedBlock, player, Lists.newArrayList(state));
             callingFertiliseEvent = true;
-            getServer().getPluginManager().callEvent(upgradedEvent);
+            callEvent(upgradedEvent);
             callingFertiliseEvent = false;
             // If the event is allowed, apply fertiliser.
-            if (upgradedEvent.isCancelled()) fertilisedBlocks.remove(fertilisedBlock);
-        }
-        var targetGrowthStages = bonemealUpgrade.targetGrowthStages;
-        Runnable fertiliseTask = () -> {
-            var remainingGrowthStages = targetGrowthStages;
-            for (var fertilisedBlock : fertilisedBlocks) {
-                if (!bonemealUpgrade.isFertilisable(fertilisedBlock.getType())) continue;
-                var fertilisedState = fertilisedBlock.getState();
-                // Apply fertiliser to the crop state. Decrease the remaining growth stages by the returned amount.
-                var growth = bonemealUpgrade.fertilisableGrowth(fertilisedState.getType());
-                var currentGrowthStages = remainingGrowthStages;
-                remainingGrowthStages -= trialGrow(random, trials, growth, fertilisedState);
-                if (currentGrowthStages == remainingGrowthStages) continue;
-                fertilisedState.update();
-                FarmingUpgradePlugin.fertiliseEffect(fertilisedBlock, particleMultiplier);
-                if (remainingGrowthStages <= 0) break;
-            }
-            if (remainingGrowthStages != targetGrowthStages) {
-                block.getWorld().playSound(block.getLocation(), Sound.ITEM_BONE_MEAL_USE, 0.10f, 0.8f + random.nextFloat() * 0.4f);
-            }
-            // Drop a bonemeal if there was no change. Only if player is not in creative.
-            if (remainingGrowthStages == targetGrowthStages && !creative) {
-                dropItem(fertilisedBlocks.get(fertilisedBlocks.size() - 1), new ItemStack(Material.BONE_MEAL));
-            }
-        };
+            if (upgradedEvent.isCancelled()) cancelled.set(i);
+            i++;
+        }
         var delayRange = bonemealUpgrade.maximumDelay - bonemealUpgrade.minimumDelay;
         var delay = delayRange == 0 ? bonemealUpgrade.minimumDelay : bonemealUpgrade.minimumDelay + random.nextInt(delayRange);
         if (delay == 0) {
-            fertiliseTask.run();
+            completeFertilise(block, fertilisedBlocks, cancelled, states, creative, bonemeal);
         } else {
-            getServer().getScheduler().runTaskLater(this, fertiliseTask, delay);
-            for (var fertilisedBlock : fertilisedBlocks) {
-                FarmingUpgradePlugin.fertiliseEffect(fertilisedBlock, 0.5 * particleMultiplier);
+            // Journal the fertilisation, so that it is done even if the server stops before the delay.
+            var journalId = 0L;
+            if (pendingJournal != null) {
+                var positions = new long[states.length - cancelled.cardinality()];
+                var j = 0;
+                i = cancelled.nextClearBit(0);
+                while (i < states.length) {
+                    var fertilisedBlock = fertilisedBlocks.get(i);
+                    positions[j] = packPosition(fertilisedBlock.getX(), fertilisedBlock.getY(), fertilisedBlock.getZ());
+                    j++;
+                    i = cancelled.nextClearBit(i + 1);
+                }
+                journalId = pendingJournal.addFertilise(block.getWorld().getUID(), packPosition(block.getX(), block.getY(), block.getZ()), positions, creative, bonemeal);
+            }
+            final var finalJournalId = journalId;
+            metrics.tasksScheduled.increment();
+            getServer().getScheduler().runTaskLater(this, () -> {
+                completeFertilise(block, fertilisedBlocks, cancelled, null, creative, bonemeal);
+                if (pendingJournal != null && finalJournalId != 0) pendingJournal.done(finalJournalId);
+            }, delay);
+            var effects = effectBatch();
+            i = cancelled.nextClearBit(0);
+            while (i < states.length) {
+                effects.fertilise(fertilisedBlocks.get(i), 0.5 * particleMultiplier);
+                i = cancelled.nextClearBit(i + 1);
             }
+            effects.flush();
+        }
+    }
+
+    /**
+     * Apply fertiliser to the crops around a fertilised crop, until the target growth stages of every bonemeal are
+     * reached. A bonemeal is dropped for each bonemeal whose target growth stages were not needed, unless the player
+     * is in creative mode.
+     *
+     * @param block The fertilised crop.
+     * @param fertilisedBlocks The crops to fertilise, in order.
+     * @param cancelled The indices of the crops that are not fertilised.
+     * @param states The states of the crops, or null to read them.
+     * @param creative If the player was in creative mode.
+     * @param bonemeal The number of bonemeal that was used.
+     */
+    void completeFertilise(Block block, List<Block> fertilisedBlocks, BitSet cancelled, @Nullable BlockState[] states, boolean creative, int bonemeal) {
+        if (bonemealUpgrade == null) return;
+        var particleMultiplier = bonemealUpgrade.fertiliseParticleMultiplier;
+        var targetGrowthStages = bonemealUpgrade.targetGrowthStages * bonemeal;
+        var remainingGrowthStages = targetGrowthStages;
+        var effects = effectBatch();
+        @Nullable Block lastBlock = null;
+        var i = cancelled.nextClearBit(0);
+        while (i < fertilisedBlocks.size()) {
+            var fertilisedBlock = fertilisedBlocks.get(i);
+            lastBlock = fertilisedBlock;
+            var fertilisedState = states != null ? states[i] : fertilisedBlock.getState();
+            i = cancelled.nextClearBit(i + 1);
+            var type = fertilisedState.getType();
+            if (!bonemealUpgrade.isFertilisable(type)) continue;
+            // Apply fertiliser to the crop state. Decrease the remaining growth stages by the returned amount.
+            var stages = trialGrow(random, bonemealUpgrade.growthDistribution(type), fertilisedState);
+            if (stages == 0) continue;
+            remainingGrowthStages -= stages;
+            fertilisedState.update();
+            effects.fertilise(fertilisedBlock, particleMultiplier);
+            if (remainingGrowthStages <= 0) break;
+        }
+        effects.flush();
+        if (remainingGrowthStages != targetGrowthStages) {
+            block.getWorld().playSound(block.getLocation(), Sound.ITEM_BONE_MEAL_USE, 0.10f, 0.8f + random.nextFloat() * 0.4f);
+        }
+        // Drop the bonemeal that was not needed. Only if player is not in creative.
+        var unused = bonemealUpgrade.targetGrowthStages > 0 ? Math.max(0, remainingGrowthStages) / bonemealUpgrade.targetGrowthStages : bonemeal;
+        if (unused > 0 && !creative) {
+            dropItem(lastBlock != null ? lastBlock : block, new ItemStack(Material.BONE_MEAL, unused));
         }
     }
 
@@ -1019,6 +2106,7 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         var world = dropLocation.getWorld();
         if (world == null) return;
         world.dropItemNaturally(dropLocation, itemStack);
+        metrics.itemsSpawned.increment();
         world.playSound(dropLocation, Sound.ENTITY_ITEM_PICKUP, 1.0f, 0.8f + random.nextFloat() * 0.4f);
     }
 
@@ -1062,30 +2150,88 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
      */
     @EventHandler(priority = EventPriority.MONITOR)
     void onWalk(PlayerMoveEvent event) {
+        if (traceRecorder != null) traceRecorder.recordMove(event);
+        var start = System.nanoTime();
+        walk(event);
+        metrics.walk.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Handle a movement. Most movements are rotations, movements within a block or movements away from farmland, so
+     * these are filtered out with block coordinates and the farmland marks of chunks before any block is read.
+     */
+    void walk(PlayerMoveEvent event) {
         if (event.isCancelled()) return;
         if (!(trampleUpgrade != null && trampleUpgrade.trampleByWalking)) return;
+        assert walkFilter != null;
+        var to = event.getTo();
+        if (to == null) return;
+        var from = event.getFrom();
+        var x = to.getBlockX();
+        var y = to.getBlockY();
+        var z = to.getBlockZ();
+        if (x == from.getBlockX() && y == from.getBlockY() && z == from.getBlockZ()) return;
         var player = event.getPlayer();
+        var world = to.getWorld();
+        if (world == null) return;
+        // Remember the block before the sneak check, so that walking back onto a block that was left sneaking is seen.
+        if (!walkFilter.enter(player, world, x, y, z)) return;
         if (player.isSneaking()) return;
-        if (event.getTo() == null) return;
-        var targetBlock = event.getTo().getBlock();
-        var sourceBlock = event.getFrom().getBlock();
-        if (targetBlock.equals(sourceBlock)) return;
-        var material = targetBlock.getType();
-        if (material != Material.FARMLAND) return;
+        if (farmIndex != null ? !farmIndex.isFarmland(world, x, y, z) : !walkFilter.mayContainFarmland(world, x >> 4, z >> 4)) return;
+        var targetBlock = world.getBlockAt(x, y, z);
+        if (targetBlock.getType() != Material.FARMLAND) return;
         attemptCropTrample(targetBlock, player);
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWalkInteract(PlayerInteractEvent event) {
+        if (walkFilter == null) return;
+        if (event.getAction() != Action.RIGHT_CLICK_BLOCK) return;
+        @Nullable var block = event.getClickedBlock();
+        if (block != null) walkFilter.invalidate(block.getWorld(), block.getX(), block.getZ()); // Tilling creates farmland.
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWalkBlockPlace(BlockPlaceEvent event) {
+        if (walkFilter == null) return;
+        var block = event.getBlock();
+        walkFilter.invalidate(block.getWorld(), block.getX(), block.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWalkChunkUnload(ChunkUnloadEvent event) {
+        if (walkFilter != null) walkFilter.unloadChunk(event.getChunk());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWalkWorldUnload(WorldUnloadEvent event) {
+        if (event.isCancelled()) return;
+        if (walkFilter != null) walkFilter.unloadWorld(event.getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    void onWalkQuit(PlayerQuitEvent event) {
+        if (walkFilter != null) walkFilter.quit(event.getPlayer());
+    }
+
     /**
-     * Attempt to trample the crop on a farmland.
+     * Attempt to trample the crop on a farmland, unless the farmland was trampled within the cooldown.
      */
     void attemptCropTrample(Block farmlandBlock, Player player) {
+        if (walkFilter != null && !walkFilter.trample(farmlandBlock.getWorld(), farmlandBlock.getX(), farmlandBlock.getY(), farmlandBlock.getZ())) return;
+        var start = System.nanoTime();
+        trampleCrop(farmlandBlock, player);
+        metrics.trample.record(System.nanoTime() - start);
+    }
+
+    void trampleCrop(Block farmlandBlock, Player player) {
         var crop = farmlandBlock.getRelative(0, 1, 0);
         assert trampleUpgrade != null;
         if (!trampleUpgrade.isCropTrampleable(crop.getType())) return;
         // Send an InteractEvent for the trampled crop.
         var trampleEvent = new PlayerInteractEvent(player, Action.PHYSICAL, null, crop, BlockFace.SELF);
         callingPlayerInteractEvent = true;
-        this.getServer().getPluginManager().callEvent(trampleEvent);
+        callEvent(trampleEvent);
         callingPlayerInteractEvent = false;
         if (trampleEvent.useInteractedBlock() == Event.Result.ALLOW) {
             // Calculate the state of the crop after being trampled.
@@ -1096,7 +2242,7 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
             // Send a BlockFadeEvent to indicate the crop being reset.
             var fadeEvent = new BlockFadeEvent(crop, state);
             callingBlockFadeEvent = true;
-            this.getServer().getPluginManager().callEvent(fadeEvent);
+            callEvent(fadeEvent);
             callingBlockFadeEvent = false;
             if (!fadeEvent.isCancelled()) {
                 state.update(true);
@@ -1111,47 +2257,121 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
      */
 
     /**
-     * Use Bernoulli trials to determine how many growth stages to add to a crop.
+     * Call an event and count it.
+     */
+    void callEvent(Event event) {
+        metrics.eventsCalled.increment();
+        getServer().getPluginManager().callEvent(event);
+    }
+
+    /**
+     * Pack block coordinates into a long. The x and z coordinates use 26 bits each and y uses 12 bits.
+     */
+    static long packPosition(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    static int unpackX(long position) {
+        return (int) (position >> 38);
+    }
+
+    static int unpackY(long position) {
+        return (int) (position << 52 >> 52);
+    }
+
+    static int unpackZ(long position) {
+        return (int) (position << 26 >> 38);
+    }
+
+    /**
+     * Determine how many growth stages to add to a crop, as the number of successful Bernoulli trials, and add them to
+     * the state. The number is drawn from the precomputed distribution of the trials with a single random number.
+     *
+     * @param distribution See {@link #growthDistribution(int, double)}.
+     * @return The number of stages that were added.
      */
-    static int trialGrow(Random random, int trials, double probability, BlockState state) {
-        var stageDifference = 0;
+    static int trialGrow(Random random, double[] distribution, BlockState state) {
         var data = state.getBlockData();
-        if (data instanceof Ageable ageable) {
-            // Run Bernoulli trials to determine growth stage increase.
-            var stages = 0;
-            var i = 0;
-            while (i < trials) {
-                if (random.nextDouble() < probability) {
-                    stages++;
-                }
-                i++;
-            }
-            // Add the growth stages to the state.
-            var currentStage = ageable.getAge();
-            var newStage = Math.min(ageable.getAge() + stages, ageable.getMaximumAge());
-            stageDifference = newStage - currentStage;
-            ageable.setAge(newStage);
-        }
+        if (!(data instanceof Ageable ageable)) return 0;
+        var stages = sampleGrowth(random, distribution);
+        // Add the growth stages to the state.
+        var currentStage = ageable.getAge();
+        var newStage = Math.min(currentStage + stages, ageable.getMaximumAge());
+        if (newStage == currentStage) return 0;
+        ageable.setAge(newStage);
         state.setBlockData(data);
-        return stageDifference;
+        return newStage - currentStage;
     }
 
-    static void breakBlockEffect(Block block, BlockState state, Sound sound, double particleScale) {
+    /**
+     * The cumulative binomial distribution of the number of successes in a number of Bernoulli trials. Element k is
+     * the probability of at most k successes, and the last element is exactly 1.
+     */
+    static double[] growthDistribution(int trials, double probability) {
+        var n = Math.max(0, trials);
+        var p = Math.min(1.0, Math.max(0.0, probability));
+        var distribution = new double[n + 1];
+        if (p == 0.0 || p == 1.0) {
+            // All the probability is at no successes or at every trial succeeding.
+            Arrays.fill(distribution, p == 0.0 ? 1.0 : 0.0);
+            distribution[n] = 1.0;
+            return distribution;
+        }
+        // The probability of k + 1 successes follows from the probability of k successes.
+        var mass = Math.pow(1.0 - p, n);
+        var odds = p / (1.0 - p);
+        var cumulative = 0.0;
+        var k = 0;
+        while (k < n) {
+            cumulative += mass;
+            distribution[k] = Math.min(1.0, cumulative);
+            mass *= odds * (n - k) / (k + 1);
+            k++;
+        }
+        distribution[n] = 1.0;
+        return distribution;
+    }
+
+    /**
+     * Draw a number of successes from a cumulative distribution with one random number.
+     */
+    static int sampleGrowth(Random random, double[] distribution) {
+        var sample = random.nextDouble();
+        var k = 0;
+        while (sample >= distribution[k]) k++;
+        return k;
+    }
+
+    void breakBlockEffect(Block block, BlockState state, Sound sound, double particleScale) {
         breakBlockEffect(block, state, sound, 0, particleScale);
     }
 
-    static void breakBlockEffect(Block block, BlockState state, Sound sound, int radius, double particleScale) {
+    void breakBlockEffect(Block block, BlockState state, Sound sound, int radius, double particleScale) {
         var particles = (10 * (2 * radius + 1)) / (4 * radius * radius + 4 * radius + 1);
         var location = block.getLocation().add(0.5, 0.5, 0.5);
         assert location.getWorld() != null;
-        location.getWorld().spawnParticle(Particle.BLOCK_CRACK, location, (int) (particles * particleScale), 0.5, 0.5, 0.5, state.getBlockData());
+        spawnParticle(location.getWorld(), Particle.BLOCK_CRACK, location, (int) (particles * particleScale), 0.5, 0.5, 0.5, state.getBlockData());
         location.getWorld().playSound(location, sound, 1, 1);
     }
 
-    static void fertiliseEffect(Block block, double particleScale) {
+    void fertiliseEffect(Block block, double particleScale) {
         var location = block.getLocation().add(0.5, 0.5, 0.375);
         assert location.getWorld() != null;
-        location.getWorld().spawnParticle(Particle.COMPOSTER, location, (int) (15 * particleScale), 0.4, 0.4, 0.35);
+        spawnParticle(location.getWorld(), Particle.COMPOSTER, location, (int) (15 * particleScale), 0.4, 0.4, 0.35, null);
+    }
+
+    /**
+     * Spawn particles, through the level of detail if it is enabled. Fewer particles are spawned while the governor
+     * degrades them.
+     */
+    <T> void spawnParticle(World world, Particle particle, Location location, int count, double offsetX, double offsetY, double offsetZ, @Nullable T data) {
+        if (tickGovernor != null) count = tickGovernor.particles(count);
+        if (count <= 0) return;
+        if (particleLod != null) {
+            particleLod.spawn(world, particle, location, count, offsetX, offsetY, offsetZ, data);
+        } else {
+            world.spawnParticle(particle, location, count, offsetX, offsetY, offsetZ, data);
+        }
     }
 
     /**
@@ -1186,7 +2406,7 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         boolean destroyed = false;
         if (tool.getItemMeta() instanceof Damageable) {
             var damageEvent = new PlayerItemDamageEvent(player, tool, damage);
-            this.getServer().getPluginManager().callEvent(damageEvent);
+            callEvent(damageEvent);
             if (!damageEvent.isCancelled()) {
                 var eventDamage = damageEvent.getDamage();
                 var meta = tool.getItemMeta();
@@ -1222,208 +2442,29 @@ public final class FarmingUpgradePlugin extends JavaPlugin implements Listener {
         }
     }
 
-    Collection<Block> findAdjacentMaterials(Collection<Material> materials, Block centre, int radius, boolean addCentre) {
-        return findAdjacentMaterials(materials, ImmutableList.of(), centre, radius, addCentre);
-    }
-
     /**
-     * Find all horizontally adjacent blocks.
+     * Find all horizontally adjacent blocks. See {@link AdjacencySearch}.
      */
-    Collection<Block> findAdjacentMaterials(Collection<Material> materials, Collection<Material> ignore, Block centre, int radius, boolean addCentre) {
-        var diameter = radius + radius + 1;
-        var centreIndex = gridIndex(diameter, radius, 0, 0);
-        var adjacent = new Block[diameter * diameter]; // Nullable block array representing a square.
+    Collection<Block> findAdjacentMaterials(Set<Material> materials, Block centre, int radius, boolean addCentre) {
         // In some cases where packets
         if (!materials.contains(centre.getType())) {
             getLogger().warning("Centre material was removed too quickly! Could not find adjacent materials.");
             return Collections.emptyList();
         }
-        if (addCentre) adjacent[centreIndex] = centre;
-        // +x axis
-        {
-            var previous = centre;
-            var i = 1;
-            while (i <= radius) {
-                @Nullable var foundAdjacent = locateAdjacentInColumn(materials, ignore, centre, i, 0, previous).orElse(null);
-                if (foundAdjacent == null) break;
-                adjacent[gridIndex(diameter, radius, i, 0)] = foundAdjacent;
-                previous = foundAdjacent;
-                i++;
-            }
-        }
-        // -x axis
-        {
-            var previous = centre;
-            var i = -1;
-            while (i >= -radius) {
-                @Nullable var foundAdjacent = locateAdjacentInColumn(materials, ignore, centre, i, 0, previous).orElse(null);
-                if (foundAdjacent == null) break;
-                adjacent[gridIndex(diameter, radius, i, 0)] = foundAdjacent;
-                previous = foundAdjacent;
-                i--;
-            }
-        }
-        // +z axis
-        {
-            var previous = centre;
-            var k = 1;
-            while (k <= radius) {
-                @Nullable var foundAdjacent = locateAdjacentInColumn(materials, ignore, centre, 0, k, previous).orElse(null);
-                if (foundAdjacent == null) break;
-                adjacent[gridIndex(diameter, radius, 0, k)] = foundAdjacent;
-                previous = foundAdjacent;
-                k++;
-            }
-        }
-        // -z axis
-        {
-            var previous = centre;
-            var k = -1;
-            while (k >= -radius) {
-                @Nullable var foundAdjacent = locateAdjacentInColumn(materials, ignore, centre, 0, k, previous).orElse(null);
-                if (foundAdjacent == null) break;
-                adjacent[gridIndex(diameter, radius, 0, k)] = foundAdjacent;
-                previous = foundAdjacent;
-                k--;
-            }
-        }
-        // +x, +z corners
-        {
-            int i = 1;
-            while (i <= radius) {
-                int k = 1;
-                while (k <= radius) {
-                    @Nullable var p1 = adjacent[gridIndex(diameter, radius, i - 1, k)];
-                    @Nullable var p2 = adjacent[gridIndex(diameter, radius, i, k - 1)];
-                    if (p1 == null && p2 == null) {
-                        k++;
-                        continue;
-                    }
-                    @Nullable var foundAdjacent = locateAdjacentInColumn(materials, ignore, centre, i, k, p1, p2).orElse(null);
-                    if (foundAdjacent == null) {
-                        k++;
-                        continue;
-                    }
-                    adjacent[gridIndex(diameter, radius, i, k)] = foundAdjacent;
-                    k++;
-                }
-                i++;
-            }
-        }
-        // -x, +z corners
-        {
-            int i = -1;
-            while (i >= -radius) {
-                int k = 1;
-                while (k <= radius) {
-                    @Nullable var p1 = adjacent[gridIndex(diameter, radius, i + 1, k)];
-                    @Nullable var p2 = adjacent[gridIndex(diameter, radius, i, k - 1)];
-                    if (p1 == null && p2 == null) {
-                        k++;
-                        continue;
-                    }
-                    @Nullable var foundAdjacent = locateAdjacentInColumn(materials, ignore, centre, i, k, p1, p2).orElse(null);
-                    if (foundAdjacent == null) {
-                        k++;
-                        continue;
-                    }
-                    adjacent[gridIndex(diameter, radius, i, k)] = foundAdjacent;
-                    k++;
-                }
-                i--;
-            }
-        }
-        // -x, -z corners
-        {
-            int i = -1;
-            while (i >= -radius) {
-                int k = -1;
-                while (k >= -radius) {
-                    @Nullable var p1 = adjacent[gridIndex(diameter, radius, i + 1, k)];
-                    @Nullable var p2 = adjacent[gridIndex(diameter, radius, i, k + 1)];
-                    if (p1 == null && p2 == null) {
-                        k--;
-                        continue;
-                    }
-                    @Nullable var foundAdjacent = locateAdjacentInColumn(materials, ignore, centre, i, k, p1, p2).orElse(null);
-                    if (foundAdjacent == null) {
-                        k--;
-                        continue;
-                    }
-                    adjacent[gridIndex(diameter, radius, i, k)] = foundAdjacent;
-                    k--;
-                }
-                i--;
-            }
-        }
-        // +x, -z corners
-        {
-            int i = 1;
-            while (i <= radius) {
-                int k = -1;
-                while (k >= -radius) {
-                    @Nullable var p1 = adjacent[gridIndex(diameter, radius, i - 1, k)];
-                    @Nullable var p2 = adjacent[gridIndex(diameter, radius, i, k + 1)];
-                    if (p1 == null && p2 == null) {
-                        k--;
-                        continue;
-                    }
-                    @Nullable var foundAdjacent = locateAdjacentInColumn(materials, ignore, centre, i, k, p1, p2).orElse(null);
-                    if (foundAdjacent == null) {
-                        k--;
-                        continue;
-                    }
-                    adjacent[gridIndex(diameter, radius, i, k)] = foundAdjacent;
-                    k--;
-                }
-                i++;
-            }
-        }
-        var adjacentSet = new ArrayList<Block>();
-        for (@Nullable var block : adjacent) {
-            if (block != null) adjacentSet.add(block);
-        }
-        return adjacentSet;
-    }
-
-    /**
-     * Convert relative coordinates to grid index.
-     */
-    static int gridIndex(int diameter, int radius, int i, int k) {
-        return ((i + radius) * diameter) + (k + radius);
-    }
-
-    static Optional<Block> locateAdjacentInColumn(Collection<Material> materials, Block centre, int i, int k, Block... adjacents) {
-        return locateAdjacentInColumn(materials, ImmutableList.of(), centre, i, k, adjacents);
-    }
-
-    /**
-     * Locate a block with a material adjacent to a centre block, in a specific column.
-     *
-     * @param materials Materials to locate.
-     * @param ignore Materials to treat as air.
-     * @param centre Centre block which the search is relative to. Uses same height as
-     * @param i Column x-coordinate relative to centre block.
-     * @param k Column z-coordinate relative to centre block.
-     * @param adjacents Nullable adjacent blocks.
-     * @return The adjecent block, if found.
-     */
-    static Optional<Block> locateAdjacentInColumn(Collection<Material> materials, Collection<Material> ignore, Block centre, int i, int k, Block... adjacents) {
-        for (@Nullable var adjacent : adjacents) {
-            if (adjacent == null) continue;
-            var j = adjacent.getY() - centre.getY();
-            var above = centre.getRelative(i, j + 1, k);
-            var aboveType = above.getType();
-            if (materials.contains(aboveType)) return Optional.of(above);
-            var beside = centre.getRelative(i, j, k);
-            var besideType = beside.getType();
-            if (materials.contains(besideType)) return Optional.of(beside);
-            if (!beside.isPassable()) continue;
-            var below = centre.getRelative(i, j - 1, k);
-            var belowType = below.getType();
-            if (materials.contains(belowType)) return Optional.of(below);
+        var world = centre.getWorld();
+        AdjacencySearch.BlockReader reader = new AdjacencySearch.WorldReader(world);
+        // Skip the blocks that are not crops, if every material is indexed.
+        if (farmIndex != null && farmIndex.cropMaterials.containsAll(materials)) reader = new FarmIndex.Reader(farmIndex, world, reader);
+        var positions = AdjacencySearch.search(reader, materials, centre.getX(), centre.getY(), centre.getZ(), radius, addCentre);
+        metrics.blocksVisited.add(positions.visited);
+        var blocks = new ArrayList<Block>(positions.size());
+        var i = 0;
+        while (i < positions.size()) {
+            var position = positions.get(i);
+            blocks.add(world.getBlockAt(unpackX(position), unpackY(position), unpackZ(position)));
+            i++;
         }
-        return Optional.empty();
+        return blocks;
     }
 
     /**
@@ -0,0 +1,138 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Collects the drops of a harvest into the inventory of the player in one pass, instead of adding the drops of each
+ * crop separately.
+ * <p>
+ * The inventory is planned on a copy of its storage contents, in the same way as {@link
+ * org.bukkit.inventory.Inventory#addItem(ItemStack...)} adds items one at a time: an item first fills the first slot
+ * with a similar item that is not full, and then the first empty slot. The result is the same as adding every drop in
+ * order. The slots with a similar item that is not full are indexed by material, and the first empty slot is tracked,
+ * so each item is added without scanning the inventory. Only the slots that changed are written back, and the drops
+ * that did not fit are dropped at the crop they came from.
+ */
+final class HarvestCollector {
+
+    /**
+     * The drops of a harvested crop.
+     */
+    record Entry(Block block, BlockState state, List<ItemStack> items) { }
+
+    final List<Entry> entries = new ArrayList<>();
+
+    void add(Block block, BlockState state, Collection<ItemStack> itemDrops) {
+        entries.add(new Entry(block, state, new ArrayList<>(itemDrops)));
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Add the collected drops to the inventory of the player, and drop the remainder. If the player is offline,
+     * everything is dropped.
+     *
+     * @param harvestDrops Collects the remainder, or null to drop it at the crops.
+     */
+    void collect(FarmingUpgradePlugin plugin, Player player, @Nullable HarvestDrops harvestDrops) {
+        if (player.isOnline()) plan(player);
+        for (var entry : entries) {
+            plugin.dropHarvestItems(player, entry.block(), entry.state(), entry.items(), harvestDrops);
+        }
+        entries.clear();
+    }
+
+    /**
+     * Add as many of the drops as possible to the inventory, and replace the drops of each entry with the remainder.
+     */
+    void plan(Player player) {
+        var inventory = player.getInventory();
+        var contents = inventory.getStorageContents();
+        var maximumStackSize = inventory.getMaxStackSize();
+        var changed = new boolean[contents.length];
+        // Slots with items that are not full, in slot order, by material.
+        var partial = new EnumMap<Material, List<Integer>>(Material.class);
+        var slot = 0;
+        while (slot < contents.length) {
+            @Nullable var content = contents[slot];
+            if (content != null && content.getType() != Material.AIR && content.getAmount() < content.getMaxStackSize()) {
+                partial.computeIfAbsent(content.getType(), x -> new ArrayList<>()).add(slot);
+            }
+            slot++;
+        }
+        var empty = nextEmpty(contents, 0);
+        var index = 0;
+        while (index < entries.size()) {
+            var entry = entries.get(index);
+            var remainder = new ArrayList<ItemStack>();
+            for (var item : entry.items()) {
+                if (item.getType() == Material.AIR || item.getAmount() <= 0) continue;
+                var amount = item.getAmount();
+                @Nullable var slots = partial.get(item.getType());
+                // Fill the slots with similar items that are not full.
+                if (slots != null) {
+                    var iterator = slots.iterator();
+                    while (amount > 0 && iterator.hasNext()) {
+                        var partialSlot = iterator.next();
+                        var content = contents[partialSlot];
+                        if (!item.isSimilar(content)) continue;
+                        var moved = Math.min(amount, content.getMaxStackSize() - content.getAmount());
+                        content.setAmount(content.getAmount() + moved);
+                        changed[partialSlot] = true;
+                        amount -= moved;
+                        if (content.getAmount() >= content.getMaxStackSize()) iterator.remove();
+                    }
+                }
+                // Put the rest in empty slots.
+                while (amount > 0 && empty < contents.length) {
+                    var stack = item.clone();
+                    var size = Math.min(amount, maximumStackSize);
+                    stack.setAmount(size);
+                    contents[empty] = stack;
+                    changed[empty] = true;
+                    amount -= size;
+                    if (size < stack.getMaxStackSize()) insertSorted(partial.computeIfAbsent(stack.getType(), x -> new ArrayList<>()), empty);
+                    empty = nextEmpty(contents, empty + 1);
+                }
+                if (amount > 0) {
+                    var rest = item.clone();
+                    rest.setAmount(amount);
+                    remainder.add(rest);
+                }
+            }
+            entries.set(index, new Entry(entry.block(), entry.state(), remainder));
+            index++;
+        }
+        slot = 0;
+        while (slot < contents.length) {
+            if (changed[slot]) inventory.setItem(slot, contents[slot]);
+            slot++;
+        }
+    }
+
+    static int nextEmpty(ItemStack[] contents, int from) {
+        var slot = from;
+        while (slot < contents.length) {
+            @Nullable var content = contents[slot];
+            if (content == null || content.getType() == Material.AIR) return slot;
+            slot++;
+        }
+        return contents.length;
+    }
+
+    static void insertSorted(List<Integer> slots, int slot) {
+        var index = 0;
+        while (index < slots.size() && slots.get(index) < slot) index++;
+        slots.add(index, slot);
+    }
+
+}
@@ -0,0 +1,39 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * What a harvest gathers across its crops: the effects, the drops, if drops are aggregated, and the items to collect,
+ * if collection is batched.
+ */
+final class HarvestContext {
+
+    final @Nullable HarvestDrops drops;
+
+    final @Nullable HarvestCollector collector;
+
+    final EffectBatch effects;
+
+    /**
+     * The crops were approved by a {@link FarmingUpgradeHarvestEvent}, so no events are called for each crop.
+     */
+    final boolean approved;
+
+    HarvestContext(@Nullable HarvestDrops drops, @Nullable HarvestCollector collector, EffectBatch effects, boolean approved) {
+        this.drops = drops;
+        this.collector = collector;
+        this.effects = effects;
+        this.approved = approved;
+    }
+
+    /**
+     * Spawn the gathered effects, collect the gathered items and spawn the gathered drops.
+     */
+    void flush(FarmingUpgradePlugin plugin, Player player) {
+        effects.flush();
+        if (collector != null && !collector.isEmpty()) collector.collect(plugin, player, drops);
+        if (drops != null && !drops.isEmpty()) drops.spawn(plugin, player);
+    }
+
+}
@@ -0,0 +1,128 @@
+package no.hyp.farmingupgrade;
+
+import com.google.common.collect.Lists;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.entity.Item;
+import org.bukkit.entity.Player;
+import org.bukkit.event.block.BlockDropItemEvent;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Collects the drops of a harvest, so that they can be spawned together as few item entities as possible.
+ * <p>
+ * The drops are grouped by chunk and merged into full stacks. The stacks of a chunk are spawned at the centre of the
+ * crops that were harvested in the chunk, and a single BlockDropItemEvent is called for them. The block of the event is
+ * the first crop that was harvested in the chunk.
+ */
+final class HarvestDrops {
+
+    static final class ChunkDrops {
+
+        final Block block;
+
+        final BlockState state;
+
+        double x;
+
+        double y;
+
+        double z;
+
+        int count;
+
+        final List<ItemStack> items = new ArrayList<>();
+
+        ChunkDrops(Block block, BlockState state) {
+            this.block = block;
+            this.state = state;
+        }
+
+    }
+
+    final Map<Long, ChunkDrops> chunks = new LinkedHashMap<>();
+
+    /**
+     * Add the drops of a harvested crop.
+     *
+     * @param block The harvested crop.
+     * @param state The state of the crop before it was harvested.
+     * @param itemDrops The drops.
+     */
+    void add(Block block, BlockState state, Collection<ItemStack> itemDrops) {
+        var key = WaterIndex.chunkKey(block.getX() >> 4, block.getZ() >> 4);
+        @Nullable var chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = new ChunkDrops(block, state);
+            chunks.put(key, chunk);
+        }
+        chunk.x += block.getX();
+        chunk.y += block.getY();
+        chunk.z += block.getZ();
+        chunk.count++;
+        for (var itemDrop : itemDrops) {
+            if (itemDrop.getType().isItem() && itemDrop.getType() != Material.AIR && itemDrop.getAmount() >= 1) {
+                merge(chunk.items, itemDrop);
+            }
+        }
+    }
+
+    /**
+     * Merge an item into a list of stacks, filling stacks of similar items up to their maximum size first.
+     */
+    static void merge(List<ItemStack> stacks, ItemStack item) {
+        var amount = item.getAmount();
+        for (var stack : stacks) {
+            if (amount == 0) return;
+            var room = stack.getMaxStackSize() - stack.getAmount();
+            if (room <= 0 || !stack.isSimilar(item)) continue;
+            var moved = Math.min(room, amount);
+            stack.setAmount(stack.getAmount() + moved);
+            amount -= moved;
+        }
+        var maximum = Math.max(1, item.getMaxStackSize());
+        while (amount > 0) {
+            var stack = item.clone();
+            var size = Math.min(maximum, amount);
+            stack.setAmount(size);
+            stacks.add(stack);
+            amount -= size;
+        }
+    }
+
+    boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    /**
+     * Spawn the collected drops and call a BlockDropItemEvent for each chunk. Items that are removed from the event,
+     * or all items if the event is cancelled, are removed again.
+     */
+    void spawn(FarmingUpgradePlugin plugin, Player player) {
+        for (var chunk : chunks.values()) {
+            if (chunk.items.isEmpty()) continue;
+            var world = chunk.block.getWorld();
+            var location = new Location(world, chunk.x / chunk.count, chunk.y / chunk.count, chunk.z / chunk.count);
+            List<Item> drops = new ArrayList<>(chunk.items.size());
+            for (var item : chunk.items) {
+                drops.add(world.dropItemNaturally(location, item));
+            }
+            plugin.metrics.itemsSpawned.add(drops.size());
+            List<Item> copy = Lists.newArrayList(drops);
+            var dropEvent = new BlockDropItemEvent(chunk.block, chunk.state, player, copy);
+            plugin.callEvent(dropEvent);
+            if (dropEvent.isCancelled()) copy.clear();
+            var kept = new HashSet<>(copy);
+            for (var drop : drops) {
+                if (!kept.contains(drop)) drop.remove();
+            }
+        }
+        chunks.clear();
+    }
+
+}
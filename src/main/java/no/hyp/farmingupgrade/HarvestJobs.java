@@ -0,0 +1,172 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.*;
+
+/**
+ * Spreads harvests across ticks. Each harvest is a job that harvests one crop at a time, and the jobs of different
+ * players take turns, until the time budget of the tick is spent.
+ * <p>
+ * A crop can only be claimed by one job at a time. Crops that are already claimed by a job are left out of new jobs.
+ * A job stops when the tool breaks, in the same way as a harvest that is done at once, or when the player stops
+ * holding the tool.
+ */
+final class HarvestJobs {
+
+    static final class Job {
+
+        final Player player;
+
+        final World world;
+
+        final FarmingUpgradePlugin.HarvestToolType toolType;
+
+        final ItemStack toolItem;
+
+        final Set<Material> cropMaterials;
+
+        final Block[] crops;
+
+        final HarvestContext context;
+
+        int next;
+
+        Job(Player player, World world, FarmingUpgradePlugin.HarvestToolType toolType, ItemStack toolItem, Set<Material> cropMaterials, Block[] crops, HarvestContext context) {
+            this.player = player;
+            this.world = world;
+            this.toolType = toolType;
+            this.toolItem = toolItem;
+            this.cropMaterials = cropMaterials;
+            this.crops = crops;
+            this.context = context;
+        }
+
+    }
+
+    final FarmingUpgradePlugin plugin;
+
+    final long budgetNanos;
+
+    final BukkitTask task;
+
+    /**
+     * The queued jobs of each player.
+     */
+    final Map<UUID, ArrayDeque<Job>> players = new HashMap<>();
+
+    /**
+     * The players with jobs, in the order of their turns.
+     */
+    final ArrayDeque<UUID> turns = new ArrayDeque<>();
+
+    /**
+     * Crops that are claimed by a job.
+     */
+    final Set<Block> claimed = new HashSet<>();
+
+    /**
+     * Time spent on jobs in the current tick.
+     */
+    long spentNanos;
+
+    HarvestJobs(FarmingUpgradePlugin plugin, int maximumMicrosecondsPerTick) {
+        this.plugin = plugin;
+        this.budgetNanos = maximumMicrosecondsPerTick * 1000L;
+        this.task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1, 1);
+    }
+
+    /**
+     * Queue a harvest and start it with the rest of the budget of this tick.
+     */
+    void submit(Player player, FarmingUpgradePlugin.HarvestToolType toolType, ItemStack toolItem, Set<Material> cropMaterials, Collection<Block> crops) {
+        var unclaimed = new ArrayList<Block>(crops.size());
+        for (var crop : crops) {
+            if (claimed.add(crop)) unclaimed.add(crop);
+        }
+        if (unclaimed.isEmpty()) return;
+        var job = new Job(player, player.getWorld(), toolType, toolItem, cropMaterials, unclaimed.toArray(new Block[0]), plugin.harvestContext(toolType));
+        var jobs = players.get(player.getUniqueId());
+        if (jobs == null) {
+            jobs = new ArrayDeque<>();
+            players.put(player.getUniqueId(), jobs);
+            turns.add(player.getUniqueId());
+        }
+        jobs.add(job);
+        drain();
+    }
+
+    void tick() {
+        spentNanos = 0;
+        drain();
+    }
+
+    /**
+     * Harvest one crop from each player's first job in turn, until there are no jobs or the budget is spent. What
+     * unfinished jobs have gathered is flushed at the end, so that it appears in the same tick.
+     */
+    void drain() {
+        var start = System.nanoTime();
+        if (turns.isEmpty()) return;
+        while (!turns.isEmpty() && spentNanos + (System.nanoTime() - start) < budgetNanos) {
+            var playerId = turns.poll();
+            var jobs = players.get(playerId);
+            var job = jobs.peek();
+            assert job != null;
+            if (step(job)) {
+                release(job);
+                job.context.flush(plugin, job.player);
+                jobs.poll();
+            }
+            if (jobs.isEmpty()) {
+                players.remove(playerId);
+            } else {
+                turns.add(playerId);
+            }
+        }
+        for (var jobs : players.values()) {
+            for (var job : jobs) job.context.flush(plugin, job.player);
+        }
+        spentNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Harvest the next crop of a job.
+     *
+     * @return If the job is finished.
+     */
+    boolean step(Job job) {
+        var player = job.player;
+        if (!player.isOnline() || !player.getWorld().equals(job.world)) return true;
+        if (!job.toolItem.equals(player.getInventory().getItemInMainHand())) return true; // The tool is no longer held.
+        var crop = job.crops[job.next];
+        job.next++;
+        claimed.remove(crop);
+        var destroyed = plugin.harvestCropWithTool(player, job.toolType, job.toolItem, job.cropMaterials, crop, job.context);
+        return destroyed || job.next >= job.crops.length;
+    }
+
+    /**
+     * Release the crops that a job did not harvest.
+     */
+    void release(Job job) {
+        var i = job.next;
+        while (i < job.crops.length) {
+            claimed.remove(job.crops[i]);
+            i++;
+        }
+    }
+
+    void shutdown() {
+        task.cancel();
+        players.clear();
+        turns.clear();
+        claimed.clear();
+    }
+
+}
@@ -0,0 +1,78 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A bounded cache of the water block that last hydrated each Farmland. Most Farmland is hydrated by the same water
+ * block every time, so the water search can check that block before it searches the whole region.
+ * <p>
+ * Positions are packed with {@link FarmingUpgradePlugin#packPosition(int, int, int)}. The least recently used hint is
+ * evicted when a world holds more than the maximum number of hints.
+ */
+final class HydrationHints {
+
+    static final long NONE = Long.MIN_VALUE;
+
+    final int maximumSize;
+
+    final Map<UUID, LinkedHashMap<Long, Long>> worlds = new HashMap<>();
+
+    long hits;
+
+    long misses;
+
+    HydrationHints(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * The packed position of the water that last hydrated a Farmland, or {@link #NONE}.
+     */
+    long get(Block farmland) {
+        @Nullable var hints = worlds.get(farmland.getWorld().getUID());
+        if (hints == null) return NONE;
+        @Nullable var hint = hints.get(FarmingUpgradePlugin.packPosition(farmland.getX(), farmland.getY(), farmland.getZ()));
+        return hint != null ? hint : NONE;
+    }
+
+    void put(Block farmland, long water) {
+        var hints = worlds.computeIfAbsent(farmland.getWorld().getUID(), x -> new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > maximumSize;
+            }
+        });
+        hints.put(FarmingUpgradePlugin.packPosition(farmland.getX(), farmland.getY(), farmland.getZ()), water);
+    }
+
+    void remove(Block farmland) {
+        @Nullable var hints = worlds.get(farmland.getWorld().getUID());
+        if (hints == null) return;
+        hints.remove(FarmingUpgradePlugin.packPosition(farmland.getX(), farmland.getY(), farmland.getZ()));
+    }
+
+    void unloadWorld(World world) {
+        worlds.remove(world.getUID());
+    }
+
+    int size() {
+        var size = 0;
+        for (var hints : worlds.values()) {
+            size += hints.size();
+        }
+        return size;
+    }
+
+    double hitRate() {
+        var lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+}
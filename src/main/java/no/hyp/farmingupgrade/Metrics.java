@@ -0,0 +1,225 @@
+package no.hyp.farmingupgrade;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the work done by the plugin. The counters are LongAdders, so they can be updated
+ * from any thread without contention, and read while they are updated.
+ */
+final class Metrics {
+
+    /**
+     * Latency histogram buckets are powers of two of nanoseconds, from about 1 microsecond to about 1 second. Bucket
+     * i counts samples of at most 2^(MINIMUM_SHIFT + i) nanoseconds, and the last bucket counts the rest.
+     */
+    static final int MINIMUM_SHIFT = 10;
+
+    static final int BUCKETS = 21;
+
+    /**
+     * A latency histogram.
+     */
+    static final class Timer {
+
+        final String name;
+
+        final String help;
+
+        final LongAdder count = new LongAdder();
+
+        final LongAdder totalNanos = new LongAdder();
+
+        final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+
+        Timer(String name, String help) {
+            this.name = name;
+            this.help = help;
+            var i = 0;
+            while (i < buckets.length) {
+                buckets[i] = new LongAdder();
+                i++;
+            }
+        }
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            buckets[bucket(nanos)].increment();
+        }
+
+        /**
+         * An upper bound of a quantile of the samples, in nanoseconds, or -1 if there are no samples.
+         */
+        long quantile(double quantile) {
+            var total = count.sum();
+            if (total == 0) return -1;
+            var rank = (long) Math.ceil(quantile * total);
+            var cumulative = 0L;
+            var i = 0;
+            while (i < BUCKETS) {
+                cumulative += buckets[i].sum();
+                if (cumulative >= rank) return 1L << (MINIMUM_SHIFT + i);
+                i++;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            for (var bucket : buckets) bucket.reset();
+        }
+
+    }
+
+    static final class Counter {
+
+        final String name;
+
+        final String help;
+
+        final LongAdder value = new LongAdder();
+
+        Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        void add(long amount) {
+            value.add(amount);
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+    }
+
+    final List<Timer> timers = new ArrayList<>();
+
+    final List<Counter> counters = new ArrayList<>();
+
+    final Timer farm = timer("farm", "Handling of crops broken with a harvest tool.");
+
+    final Timer plant = timer("plant", "Handling of seeds planted with a harvest tool.");
+
+    final Timer fertilise = timer("fertilise", "Handling of fertilised crops.");
+
+    final Timer moistureChange = timer("moisture_change", "Handling of Farmland moisture changes.");
+
+    final Timer farmlandDry = timer("farmland_dry", "Handling of Farmland drying to dirt.");
+
+    final Timer cropGrow = timer("crop_grow", "Handling of growing crops.");
+
+    final Timer hydrationSweep = timer("hydration_sweep", "Hydration sweeps.");
+
+    final Timer walk = timer("walk", "Handling of player movement.");
+
+    final Timer trample = timer("trample", "Crop trample attempts.");
+
+    final Counter blocksVisited = counter("blocks_visited", "Columns of blocks read when searching for adjacent blocks.");
+
+    final Counter eventsCalled = counter("events_called", "Events called by the plugin.");
+
+    final Counter itemsSpawned = counter("items_spawned", "Item entities spawned by the plugin.");
+
+    final Counter tasksScheduled = counter("tasks_scheduled", "Delayed replants and tasks scheduled by the plugin.");
+
+    final Counter farmIndexRebuilds = counter("farm_index_rebuilds", "Chunks whose farm index was built from a snapshot.");
+
+    final Counter fertilisesCoalesced = counter("fertilises_coalesced", "Fertilisations by dispensers merged into another fertilisation.");
+
+    Timer timer(String name, String help) {
+        var timer = new Timer(name, help);
+        timers.add(timer);
+        return timer;
+    }
+
+    Counter counter(String name, String help) {
+        var counter = new Counter(name, help);
+        counters.add(counter);
+        return counter;
+    }
+
+    static int bucket(long nanos) {
+        if (nanos <= 1L << MINIMUM_SHIFT) return 0;
+        // The number of bits needed for nanos - 1 is the exponent of the smallest power of two that is at least nanos.
+        var exponent = 64 - Long.numberOfLeadingZeros(nanos - 1);
+        return Math.min(BUCKETS, exponent - MINIMUM_SHIFT);
+    }
+
+    void reset() {
+        for (var timer : timers) timer.reset();
+        for (var counter : counters) counter.value.reset();
+    }
+
+    /**
+     * Lines that summarise the metrics, for the stats command.
+     */
+    List<String> summary() {
+        var lines = new ArrayList<String>();
+        for (var timer : timers) {
+            var count = timer.count.sum();
+            if (count == 0) {
+                lines.add(String.format(Locale.ROOT, "%s: 0 calls.", timer.name));
+                continue;
+            }
+            lines.add(String.format(Locale.ROOT, "%s: %d calls, mean %.1f us, p99 < %.1f us, total %.1f ms.", timer.name, count,
+                    timer.totalNanos.sum() / (1000.0 * count), timer.quantile(0.99) / 1000.0, timer.totalNanos.sum() / 1_000_000.0));
+        }
+        for (var counter : counters) {
+            lines.add(String.format(Locale.ROOT, "%s: %d.", counter.name, counter.value.sum()));
+        }
+        return lines;
+    }
+
+    /**
+     * The metrics in the Prometheus text format.
+     */
+    String prometheus() {
+        var builder = new StringBuilder();
+        for (var timer : timers) {
+            var name = "farmingupgrade_" + timer.name + "_seconds";
+            builder.append("# HELP ").append(name).append(' ').append(timer.help).append('\n');
+            builder.append("# TYPE ").append(name).append(" histogram\n");
+            var cumulative = 0L;
+            var i = 0;
+            while (i < BUCKETS) {
+                cumulative += timer.buckets[i].sum();
+                var bound = (1L << (MINIMUM_SHIFT + i)) / 1e9;
+                builder.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+                i++;
+            }
+            cumulative += timer.buckets[BUCKETS].sum();
+            builder.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            builder.append(name).append("_sum ").append(String.format(Locale.ROOT, "%.9f", timer.totalNanos.sum() / 1e9)).append('\n');
+            builder.append(name).append("_count ").append(cumulative).append('\n');
+        }
+        for (var counter : counters) {
+            var name = "farmingupgrade_" + counter.name + "_total";
+            builder.append("# HELP ").append(name).append(' ').append(counter.help).append('\n');
+            builder.append("# TYPE ").append(name).append(" counter\n");
+            builder.append(name).append(' ').append(counter.value.sum()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Write the metrics to a file in the Prometheus text format. The file is replaced at once, so a scraper never
+     * reads half a file.
+     */
+    void write(Path path) throws IOException {
+        var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(temporary, prometheus(), StandardCharsets.UTF_8);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
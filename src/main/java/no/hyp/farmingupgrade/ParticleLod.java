@@ -0,0 +1,98 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Location;
+import org.bukkit.Particle;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Sends particles to each viewer separately, with fewer particles the farther away the viewer is. Viewers beyond the
+ * view distance get no particles, and each player gets at most a maximum number of particles per tick.
+ * <p>
+ * Within the full detail distance a viewer gets every particle. Beyond it, the number of particles falls with the
+ * distance, in the same way as the size of the effect on the screen. A fractional number of particles is rounded up
+ * or down at random, so distant viewers still see a fair share of small effects.
+ */
+final class ParticleLod {
+
+    final Plugin plugin;
+
+    final Random random;
+
+    final double viewDistanceSquared;
+
+    final double fullDetailDistance;
+
+    /**
+     * The maximum number of particles for each player in a tick, or 0 for no maximum.
+     */
+    final int maximumParticlesPerTick;
+
+    /**
+     * The particles sent to each player in this tick.
+     */
+    final Map<UUID, Integer> sent = new HashMap<>();
+
+    boolean resetScheduled;
+
+    ParticleLod(Plugin plugin, Random random, double viewDistance, double fullDetailDistance, int maximumParticlesPerTick) {
+        this.plugin = plugin;
+        this.random = random;
+        this.viewDistanceSquared = viewDistance * viewDistance;
+        this.fullDetailDistance = fullDetailDistance;
+        this.maximumParticlesPerTick = maximumParticlesPerTick;
+    }
+
+    <T> void spawn(World world, Particle particle, Location location, int count, double offsetX, double offsetY, double offsetZ, @Nullable T data) {
+        if (count <= 0) return;
+        var x = location.getX();
+        var y = location.getY();
+        var z = location.getZ();
+        for (var player : world.getPlayers()) {
+            var viewer = player.getLocation();
+            var dx = viewer.getX() - x;
+            var dy = viewer.getY() - y;
+            var dz = viewer.getZ() - z;
+            var distanceSquared = dx * dx + dy * dy + dz * dz;
+            if (distanceSquared > viewDistanceSquared) continue;
+            var particles = particlesAt(count, distanceSquared);
+            if (maximumParticlesPerTick > 0) {
+                var id = player.getUniqueId();
+                int spent = sent.getOrDefault(id, 0);
+                particles = Math.min(particles, maximumParticlesPerTick - spent);
+                if (particles <= 0) continue;
+                sent.put(id, spent + particles);
+                scheduleReset();
+            }
+            if (particles <= 0) continue;
+            player.spawnParticle(particle, location, particles, offsetX, offsetY, offsetZ, data);
+        }
+    }
+
+    /**
+     * The number of particles that a viewer at a distance gets.
+     */
+    int particlesAt(int count, double distanceSquared) {
+        if (distanceSquared <= fullDetailDistance * fullDetailDistance) return count;
+        var scaled = count * fullDetailDistance / Math.sqrt(distanceSquared);
+        var particles = (int) scaled;
+        if (random.nextDouble() < scaled - particles) particles++;
+        return particles;
+    }
+
+    void scheduleReset() {
+        if (resetScheduled || !plugin.isEnabled()) return;
+        resetScheduled = true;
+        plugin.getServer().getScheduler().runTask(plugin, () -> {
+            resetScheduled = false;
+            sent.clear();
+        });
+    }
+
+}
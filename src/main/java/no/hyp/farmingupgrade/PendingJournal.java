@@ -0,0 +1,374 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of pending replants and delayed fertilisations, so that they are not lost when the server
+ * stops. An entry is added when the task is scheduled and marked as done when it has run. Entries that are not done
+ * when the plugin is enabled are replayed.
+ * <p>
+ * The journal is a memory-mapped file of records. Each record is its length, a CRC32 checksum and a payload, and the
+ * first record that is empty, incomplete or corrupt ends the journal. Writes are forced to disk once per tick.
+ * <p>
+ * When the file is full, the pending entries are compacted into a second file with a higher generation, which then
+ * replaces the first file. The header of the new file is written last, so a crash during compaction leaves the old
+ * file as the newest valid journal.
+ */
+final class PendingJournal {
+
+    static final int MAGIC = 0x46554a4c;
+
+    /**
+     * Magic number and generation.
+     */
+    static final int HEADER_SIZE = 12;
+
+    /**
+     * Payload length and checksum.
+     */
+    static final int RECORD_HEADER_SIZE = 8;
+
+    static final int MINIMUM_CAPACITY = 1 << 20;
+
+    static final byte REPLANT = 1;
+
+    static final byte FERTILISE = 2;
+
+    static final byte DONE = 3;
+
+    /**
+     * A pending replant. See {@link ReplantScheduler.Replant}.
+     */
+    record Replant(long id, UUID world, long position, Material crop, UUID player, Material seed, boolean drop) { }
+
+    /**
+     * A pending fertilisation of crops around a centre crop, with the number of bonemeal that was used.
+     */
+    record Fertilise(long id, UUID world, long centre, long[] positions, boolean creative, int bonemeal) { }
+
+    final Plugin plugin;
+
+    final Path[] paths;
+
+    /**
+     * The index of the current file in {@link #paths}.
+     */
+    int current;
+
+    long generation;
+
+    @Nullable FileChannel channel;
+
+    @Nullable MappedByteBuffer buffer;
+
+    /**
+     * The payloads of the pending entries, by id.
+     */
+    final Map<Long, byte[]> pending = new LinkedHashMap<>();
+
+    long nextId = 1;
+
+    boolean forceScheduled;
+
+    /**
+     * Set if the journal could not be written. A broken journal ignores new entries.
+     */
+    boolean broken;
+
+    /**
+     * Open the journal in a directory, and read the pending entries of the newest valid file.
+     */
+    PendingJournal(Plugin plugin, Path directory) throws IOException {
+        this.plugin = plugin;
+        Files.createDirectories(directory);
+        this.paths = new Path[] { directory.resolve("pending.0.journal"), directory.resolve("pending.1.journal") };
+        var newest = -1;
+        var newestGeneration = -1L;
+        var i = 0;
+        while (i < paths.length) {
+            var fileGeneration = readGeneration(paths[i]);
+            if (fileGeneration > newestGeneration) {
+                newest = i;
+                newestGeneration = fileGeneration;
+            }
+            i++;
+        }
+        if (newest >= 0) {
+            read(paths[newest]);
+            this.current = newest;
+            this.generation = newestGeneration;
+        } else {
+            this.current = 1;
+            this.generation = 0;
+        }
+        compact(0);
+    }
+
+    static long readGeneration(Path path) throws IOException {
+        if (!Files.exists(path) || Files.size(path) < HEADER_SIZE) return -1;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) { }
+            header.flip();
+            if (header.getInt() != MAGIC) return -1;
+            return header.getLong();
+        }
+    }
+
+    void read(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.position(HEADER_SIZE);
+            var crc = new CRC32();
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                var length = buffer.getInt();
+                var checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) break;
+                var payload = new byte[length];
+                buffer.get(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) break;
+                var record = ByteBuffer.wrap(payload);
+                var type = record.get();
+                var id = record.getLong();
+                if (type == DONE) {
+                    pending.remove(id);
+                } else {
+                    pending.put(id, payload);
+                }
+                nextId = Math.max(nextId, id + 1);
+            }
+        }
+    }
+
+    /**
+     * Add a pending replant.
+     *
+     * @return The id of the entry.
+     */
+    long addReplant(UUID world, long position, Material crop, UUID player, Material seed, boolean drop) {
+        var cropName = crop.name().getBytes(StandardCharsets.UTF_8);
+        var seedName = seed.name().getBytes(StandardCharsets.UTF_8);
+        var id = nextId++;
+        var payload = ByteBuffer.allocate(1 + 8 + 16 + 8 + 2 + cropName.length + 16 + 2 + seedName.length + 1);
+        payload.put(REPLANT).putLong(id);
+        putUuid(payload, world);
+        payload.putLong(position);
+        payload.putShort((short) cropName.length).put(cropName);
+        putUuid(payload, player);
+        payload.putShort((short) seedName.length).put(seedName);
+        payload.put(drop ? (byte) 1 : (byte) 0);
+        add(id, payload.array());
+        return id;
+    }
+
+    /**
+     * Add a pending fertilisation.
+     *
+     * @return The id of the entry.
+     */
+    long addFertilise(UUID world, long centre, long[] positions, boolean creative, int bonemeal) {
+        var id = nextId++;
+        var payload = ByteBuffer.allocate(1 + 8 + 16 + 8 + 4 + 8 * positions.length + 1 + 4);
+        payload.put(FERTILISE).putLong(id);
+        putUuid(payload, world);
+        payload.putLong(centre);
+        payload.putInt(positions.length);
+        for (var position : positions) payload.putLong(position);
+        payload.put(creative ? (byte) 1 : (byte) 0);
+        payload.putInt(bonemeal);
+        add(id, payload.array());
+        return id;
+    }
+
+    /**
+     * Mark an entry as done.
+     */
+    void done(long id) {
+        if (broken) return;
+        if (pending.remove(id) == null) return;
+        var payload = ByteBuffer.allocate(1 + 8).put(DONE).putLong(id).array();
+        try {
+            // If the journal is full, compaction leaves the entry out, so the record is not needed.
+            if (!hasRoom(payload)) {
+                compact(0);
+                return;
+            }
+            write(payload);
+        } catch (IOException exception) {
+            fail(exception);
+        }
+    }
+
+    void add(long id, byte[] payload) {
+        if (broken) return;
+        try {
+            if (!hasRoom(payload)) compact(RECORD_HEADER_SIZE + payload.length);
+            pending.put(id, payload);
+            write(payload);
+        } catch (IOException exception) {
+            fail(exception);
+        }
+    }
+
+    boolean hasRoom(byte[] payload) {
+        assert buffer != null;
+        // Keep room for an empty record header that ends the journal.
+        return buffer.remaining() >= RECORD_HEADER_SIZE + payload.length + RECORD_HEADER_SIZE;
+    }
+
+    void write(byte[] payload) {
+        assert buffer != null;
+        var crc = new CRC32();
+        crc.update(payload);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        if (!forceScheduled && plugin.isEnabled()) {
+            forceScheduled = true;
+            plugin.getServer().getScheduler().runTask(plugin, this::force);
+        }
+    }
+
+    /**
+     * Write the pending entries to the other file, with room for an extra record, and continue in that file.
+     */
+    void compact(int extra) throws IOException {
+        var size = HEADER_SIZE + extra + RECORD_HEADER_SIZE;
+        for (var payload : pending.values()) size += RECORD_HEADER_SIZE + payload.length;
+        var capacity = Math.max(MINIMUM_CAPACITY, Integer.highestOneBit(size) << 2);
+        var target = 1 - current;
+        var targetChannel = FileChannel.open(paths[target], StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var targetBuffer = targetChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        // Invalidate the old header, in case the file is reused.
+        targetBuffer.putInt(0, 0);
+        targetBuffer.position(HEADER_SIZE);
+        var crc = new CRC32();
+        for (var payload : pending.values()) {
+            crc.reset();
+            crc.update(payload);
+            targetBuffer.putInt(payload.length);
+            targetBuffer.putInt((int) crc.getValue());
+            targetBuffer.put(payload);
+        }
+        var end = targetBuffer.position();
+        // Clear the rest of the file, in case the file is reused.
+        while (targetBuffer.remaining() >= 8) targetBuffer.putLong(0);
+        while (targetBuffer.hasRemaining()) targetBuffer.put((byte) 0);
+        targetBuffer.force();
+        targetBuffer.putInt(0, MAGIC);
+        targetBuffer.putLong(4, generation + 1);
+        targetBuffer.force();
+        targetBuffer.position(end);
+        if (channel != null) channel.close();
+        this.channel = targetChannel;
+        this.buffer = targetBuffer;
+        this.current = target;
+        this.generation++;
+    }
+
+    void force() {
+        forceScheduled = false;
+        if (broken || buffer == null) return;
+        buffer.force();
+    }
+
+    void fail(IOException exception) {
+        plugin.getLogger().log(Level.SEVERE, "Could not write the pending replant journal. Pending replants will not be saved.", exception);
+        broken = true;
+    }
+
+    /**
+     * Force the journal to disk and close it.
+     */
+    void close() {
+        force();
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException exception) {
+            plugin.getLogger().log(Level.SEVERE, "Could not close the pending replant journal.", exception);
+        }
+        channel = null;
+        buffer = null;
+        broken = true;
+    }
+
+    /**
+     * The pending replants, in the order they were added.
+     */
+    List<Replant> pendingReplants() {
+        var replants = new ArrayList<Replant>();
+        for (var payload : pending.values()) {
+            var record = ByteBuffer.wrap(payload);
+            if (record.get() != REPLANT) continue;
+            var id = record.getLong();
+            var world = getUuid(record);
+            var position = record.getLong();
+            @Nullable var crop = Material.getMaterial(getString(record));
+            var player = getUuid(record);
+            @Nullable var seed = Material.getMaterial(getString(record));
+            var drop = record.get() != 0;
+            if (crop == null || seed == null) {
+                plugin.getLogger().warning("Skipping a pending replant with an unknown material.");
+                continue;
+            }
+            replants.add(new Replant(id, world, position, crop, player, seed, drop));
+        }
+        return replants;
+    }
+
+    /**
+     * The pending fertilisations, in the order they were added.
+     */
+    List<Fertilise> pendingFertilises() {
+        var fertilises = new ArrayList<Fertilise>();
+        for (var payload : pending.values()) {
+            var record = ByteBuffer.wrap(payload);
+            if (record.get() != FERTILISE) continue;
+            var id = record.getLong();
+            var world = getUuid(record);
+            var centre = record.getLong();
+            var positions = new long[record.getInt()];
+            var i = 0;
+            while (i < positions.length) {
+                positions[i] = record.getLong();
+                i++;
+            }
+            var creative = record.get() != 0;
+            // Entries written before the bonemeal count was added used one bonemeal.
+            var bonemeal = record.hasRemaining() ? record.getInt() : 1;
+            fertilises.add(new Fertilise(id, world, centre, positions, creative, bonemeal));
+        }
+        return fertilises;
+    }
+
+    static void putUuid(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    }
+
+    static UUID getUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    static String getString(ByteBuffer buffer) {
+        var bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,136 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Replants harvested crops after a delay. Every pending replant is kept in a hashed timing wheel that is advanced by a
+ * single repeating task, instead of scheduling one task for each crop. The task only runs while replants are pending.
+ * <p>
+ * Each slot of the wheel holds the replants that are due on the ticks that map to it. Replants with a delay longer
+ * than the wheel stay in their slot until the wheel has turned enough times.
+ */
+final class ReplantScheduler {
+
+    static final int WHEEL_SIZE = 256;
+
+    static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /**
+     * A pending replant. The crop is planted by the player with the seed, and the seed is dropped if the crop cannot
+     * be planted and drop is set. The journal id is 0 if the replant is not journaled.
+     */
+    record Replant(UUID world, long position, Material crop, UUID player, ItemStack seed, boolean drop, long due, long journalId) { }
+
+    final FarmingUpgradePlugin plugin;
+
+    final ArrayList<Replant>[] wheel;
+
+    /**
+     * The tick that was last processed. Only counts ticks while the task runs.
+     */
+    long tick;
+
+    int size;
+
+    @Nullable BukkitTask task;
+
+    @SuppressWarnings("unchecked")
+    ReplantScheduler(FarmingUpgradePlugin plugin) {
+        this.plugin = plugin;
+        this.wheel = new ArrayList[WHEEL_SIZE];
+        var i = 0;
+        while (i < WHEEL_SIZE) {
+            wheel[i] = new ArrayList<>();
+            i++;
+        }
+    }
+
+    /**
+     * Replant a crop after a delay.
+     *
+     * @param delay The delay in ticks. Must be positive.
+     */
+    void schedule(Block block, Material crop, Player player, ItemStack seed, boolean drop, int delay) {
+        var due = tick + delay;
+        var position = FarmingUpgradePlugin.packPosition(block.getX(), block.getY(), block.getZ());
+        var world = block.getWorld().getUID();
+        @Nullable var journal = plugin.pendingJournal;
+        var journalId = journal != null ? journal.addReplant(world, position, crop, player.getUniqueId(), seed.getType(), drop) : 0;
+        wheel[(int) (due & WHEEL_MASK)].add(new Replant(world, position, crop, player.getUniqueId(), seed, drop, due, journalId));
+        size++;
+        plugin.metrics.tasksScheduled.increment();
+        if (task == null) task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::run, 1, 1);
+    }
+
+    void run() {
+        tick++;
+        var slot = wheel[(int) (tick & WHEEL_MASK)];
+        if (!slot.isEmpty()) {
+            // Remove the due replants before they are run, since a replant may schedule another one.
+            var due = new ArrayList<Replant>();
+            var kept = 0;
+            for (var replant : slot) {
+                if (replant.due() <= tick) {
+                    due.add(replant);
+                } else {
+                    slot.set(kept, replant);
+                    kept++;
+                }
+            }
+            slot.subList(kept, slot.size()).clear();
+            size -= due.size();
+            var effects = plugin.effectBatch();
+            for (var replant : due) {
+                @Nullable var world = plugin.getServer().getWorld(replant.world());
+                if (world == null) continue;
+                var position = replant.position();
+                var block = world.getBlockAt(FarmingUpgradePlugin.unpackX(position), FarmingUpgradePlugin.unpackY(position), FarmingUpgradePlugin.unpackZ(position));
+                @Nullable var player = plugin.getServer().getPlayer(replant.player());
+                plugin.replantCrop(block, replant.crop(), player, replant.seed(), replant.drop(), effects);
+                if (plugin.pendingJournal != null && replant.journalId() != 0) plugin.pendingJournal.done(replant.journalId());
+            }
+            effects.flush();
+        }
+        if (size == 0) stop();
+    }
+
+    /**
+     * Cancel the pending replants in a world. Journaled replants are replayed the next time the plugin is enabled.
+     */
+    void cancel(World world) {
+        var uid = world.getUID();
+        for (var slot : wheel) slot.removeIf(replant -> replant.world().equals(uid));
+        size = countPending();
+        if (size == 0) stop();
+    }
+
+    /**
+     * Cancel every pending replant. Journaled replants are replayed the next time the plugin is enabled.
+     */
+    void cancelAll() {
+        for (var slot : wheel) slot.clear();
+        size = 0;
+        stop();
+    }
+
+    int countPending() {
+        var count = 0;
+        for (var slot : wheel) count += slot.size();
+        return count;
+    }
+
+    void stop() {
+        if (task != null) task.cancel();
+        task = null;
+    }
+
+}
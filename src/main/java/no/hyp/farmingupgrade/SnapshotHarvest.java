@@ -0,0 +1,150 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.Ageable;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Finds the crops of a large harvest on a worker thread. The loaded chunks within the harvest radius are captured as
+ * ChunkSnapshots on the main thread, the adjacent crops are found in the snapshots by a worker, and the positions are
+ * passed back to the main thread, where the crops are harvested.
+ * <p>
+ * The positions are ordered by chunk section, so that crops in the same section are harvested together. The crops may
+ * have changed while they were found, so they must be checked again before they are harvested.
+ */
+final class SnapshotHarvest {
+
+    final FarmingUpgradePlugin plugin;
+
+    final ExecutorService executor;
+
+    SnapshotHarvest(FarmingUpgradePlugin plugin) {
+        this.plugin = plugin;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "FarmingUpgrade Harvest");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads blocks from the captured snapshots. Blocks in chunks that were not loaded are read as air.
+     * <p>
+     * Snapshots have no collision shapes, so blocks that are not solid are treated as passable.
+     */
+    record SnapshotReader(Map<Long, ChunkSnapshot> snapshots, int minHeight, int maxHeight) implements AdjacencySearch.BlockReader {
+
+        @Override
+        public Material type(int x, int y, int z) {
+            if (y < minHeight || y >= maxHeight) return Material.AIR;
+            @Nullable var snapshot = snapshots.get(WaterIndex.chunkKey(x >> 4, z >> 4));
+            if (snapshot == null) return Material.AIR;
+            return snapshot.getBlockType(x & 15, y, z & 15);
+        }
+
+        @Override
+        public boolean isPassable(int x, int y, int z, Material type) {
+            return !type.isSolid();
+        }
+
+        boolean isMature(int x, int y, int z) {
+            var snapshot = snapshots.get(WaterIndex.chunkKey(x >> 4, z >> 4));
+            var data = snapshot.getBlockData(x & 15, y, z & 15);
+            return data instanceof Ageable ageable && ageable.getAge() == ageable.getMaximumAge();
+        }
+
+    }
+
+    /**
+     * Find the crops adjacent to a centre crop. Must be called on the main thread. The consumer is called on the main
+     * thread with the packed positions of the crops.
+     *
+     * @param centre The centre crop.
+     * @param radius The harvest radius.
+     * @param crops The crops to find.
+     * @param onlyMature Only find crops that are mature.
+     * @param consumer Receives the packed positions of the found crops.
+     */
+    void findCrops(Block centre, int radius, Set<Material> crops, boolean onlyMature, Consumer<long[]> consumer) {
+        var world = centre.getWorld();
+        var x = centre.getX();
+        var y = centre.getY();
+        var z = centre.getZ();
+        var minCx = (x - radius) >> 4;
+        var maxCx = (x + radius) >> 4;
+        var minCz = (z - radius) >> 4;
+        var maxCz = (z + radius) >> 4;
+        var snapshots = new HashMap<Long, ChunkSnapshot>();
+        var cx = minCx;
+        while (cx <= maxCx) {
+            var cz = minCz;
+            while (cz <= maxCz) {
+                // Do not load chunks to harvest them.
+                if (world.isChunkLoaded(cx, cz)) {
+                    snapshots.put(WaterIndex.chunkKey(cx, cz), world.getChunkAt(cx, cz).getChunkSnapshot(false, false, false));
+                }
+                cz++;
+            }
+            cx++;
+        }
+        var reader = new SnapshotReader(snapshots, world.getMinHeight(), world.getMaxHeight());
+        executor.execute(() -> {
+            long[] positions;
+            try {
+                positions = find(reader, x, y, z, radius, crops, onlyMature, minCx, minCz, maxCz - minCz + 1, plugin.metrics.blocksVisited);
+            } catch (Throwable throwable) {
+                plugin.getLogger().log(Level.SEVERE, "Could not find crops to harvest.", throwable);
+                return;
+            }
+            if (!plugin.isEnabled()) return;
+            plugin.getServer().getScheduler().runTask(plugin, () -> consumer.accept(positions));
+        });
+    }
+
+    static long[] find(SnapshotReader reader, int x, int y, int z, int radius, Set<Material> crops, boolean onlyMature, int minCx, int minCz, int chunksZ, Metrics.Counter visited) {
+        if (!crops.contains(reader.type(x, y, z))) return new long[0];
+        var found = AdjacencySearch.search(reader, crops, x, y, z, radius, true);
+        visited.add(found.visited);
+        // Sort the crops by chunk section. The section is stored in the high bits and the index in the low bits.
+        var sectionCount = (reader.maxHeight() - reader.minHeight()) >> 4;
+        var keys = new long[found.size()];
+        var count = 0;
+        var i = 0;
+        while (i < found.size()) {
+            var position = found.get(i);
+            var px = FarmingUpgradePlugin.unpackX(position);
+            var py = FarmingUpgradePlugin.unpackY(position);
+            var pz = FarmingUpgradePlugin.unpackZ(position);
+            if (!onlyMature || reader.isMature(px, py, pz)) {
+                var chunk = ((px >> 4) - minCx) * chunksZ + ((pz >> 4) - minCz);
+                var section = (long) chunk * sectionCount + ((py - reader.minHeight()) >> 4);
+                keys[count++] = (section << 32) | i;
+            }
+            i++;
+        }
+        Arrays.sort(keys, 0, count);
+        var positions = new long[count];
+        var j = 0;
+        while (j < count) {
+            positions[j] = found.get((int) keys[j]);
+            j++;
+        }
+        return positions;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+}
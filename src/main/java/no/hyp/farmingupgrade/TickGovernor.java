@@ -0,0 +1,121 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Scales back the work of the plugin while the server is overloaded. The time between ticks is sampled every tick and
+ * smoothed with an exponential moving average. When the average crosses a threshold, the governor moves up a level,
+ * and when it falls a margin below the threshold of the current level, the governor moves down a level.
+ * <p>
+ * Each level adds a degradation, starting with the least visible:
+ * <ol>
+ *     <li>Fewer particles.</li>
+ *     <li>Slower hydration. The hydration sweep only runs in some ticks, or without the sweep, growing crops only
+ *     update their Farmland in those ticks.</li>
+ *     <li>Instant replants are deferred to the replant scheduler.</li>
+ *     <li>A smaller harvest radius.</li>
+ * </ol>
+ */
+final class TickGovernor {
+
+    static final int PARTICLES = 1;
+
+    static final int HYDRATION = 2;
+
+    static final int REPLANT = 3;
+
+    static final int RADIUS = 4;
+
+    static final int MAXIMUM_LEVEL = RADIUS;
+
+    /**
+     * Ticks longer than this are counted as this long, so that a single pause does not decide the level.
+     */
+    static final double MAXIMUM_SAMPLE_MILLISECONDS = 500.0;
+
+    final FarmingUpgradePlugin plugin;
+
+    final FarmingUpgradePlugin.Governor settings;
+
+    final BukkitTask task;
+
+    long lastNanos;
+
+    double averageMilliseconds = 50.0;
+
+    int level;
+
+    long ticks;
+
+    TickGovernor(FarmingUpgradePlugin plugin, FarmingUpgradePlugin.Governor settings) {
+        this.plugin = plugin;
+        this.settings = settings;
+        this.task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1, 1);
+    }
+
+    void tick() {
+        ticks++;
+        var now = System.nanoTime();
+        if (lastNanos != 0) {
+            var sample = Math.min(MAXIMUM_SAMPLE_MILLISECONDS, (now - lastNanos) / 1_000_000.0);
+            averageMilliseconds += settings.smoothing() * (sample - averageMilliseconds);
+            update();
+        }
+        lastNanos = now;
+    }
+
+    void update() {
+        var thresholds = settings.thresholds();
+        if (level < MAXIMUM_LEVEL && level < thresholds.length && averageMilliseconds >= thresholds[level]) {
+            level++;
+            plugin.getLogger().info(String.format("Tick time is %.1f ms. Degrading to level %d: %s.", averageMilliseconds, level, describe(level)));
+        } else if (level > 0 && averageMilliseconds < thresholds[level - 1] - settings.recoveryMargin()) {
+            level--;
+            plugin.getLogger().info(String.format("Tick time is %.1f ms. Recovering to level %d: %s.", averageMilliseconds, level, describe(level)));
+        }
+    }
+
+    static String describe(int level) {
+        return switch (level) {
+            case 0 -> "no degradation";
+            case PARTICLES -> "fewer particles";
+            case HYDRATION -> "fewer particles, slower hydration";
+            case REPLANT -> "fewer particles, slower hydration, deferred replants";
+            default -> "fewer particles, slower hydration, deferred replants, smaller harvest radius";
+        };
+    }
+
+    /**
+     * Scale the number of particles of an effect.
+     */
+    int particles(int count) {
+        if (level < PARTICLES) return count;
+        return (int) Math.round(count * settings.particleMultiplier());
+    }
+
+    /**
+     * If Farmland is hydrated in this tick, by the hydration sweep or by growing crops.
+     */
+    boolean isHydrationTick() {
+        if (level < HYDRATION) return true;
+        return ticks % Math.max(1, settings.hydrationSweepInterval()) == 0;
+    }
+
+    /**
+     * The delay of a replant that would otherwise be instant.
+     */
+    int replantDelay(int delay) {
+        if (level < REPLANT || delay > 0) return delay;
+        return Math.max(1, settings.replantDelay());
+    }
+
+    double radius(double radius) {
+        if (level < RADIUS) return radius;
+        return radius * settings.radiusMultiplier();
+    }
+
+    void shutdown() {
+        task.cancel();
+    }
+
+}
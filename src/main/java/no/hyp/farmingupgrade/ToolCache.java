@@ -0,0 +1,91 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.EquipmentSlot;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Remembers the harvest tool type that was resolved for the item in each hand of a player, for each crop.
+ * <p>
+ * An entry is keyed on the hand, the held hotbar slot and the {@link ToolMatcher.Fingerprint} of the item, which holds
+ * the material, lore and NBT tags that the tool filters read. An item whose lore or tags changed without an inventory
+ * event is looked up again, but a tool that was only damaged keeps its entry. Entries are also invalidated by the
+ * plugin when the inventory of a player changes. Bukkit has no event for permission changes, so entries also expire
+ * after a lifetime, after which the filters and permissions are checked again.
+ */
+final class ToolCache {
+
+    static final class Entry {
+
+        final int heldSlot;
+
+        final ToolMatcher.Fingerprint fingerprint;
+
+        final long created;
+
+        /**
+         * The resolved tool type for each crop. A null value means that the item is not a tool for the crop.
+         */
+        final Map<Material, FarmingUpgradePlugin.HarvestToolType> crops = new EnumMap<>(Material.class);
+
+        Entry(int heldSlot, ToolMatcher.Fingerprint fingerprint, long created) {
+            this.heldSlot = heldSlot;
+            this.fingerprint = fingerprint;
+            this.created = created;
+        }
+
+    }
+
+    final long lifetimeNanos;
+
+    /**
+     * Entries for the main hand and the off hand of each player.
+     */
+    final Map<UUID, Entry[]> players = new HashMap<>();
+
+    long hits;
+
+    long misses;
+
+    ToolCache(int lifetimeTicks) {
+        this.lifetimeNanos = lifetimeTicks * 50_000_000L;
+    }
+
+    @Nullable FarmingUpgradePlugin.HarvestToolType toolType(FarmingUpgradePlugin.ToolUpgrade toolUpgrade, Player player, EquipmentSlot hand, ItemStack toolItem, Material crop) {
+        var entries = players.computeIfAbsent(player.getUniqueId(), x -> new Entry[2]);
+        var index = hand == EquipmentSlot.OFF_HAND ? 1 : 0;
+        var heldSlot = hand == EquipmentSlot.OFF_HAND ? -1 : player.getInventory().getHeldItemSlot();
+        var now = System.nanoTime();
+        var fingerprint = toolUpgrade.toolMatcher().fingerprint(toolItem);
+        @Nullable var entry = entries[index];
+        if (entry == null || entry.heldSlot != heldSlot || !fingerprint.equals(entry.fingerprint) || now - entry.created > lifetimeNanos) {
+            entry = new Entry(heldSlot, fingerprint, now);
+            entries[index] = entry;
+        }
+        if (entry.crops.containsKey(crop)) {
+            hits++;
+            return entry.crops.get(crop);
+        }
+        misses++;
+        @Nullable var toolType = toolUpgrade.toolType(toolItem, player, crop);
+        entry.crops.put(crop, toolType);
+        return toolType;
+    }
+
+    void invalidate(Player player) {
+        players.remove(player.getUniqueId());
+    }
+
+    double hitRate() {
+        var lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+}
@@ -0,0 +1,195 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.permissions.Permission;
+import org.bukkit.persistence.PersistentDataType;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * The configured harvest tool types, compiled for matching against items. The types that can match an item are
+ * looked up by the item material, in the configured order, so the first matching type is the same as when every type
+ * is checked in order.
+ */
+final class ToolMatcher {
+
+    /**
+     * A tool type with its filters resolved.
+     */
+    static final class CompiledTool {
+
+        final FarmingUpgradePlugin.HarvestToolType type;
+
+        final @Nullable String lore;
+
+        final @Nullable NamespacedKey nbtKey;
+
+        final boolean invalidNbtKey;
+
+        final @Nullable String permissionName;
+
+        /**
+         * The permission, once it has been registered. Permissions may be registered by other plugins after the
+         * configuration is read, so an unresolved permission is looked up again when it is used.
+         */
+        @Nullable Permission permission;
+
+        final @Nullable Set<Material> crops;
+
+        CompiledTool(Plugin plugin, FarmingUpgradePlugin.HarvestToolType type) {
+            this.type = type;
+            this.lore = type.lore();
+            @Nullable var nbtTag = type.nbtTag();
+            this.nbtKey = nbtTag != null ? NamespacedKey.fromString(nbtTag, plugin) : null;
+            this.invalidNbtKey = nbtTag != null && nbtKey == null;
+            if (invalidNbtKey) plugin.getLogger().severe(nbtTag + " is not a valid NBT tag.");
+            this.permissionName = type.permission();
+            this.permission = permissionName != null ? plugin.getServer().getPluginManager().getPermission(permissionName) : null;
+            this.crops = type.crops();
+        }
+
+        boolean needsMeta() {
+            return lore != null || nbtKey != null;
+        }
+
+    }
+
+    /**
+     * The parts of an item that the filters of its candidate tool types read: the material, the lore if a candidate
+     * has a lore filter, and the NBT tag of each candidate with an NBT filter. Damage is not part of it. Items with
+     * equal fingerprints match the same tool types.
+     */
+    record Fingerprint(Material material, @Nullable List<String> lore, @Nullable List<Byte> tags) { }
+
+    final Plugin plugin;
+
+    /**
+     * Tool types that can match items of a material.
+     */
+    final Map<Material, CompiledTool[]> byMaterial = new EnumMap<>(Material.class);
+
+    /**
+     * Tool types without a material filter, which can match items of any material.
+     */
+    final CompiledTool[] anyMaterial;
+
+    ToolMatcher(Plugin plugin, List<FarmingUpgradePlugin.HarvestToolType> tools) {
+        this.plugin = plugin;
+        var compiled = new ArrayList<CompiledTool>(tools.size());
+        var materials = EnumSet.noneOf(Material.class);
+        for (var tool : tools) {
+            compiled.add(new CompiledTool(plugin, tool));
+            @Nullable var toolMaterials = tool.material();
+            if (toolMaterials != null) materials.addAll(toolMaterials);
+        }
+        var any = new ArrayList<CompiledTool>();
+        for (var tool : compiled) {
+            if (tool.type.material() == null) any.add(tool);
+        }
+        this.anyMaterial = any.toArray(new CompiledTool[0]);
+        for (var material : materials) {
+            var candidates = new ArrayList<CompiledTool>();
+            for (var tool : compiled) {
+                @Nullable var toolMaterials = tool.type.material();
+                if (toolMaterials == null || toolMaterials.contains(material)) candidates.add(tool);
+            }
+            byMaterial.put(material, candidates.toArray(new CompiledTool[0]));
+        }
+    }
+
+    /**
+     * Find the first tool type that matches an item, a player and a crop.
+     *
+     * @return The tool type, or null if the item is not a harvest tool.
+     */
+    @Nullable FarmingUpgradePlugin.HarvestToolType match(ItemStack toolItem, Player player, Material crop) {
+        var candidates = candidates(toolItem.getType());
+        // The item meta and lore are copies, so they are read at most once, and only if a candidate needs them.
+        @Nullable ItemMeta meta = null;
+        var metaRead = false;
+        @Nullable List<String> itemLore = null;
+        var loreRead = false;
+        for (var tool : candidates) {
+            if (tool.invalidNbtKey) continue;
+            if (tool.needsMeta()) {
+                if (!metaRead) {
+                    meta = toolItem.hasItemMeta() ? toolItem.getItemMeta() : null;
+                    metaRead = true;
+                }
+                if (meta == null) continue;
+                // If the type has a lore, some line in the item lore must contain the type lore as a substring.
+                if (tool.lore != null) {
+                    if (!loreRead) {
+                        itemLore = meta.getLore();
+                        loreRead = true;
+                    }
+                    if (itemLore == null || !containsLore(itemLore, tool.lore)) continue;
+                }
+                // If the tool has an NBT tag filter, the NBT tag on the item must be set to true.
+                if (tool.nbtKey != null) {
+                    var itemNbt = meta.getPersistentDataContainer();
+                    if (!itemNbt.has(tool.nbtKey, PersistentDataType.BYTE)) continue;
+                    @Nullable var tag = itemNbt.get(tool.nbtKey, PersistentDataType.BYTE);
+                    if (tag == null || tag == 0) continue;
+                }
+            }
+            if (tool.permissionName != null) {
+                if (tool.permission == null) {
+                    tool.permission = plugin.getServer().getPluginManager().getPermission(tool.permissionName);
+                    if (tool.permission == null) continue; // The permission does not exist.
+                }
+                if (!player.hasPermission(tool.permission)) continue;
+            }
+            if (tool.crops != null && !tool.crops.contains(crop)) continue;
+            return tool.type;
+        }
+        return null;
+    }
+
+    CompiledTool[] candidates(Material material) {
+        @Nullable var candidates = byMaterial.get(material);
+        return candidates != null ? candidates : anyMaterial;
+    }
+
+    /**
+     * Find the fingerprint of an item. The item meta is only read if a candidate tool type needs it.
+     */
+    Fingerprint fingerprint(ItemStack toolItem) {
+        var material = toolItem.getType();
+        var candidates = candidates(material);
+        var needsMeta = false;
+        for (var tool : candidates) {
+            if (tool.needsMeta()) {
+                needsMeta = true;
+                break;
+            }
+        }
+        if (!needsMeta || !toolItem.hasItemMeta()) return new Fingerprint(material, null, null);
+        var meta = toolItem.getItemMeta();
+        if (meta == null) return new Fingerprint(material, null, null);
+        @Nullable List<String> lore = null;
+        @Nullable List<Byte> tags = null;
+        for (var tool : candidates) {
+            if (tool.lore != null && lore == null) lore = meta.hasLore() ? meta.getLore() : List.of();
+            if (tool.nbtKey != null) {
+                if (tags == null) tags = new ArrayList<>();
+                tags.add(meta.getPersistentDataContainer().get(tool.nbtKey, PersistentDataType.BYTE));
+            }
+        }
+        return new Fingerprint(material, lore, tags);
+    }
+
+    static boolean containsLore(List<String> itemLore, String lore) {
+        for (var itemLoreLine : itemLore) {
+            if (itemLoreLine.contains(lore)) return true;
+        }
+        return false;
+    }
+
+}
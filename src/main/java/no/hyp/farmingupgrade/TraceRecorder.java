@@ -0,0 +1,448 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.Player;
+import org.bukkit.event.block.*;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the events that the plugin handles to a trace file, together with the blocks around them, so that the load
+ * of a server can be replayed offline against an in-memory world.
+ * <p>
+ * The trace is a gzipped stream of records. It starts with {@link #MAGIC}, {@link #VERSION} and the configuration of
+ * the plugin as YAML, and ends with {@link #END}. Only breaks and places of crops and fertilisations of fertilisable
+ * plants are recorded. Strings, worlds and players are written once and then referred to by index.
+ * Each event record has the number of ticks since the previous event, the world, the position of the block, flags,
+ * and what is needed to construct the event again. Before the first event that touches a chunk section, the blocks of
+ * the section and of the sections around it are written, so that a replay starts from the blocks the server had.
+ * <p>
+ * Events are written to a buffer on the main thread, and the buffer is written to the file on another thread once a
+ * second.
+ */
+final class TraceRecorder {
+
+    static final int MAGIC = 0x46555452;
+
+    static final int VERSION = 1;
+
+    static final byte END = 0;
+
+    /**
+     * A string, with the next string index.
+     */
+    static final byte STRING = 1;
+
+    /**
+     * A world, with the next world index: its name, minimum height and maximum height.
+     */
+    static final byte WORLD = 2;
+
+    /**
+     * A player, with the next player index: the world of the player.
+     */
+    static final byte PLAYER = 3;
+
+    /**
+     * The blocks of a chunk section: the world, the packed section position, a palette of block data strings and
+     * 4096 palette indices.
+     */
+    static final byte SECTION = 4;
+
+    static final byte BREAK = 5;
+
+    static final byte PLACE = 6;
+
+    static final byte FERTILISE = 7;
+
+    static final byte MOISTURE_CHANGE = 8;
+
+    static final byte GROW = 9;
+
+    static final byte MOVE = 10;
+
+    /**
+     * The event was cancelled when it was recorded.
+     */
+    static final int CANCELLED = 1;
+
+    /**
+     * The player was sneaking.
+     */
+    static final int SNEAKING = 2;
+
+    record PlayerKey(UUID player, UUID world) { }
+
+    record SectionKey(int world, long section) { }
+
+    final FarmingUpgradePlugin plugin;
+
+    final Path path;
+
+    final OutputStream output;
+
+    final ExecutorService writer;
+
+    final BukkitTask task;
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    DataOutputStream data = new DataOutputStream(buffer);
+
+    final Map<String, Integer> strings = new HashMap<>();
+
+    final Map<UUID, Integer> worlds = new HashMap<>();
+
+    final Map<PlayerKey, Integer> players = new HashMap<>();
+
+    final Set<SectionKey> sections = new HashSet<>();
+
+    long tick;
+
+    long lastTick;
+
+    long events;
+
+    /**
+     * Set if the trace could not be written. The records of a broken recorder are discarded.
+     */
+    volatile boolean broken;
+
+    TraceRecorder(FarmingUpgradePlugin plugin, Path path) throws IOException {
+        this.plugin = plugin;
+        this.path = path;
+        Files.createDirectories(path.getParent());
+        this.output = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "FarmingUpgrade Trace");
+            thread.setDaemon(true);
+            return thread;
+        });
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        var configuration = plugin.getConfig().saveToString().getBytes(StandardCharsets.UTF_8);
+        data.writeInt(configuration.length);
+        data.write(configuration);
+        this.task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1, 1);
+    }
+
+    void tick() {
+        tick++;
+        if (tick % 20 == 0) flush();
+    }
+
+    void recordBreak(BlockBreakEvent event) {
+        var block = event.getBlock();
+        if (plugin.toolUpgrade == null || !plugin.toolUpgrade.isCrop(block.getType())) return;
+        var player = player(event.getPlayer());
+        var item = string(event.getPlayer().getInventory().getItemInMainHand().getType().name());
+        try {
+            header(BREAK, block, event.isCancelled() ? CANCELLED : 0);
+            writeVarInt(player);
+            writeVarInt(item);
+        } catch (IOException exception) {
+            fail(exception);
+        }
+        events++;
+    }
+
+    void recordPlace(BlockPlaceEvent event) {
+        var block = event.getBlock();
+        if (plugin.toolUpgrade == null || !plugin.toolUpgrade.isCrop(block.getType())) return;
+        var inventory = event.getPlayer().getInventory();
+        var player = player(event.getPlayer());
+        var placed = string(block.getBlockData().getAsString());
+        var item = string(event.getItemInHand().getType().name());
+        var mainHand = string(inventory.getItemInMainHand().getType().name());
+        var offHand = string(inventory.getItemInOffHand().getType().name());
+        try {
+            header(PLACE, block, event.isCancelled() ? CANCELLED : 0);
+            writeVarInt(player);
+            writeVarInt(placed);
+            writeVarInt(item);
+            writeVarInt(mainHand);
+            writeVarInt(offHand);
+        } catch (IOException exception) {
+            fail(exception);
+        }
+        events++;
+    }
+
+    void recordFertilise(BlockFertilizeEvent event) {
+        var block = event.getBlock();
+        if (plugin.bonemealUpgrade == null || !plugin.bonemealUpgrade.isFertilisable(block.getType())) return;
+        @Nullable var eventPlayer = event.getPlayer();
+        var player = eventPlayer != null ? player(eventPlayer) + 1 : 0;
+        try {
+            header(FERTILISE, block, event.isCancelled() ? CANCELLED : 0);
+            writeVarInt(player);
+        } catch (IOException exception) {
+            fail(exception);
+        }
+        events++;
+    }
+
+    void recordMoistureChange(MoistureChangeEvent event) {
+        var block = event.getBlock();
+        var state = string(event.getNewState().getBlockData().getAsString());
+        try {
+            header(MOISTURE_CHANGE, block, event.isCancelled() ? CANCELLED : 0);
+            writeVarInt(state);
+        } catch (IOException exception) {
+            fail(exception);
+        }
+        events++;
+    }
+
+    void recordGrow(BlockGrowEvent event) {
+        var block = event.getBlock();
+        var state = string(event.getNewState().getBlockData().getAsString());
+        try {
+            header(GROW, block, event.isCancelled() ? CANCELLED : 0);
+            writeVarInt(state);
+        } catch (IOException exception) {
+            fail(exception);
+        }
+        events++;
+    }
+
+    /**
+     * Record a move. The blocks around the move are only written if the player moves onto Farmland, since other moves
+     * do not read them.
+     */
+    void recordMove(PlayerMoveEvent event) {
+        @Nullable var to = event.getTo();
+        if (to == null) return;
+        var from = event.getFrom();
+        var block = to.getBlock();
+        var flags = (event.isCancelled() ? CANCELLED : 0) | (event.getPlayer().isSneaking() ? SNEAKING : 0);
+        var player = player(event.getPlayer());
+        try {
+            if (block.getType() == Material.FARMLAND) {
+                header(MOVE, block, flags);
+            } else {
+                header(MOVE, block.getWorld(), block.getX(), block.getY(), block.getZ(), flags);
+            }
+            writeVarInt(player);
+            data.writeFloat((float) from.getX());
+            data.writeFloat((float) from.getY());
+            data.writeFloat((float) from.getZ());
+            data.writeFloat((float) to.getX());
+            data.writeFloat((float) to.getY());
+            data.writeFloat((float) to.getZ());
+        } catch (IOException exception) {
+            fail(exception);
+        }
+        events++;
+    }
+
+    /**
+     * Write the blocks around a block if they are not written yet, and then the header of an event at the block.
+     */
+    void header(byte type, Block block, int flags) throws IOException {
+        context(block);
+        header(type, block.getWorld(), block.getX(), block.getY(), block.getZ(), flags);
+    }
+
+    void header(byte type, World world, int x, int y, int z, int flags) throws IOException {
+        var worldIndex = world(world);
+        data.writeByte(type);
+        writeVarLong(tick - lastTick);
+        lastTick = tick;
+        writeVarInt(worldIndex);
+        data.writeLong(FarmingUpgradePlugin.packPosition(x, y, z));
+        data.writeByte(flags);
+    }
+
+    /**
+     * Write the sections in the chunks around a block, from the section below the block to the section above it, that
+     * are not written yet. Sections in chunks that are not loaded are left out, and are replayed as air.
+     */
+    void context(Block block) throws IOException {
+        var world = block.getWorld();
+        var worldIndex = world(world);
+        var sectionX = block.getX() >> 4;
+        var sectionY = block.getY() >> 4;
+        var sectionZ = block.getZ() >> 4;
+        var minSection = world.getMinHeight() >> 4;
+        var maxSection = (world.getMaxHeight() >> 4) - 1;
+        var cx = sectionX - 1;
+        while (cx <= sectionX + 1) {
+            var cz = sectionZ - 1;
+            while (cz <= sectionZ + 1) {
+                @Nullable ChunkSnapshot snapshot = null;
+                var sy = Math.max(minSection, sectionY - 1);
+                while (sy <= Math.min(maxSection, sectionY + 1)) {
+                    if (sections.add(new SectionKey(worldIndex, FarmingUpgradePlugin.packPosition(cx, sy, cz))) && world.isChunkLoaded(cx, cz)) {
+                        if (snapshot == null) snapshot = world.getChunkAt(cx, cz).getChunkSnapshot(false, false, false);
+                        section(worldIndex, snapshot, cx, sy, cz, minSection);
+                    }
+                    sy++;
+                }
+                cz++;
+            }
+            cx++;
+        }
+    }
+
+    void section(int worldIndex, ChunkSnapshot snapshot, int cx, int sy, int cz, int minSection) throws IOException {
+        if (snapshot.isSectionEmpty(sy - minSection)) return;
+        var palette = new LinkedHashMap<BlockData, Integer>();
+        var indices = new int[4096];
+        var i = 0;
+        while (i < 4096) {
+            var blockData = snapshot.getBlockData(i & 15, (sy << 4) + (i >> 8), (i >> 4) & 15);
+            @Nullable var index = palette.get(blockData);
+            if (index == null) {
+                index = palette.size();
+                palette.put(blockData, index);
+            }
+            indices[i] = index;
+            i++;
+        }
+        var paletteStrings = new int[palette.size()];
+        for (var entry : palette.entrySet()) paletteStrings[entry.getValue()] = string(entry.getKey().getAsString());
+        data.writeByte(SECTION);
+        writeVarInt(worldIndex);
+        data.writeLong(FarmingUpgradePlugin.packPosition(cx, sy, cz));
+        writeVarInt(paletteStrings.length);
+        for (var paletteString : paletteStrings) writeVarInt(paletteString);
+        var wide = paletteStrings.length > 256;
+        for (var index : indices) {
+            if (wide) {
+                data.writeShort(index);
+            } else {
+                data.writeByte(index);
+            }
+        }
+    }
+
+    int string(String string) {
+        @Nullable var index = strings.get(string);
+        if (index != null) return index;
+        index = strings.size();
+        strings.put(string, index);
+        try {
+            data.writeByte(STRING);
+            data.writeUTF(string);
+        } catch (IOException exception) {
+            fail(exception);
+        }
+        return index;
+    }
+
+    int world(World world) {
+        @Nullable var index = worlds.get(world.getUID());
+        if (index != null) return index;
+        index = worlds.size();
+        worlds.put(world.getUID(), index);
+        try {
+            data.writeByte(WORLD);
+            data.writeUTF(world.getName());
+            data.writeInt(world.getMinHeight());
+            data.writeInt(world.getMaxHeight());
+        } catch (IOException exception) {
+            fail(exception);
+        }
+        return index;
+    }
+
+    /**
+     * The index of a player in the world the player is in. A player that changes worlds is a new player.
+     */
+    int player(Player player) {
+        var key = new PlayerKey(player.getUniqueId(), player.getWorld().getUID());
+        @Nullable var index = players.get(key);
+        if (index != null) return index;
+        var worldIndex = world(player.getWorld());
+        index = players.size();
+        players.put(key, index);
+        try {
+            data.writeByte(PLAYER);
+            writeVarInt(worldIndex);
+        } catch (IOException exception) {
+            fail(exception);
+        }
+        return index;
+    }
+
+    void writeVarInt(int value) throws IOException {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            data.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data.writeByte((int) value);
+    }
+
+    /**
+     * Hand the buffered records to the writer thread.
+     */
+    void flush() {
+        if (buffer.size() == 0) return;
+        var bytes = buffer.toByteArray();
+        buffer = new ByteArrayOutputStream();
+        data = new DataOutputStream(buffer);
+        if (broken) return;
+        writer.execute(() -> {
+            if (broken) return;
+            try {
+                output.write(bytes);
+            } catch (IOException exception) {
+                fail(exception);
+            }
+        });
+    }
+
+    void fail(IOException exception) {
+        if (broken) return;
+        broken = true;
+        plugin.getLogger().log(Level.SEVERE, "Could not write the event trace. Recording stopped.", exception);
+    }
+
+    /**
+     * Stop recording, and wait for the trace to be written.
+     */
+    void stop() {
+        task.cancel();
+        try {
+            data.writeByte(END);
+        } catch (IOException exception) {
+            fail(exception);
+        }
+        flush();
+        writer.execute(() -> {
+            try {
+                output.close();
+            } catch (IOException exception) {
+                fail(exception);
+            }
+        });
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) plugin.getLogger().warning("The event trace was not written in time.");
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
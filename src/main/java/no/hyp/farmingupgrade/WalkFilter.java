@@ -0,0 +1,174 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.type.Farmland;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Filters player movement for trampling by walking, so that movement away from farmland costs little. A
+ * PlayerMoveEvent is called for every movement and head rotation of every player.
+ * <p>
+ * Each player's last block is remembered, and movement is only handled when the player enters another block. Chunks
+ * are marked by whether they contain farmland, which is checked against the palettes of the chunk. A mark is checked
+ * again after a while, since farmland can be created without an event, and at once when a block in the chunk is
+ * interacted with or placed.
+ * <p>
+ * A farmland can also have a cooldown after it is trampled, during which it is not trampled again.
+ */
+final class WalkFilter {
+
+    /**
+     * Nanoseconds until the farmland mark of a chunk is checked again.
+     */
+    static final long CHUNK_REFRESH_NANOS = 5_000_000_000L;
+
+    static final class LastBlock {
+
+        @Nullable World world;
+
+        int x;
+
+        int y;
+
+        int z;
+
+    }
+
+    static final class ChunkFarmland {
+
+        final boolean farmland;
+
+        final long checked;
+
+        ChunkFarmland(boolean farmland, long checked) {
+            this.farmland = farmland;
+            this.checked = checked;
+        }
+
+    }
+
+    /**
+     * The block data of farmland with each moisture level.
+     */
+    final BlockData[] farmlandData;
+
+    final long cooldownNanos;
+
+    final Map<UUID, LastBlock> lastBlocks = new HashMap<>();
+
+    /**
+     * The farmland marks of chunks in each world, keyed by {@link WaterIndex#chunkKey(int, int)}.
+     */
+    final Map<UUID, Map<Long, ChunkFarmland>> chunks = new HashMap<>();
+
+    /**
+     * The time each farmland was last trampled, in each world, keyed by
+     * {@link FarmingUpgradePlugin#packPosition(int, int, int)}. Only used with a cooldown.
+     */
+    final Map<UUID, Map<Long, Long>> trampled = new HashMap<>();
+
+    /**
+     * The number of trample times to keep before expired ones are removed.
+     */
+    int trampledCapacity = 1024;
+
+    WalkFilter(int cooldownTicks) {
+        this.cooldownNanos = cooldownTicks * 50_000_000L;
+        var farmland = (Farmland) Material.FARMLAND.createBlockData();
+        this.farmlandData = new BlockData[farmland.getMaximumMoisture() + 1];
+        var moisture = 0;
+        while (moisture < farmlandData.length) {
+            var data = (Farmland) Material.FARMLAND.createBlockData();
+            data.setMoisture(moisture);
+            farmlandData[moisture] = data;
+            moisture++;
+        }
+    }
+
+    /**
+     * Remember the block a player entered.
+     *
+     * @return If the block is another block than the last block that was entered.
+     */
+    boolean enter(Player player, World world, int x, int y, int z) {
+        var lastBlock = lastBlocks.computeIfAbsent(player.getUniqueId(), id -> new LastBlock());
+        if (world.equals(lastBlock.world) && lastBlock.x == x && lastBlock.y == y && lastBlock.z == z) return false;
+        lastBlock.world = world;
+        lastBlock.x = x;
+        lastBlock.y = y;
+        lastBlock.z = z;
+        return true;
+    }
+
+    /**
+     * If a chunk may contain farmland. Chunks that are not loaded contain no farmland.
+     */
+    boolean mayContainFarmland(World world, int chunkX, int chunkZ) {
+        var worldChunks = chunks.computeIfAbsent(world.getUID(), id -> new HashMap<>());
+        var key = WaterIndex.chunkKey(chunkX, chunkZ);
+        var now = System.nanoTime();
+        @Nullable var mark = worldChunks.get(key);
+        if (mark != null && now - mark.checked < CHUNK_REFRESH_NANOS) return mark.farmland;
+        if (!world.isChunkLoaded(chunkX, chunkZ)) return false;
+        var farmland = containsFarmland(world.getChunkAt(chunkX, chunkZ));
+        worldChunks.put(key, new ChunkFarmland(farmland, now));
+        return farmland;
+    }
+
+    boolean containsFarmland(Chunk chunk) {
+        for (var data : farmlandData) {
+            if (chunk.contains(data)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check the farmland mark of the chunk of a block again the next time it is used.
+     */
+    void invalidate(World world, int x, int z) {
+        @Nullable var worldChunks = chunks.get(world.getUID());
+        if (worldChunks != null) worldChunks.remove(WaterIndex.chunkKey(x >> 4, z >> 4));
+    }
+
+    void unloadChunk(Chunk chunk) {
+        @Nullable var worldChunks = chunks.get(chunk.getWorld().getUID());
+        if (worldChunks != null) worldChunks.remove(WaterIndex.chunkKey(chunk.getX(), chunk.getZ()));
+    }
+
+    /**
+     * Start the cooldown of a farmland, if it is not cooling down already.
+     *
+     * @return If the farmland may be trampled.
+     */
+    boolean trample(World world, int x, int y, int z) {
+        if (cooldownNanos <= 0) return true;
+        var worldTrampled = trampled.computeIfAbsent(world.getUID(), id -> new HashMap<>());
+        var position = FarmingUpgradePlugin.packPosition(x, y, z);
+        var now = System.nanoTime();
+        @Nullable var last = worldTrampled.get(position);
+        if (last != null && now - last < cooldownNanos) return false;
+        worldTrampled.put(position, now);
+        if (worldTrampled.size() > trampledCapacity) {
+            worldTrampled.values().removeIf(time -> now - time >= cooldownNanos);
+            trampledCapacity = Math.max(1024, 2 * worldTrampled.size());
+        }
+        return true;
+    }
+
+    void quit(Player player) {
+        lastBlocks.remove(player.getUniqueId());
+    }
+
+    void unloadWorld(World world) {
+        chunks.remove(world.getUID());
+        trampled.remove(world.getUID());
+        lastBlocks.values().removeIf(lastBlock -> world.equals(lastBlock.world));
+    }
+
+}
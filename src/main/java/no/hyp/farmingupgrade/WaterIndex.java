@@ -0,0 +1,277 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.Waterlogged;
+import org.bukkit.plugin.Plugin;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * An index of the water and waterlogged blocks in loaded chunks. Used by upgraded hydration to search for water
+ * without reading every block in the search region.
+ * <p>
+ * Each chunk section (16x16x16 blocks) is scanned from a ChunkSnapshot the first time a search touches it, and is
+ * forgotten when the chunk unloads. Blocks that are changed by an event are read again on the next tick, because the
+ * events are called before the change is applied. A water block that is found in the index is always checked against
+ * the world before it is used, so blocks that change without an event, such as receding water, are removed from the
+ * index when they are found. Water that is placed without an event, such as by world editors, is found when the section
+ * is scanned again, which happens when a search touches it after {@link #RESCAN_NANOS}.
+ */
+final class WaterIndex {
+
+    /**
+     * Nanoseconds until a scanned section is scanned again. Farmland only dries after several random ticks without
+     * water, so water that is missed for this long does not dry it.
+     */
+    static final long RESCAN_NANOS = 30_000_000_000L;
+
+    final Plugin plugin;
+
+    /**
+     * Indexed chunks in each world, keyed by {@link #chunkKey(int, int)}.
+     */
+    final Map<UUID, Map<Long, ChunkWater>> worlds = new HashMap<>();
+
+    /**
+     * Blocks that have changed since the last refresh.
+     */
+    final Set<Block> pending = new LinkedHashSet<>();
+
+    /**
+     * Cached result of {@link #waterloggable(Material)} by material ordinal. 0: unknown, 1: no, 2: yes.
+     */
+    static final byte[] waterloggable = new byte[Material.values().length];
+
+    WaterIndex(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * The water blocks in a chunk, with one bitset of 4096 bits for each section. A null section has not been scanned
+     * yet.
+     */
+    static final class ChunkWater {
+
+        final int minHeight;
+
+        final long[][] sections;
+
+        final int[] counts;
+
+        /**
+         * When each section was scanned.
+         */
+        final long[] scanned;
+
+        ChunkWater(int minHeight, int maxHeight) {
+            this.minHeight = minHeight;
+            var sectionCount = (maxHeight - minHeight) >> 4;
+            this.sections = new long[sectionCount][];
+            this.counts = new int[sectionCount];
+            this.scanned = new long[sectionCount];
+        }
+
+        void set(int x, int y, int z, boolean water) {
+            var section = (y - minHeight) >> 4;
+            @Nullable var bits = sections[section];
+            if (bits == null) return; // Not scanned yet. The change is seen when the section is scanned.
+            var bit = bitIndex(x, y, z);
+            var mask = 1L << bit;
+            var present = (bits[bit >> 6] & mask) != 0;
+            if (present == water) return;
+            bits[bit >> 6] ^= mask;
+            counts[section] += water ? 1 : -1;
+        }
+
+    }
+
+    /**
+     * Find water or a waterlogged block within a region around a block.
+     *
+     * @param block The centre block.
+     * @param radius The horizontal radius (of a square circle) to search within.
+     * @param highest The greatest height to search in, relative to the block.
+     * @param lowest The lowest height to search in, relative to the block.
+     * @return The packed position of water in the searched region, or {@link HydrationHints#NONE}.
+     */
+    long findWater(Block block, int radius, int highest, int lowest) {
+        var world = block.getWorld();
+        var minX = block.getX() - radius;
+        var maxX = block.getX() + radius;
+        var minZ = block.getZ() - radius;
+        var maxZ = block.getZ() + radius;
+        var minY = Math.max(block.getY() - lowest, world.getMinHeight());
+        var maxY = Math.min(block.getY() + highest, world.getMaxHeight() - 1);
+        if (minY > maxY) return HydrationHints.NONE;
+        var cx = minX >> 4;
+        while (cx <= maxX >> 4) {
+            var cz = minZ >> 4;
+            while (cz <= maxZ >> 4) {
+                var water = findChunkWater(world, cx, cz, minX, maxX, minY, maxY, minZ, maxZ);
+                if (water != HydrationHints.NONE) return water;
+                cz++;
+            }
+            cx++;
+        }
+        return HydrationHints.NONE;
+    }
+
+    /**
+     * Search the part of a region that is inside a chunk.
+     */
+    long findChunkWater(World world, int cx, int cz, int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+        var water = chunkWater(world, cx, cz);
+        var fromX = Math.max(minX, cx << 4);
+        var toX = Math.min(maxX, (cx << 4) + 15);
+        var fromZ = Math.max(minZ, cz << 4);
+        var toZ = Math.min(maxZ, (cz << 4) + 15);
+        @Nullable ChunkSnapshot snapshot = null;
+        var now = System.nanoTime();
+        var section = (minY - water.minHeight) >> 4;
+        while (section <= (maxY - water.minHeight) >> 4) {
+            if (water.sections[section] == null || now - water.scanned[section] >= RESCAN_NANOS) {
+                if (snapshot == null) snapshot = world.getChunkAt(cx, cz).getChunkSnapshot(false, false, false);
+                scanSection(snapshot, water, section);
+            }
+            if (water.counts[section] != 0) {
+                var bits = water.sections[section];
+                var sectionBottom = water.minHeight + (section << 4);
+                var fromY = Math.max(minY, sectionBottom);
+                var toY = Math.min(maxY, sectionBottom + 15);
+                var y = fromY;
+                while (y <= toY) {
+                    var z = fromZ;
+                    while (z <= toZ) {
+                        var x = fromX;
+                        while (x <= toX) {
+                            var bit = bitIndex(x, y, z);
+                            if ((bits[bit >> 6] & (1L << bit)) != 0) {
+                                // Confirm that the indexed block is still water.
+                                if (isWater(world.getBlockAt(x, y, z))) return FarmingUpgradePlugin.packPosition(x, y, z);
+                                water.set(x, y, z, false);
+                            }
+                            x++;
+                        }
+                        z++;
+                    }
+                    y++;
+                }
+            }
+            section++;
+        }
+        return HydrationHints.NONE;
+    }
+
+    ChunkWater chunkWater(World world, int cx, int cz) {
+        var chunks = worlds.computeIfAbsent(world.getUID(), x -> new HashMap<>());
+        var key = chunkKey(cx, cz);
+        @Nullable var water = chunks.get(key);
+        if (water == null) {
+            water = new ChunkWater(world.getMinHeight(), world.getMaxHeight());
+            chunks.put(key, water);
+        }
+        return water;
+    }
+
+    static void scanSection(ChunkSnapshot snapshot, ChunkWater water, int section) {
+        var bits = new long[64];
+        var count = 0;
+        if (!snapshot.isSectionEmpty(section)) {
+            var bottom = water.minHeight + (section << 4);
+            var y = bottom;
+            while (y < bottom + 16) {
+                var z = 0;
+                while (z < 16) {
+                    var x = 0;
+                    while (x < 16) {
+                        var type = snapshot.getBlockType(x, y, z);
+                        var found = type == Material.WATER;
+                        if (!found && waterloggable(type)) {
+                            found = isWaterlogged(snapshot.getBlockData(x, y, z));
+                        }
+                        if (found) {
+                            var bit = bitIndex(x, y, z);
+                            bits[bit >> 6] |= 1L << bit;
+                            count++;
+                        }
+                        x++;
+                    }
+                    z++;
+                }
+                y++;
+            }
+        }
+        water.sections[section] = bits;
+        water.counts[section] = count;
+        water.scanned[section] = System.nanoTime();
+    }
+
+    /**
+     * Read a changed block again on the next tick.
+     */
+    void touch(Block block) {
+        if (pending.isEmpty()) {
+            plugin.getServer().getScheduler().runTask(plugin, this::refreshPending);
+        }
+        pending.add(block);
+    }
+
+    void refreshPending() {
+        for (var block : pending) {
+            @Nullable var chunks = worlds.get(block.getWorld().getUID());
+            if (chunks == null) continue;
+            @Nullable var water = chunks.get(chunkKey(block.getX() >> 4, block.getZ() >> 4));
+            if (water == null) continue;
+            water.set(block.getX(), block.getY(), block.getZ(), isWater(block));
+        }
+        pending.clear();
+    }
+
+    void unloadChunk(Chunk chunk) {
+        @Nullable var chunks = worlds.get(chunk.getWorld().getUID());
+        if (chunks == null) return;
+        chunks.remove(chunkKey(chunk.getX(), chunk.getZ()));
+    }
+
+    void unloadWorld(World world) {
+        worlds.remove(world.getUID());
+    }
+
+    static boolean isWater(Block block) {
+        var type = block.getType();
+        if (type == Material.WATER) return true;
+        return waterloggable(type) && isWaterlogged(block.getBlockData());
+    }
+
+    static boolean isWaterlogged(BlockData data) {
+        return data instanceof Waterlogged waterlogged && waterlogged.isWaterlogged();
+    }
+
+    /**
+     * Determine if blocks of a material can be waterlogged, without creating block data for every block.
+     */
+    static boolean waterloggable(Material material) {
+        var cached = waterloggable[material.ordinal()];
+        if (cached == 0) {
+            var result = material.isBlock() && !material.isLegacy() && material.createBlockData() instanceof Waterlogged;
+            cached = result ? (byte) 2 : (byte) 1;
+            waterloggable[material.ordinal()] = cached;
+        }
+        return cached == 2;
+    }
+
+    static int bitIndex(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    static long chunkKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+}
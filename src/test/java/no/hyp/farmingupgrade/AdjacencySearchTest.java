@@ -0,0 +1,164 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares {@link AdjacencySearch} with the search it replaced, {@link LegacyAdjacency}, on random terraced farms, and
+ * checks the height and passability rules on small hand-made farms.
+ */
+class AdjacencySearchTest {
+
+    static final Set<Material> PASSABLE = EnumSet.of(Material.AIR, Material.WATER, Material.WHEAT, Material.CARROTS, Material.BEETROOTS);
+
+    static final Material[] CROPS = { Material.WHEAT, Material.CARROTS, Material.BEETROOTS };
+
+    /**
+     * A world of blocks in a map. Missing blocks are air, and only air, water and crops are passable.
+     */
+    static final class GridReader implements AdjacencySearch.BlockReader {
+
+        final Map<Long, Material> blocks = new HashMap<>();
+
+        void set(int x, int y, int z, Material type) {
+            blocks.put(FarmingUpgradePlugin.packPosition(x, y, z), type);
+        }
+
+        @Override
+        public Material type(int x, int y, int z) {
+            return blocks.getOrDefault(FarmingUpgradePlugin.packPosition(x, y, z), Material.AIR);
+        }
+
+        @Override
+        public boolean isPassable(int x, int y, int z, Material type) {
+            return PASSABLE.contains(type);
+        }
+
+    }
+
+    /**
+     * Create a farm around the origin, with a crop at (0, 65, 0). The ground rises and falls by up to two blocks between
+     * columns, and some columns have no crop, a block over the crop, water, or a crop floating in the air.
+     */
+    static GridReader randomFarm(Random random, int radius) {
+        var reader = new GridReader();
+        var size = radius + 2;
+        var heights = new int[2 * size + 1][2 * size + 1];
+        var i = -size;
+        while (i <= size) {
+            var k = -size;
+            while (k <= size) {
+                var ground = 64;
+                if (i != 0 || k != 0) {
+                    var previous = i > -size ? heights[i - 1 + size][k + size] : 64;
+                    ground = previous + random.nextInt(5) - 2;
+                    ground = Math.max(60, Math.min(68, ground));
+                }
+                heights[i + size][k + size] = ground;
+                reader.set(i, ground, k, random.nextInt(10) == 0 ? Material.WATER : Material.FARMLAND);
+                reader.set(i, ground - 1, k, Material.DIRT);
+                var roll = random.nextInt(10);
+                if (roll < 6 || (i == 0 && k == 0)) {
+                    reader.set(i, ground + 1, k, CROPS[random.nextInt(CROPS.length)]);
+                } else if (roll == 6) {
+                    reader.set(i, ground + 1, k, Material.DIRT);
+                } else if (roll == 7) {
+                    reader.set(i, ground + 2 + random.nextInt(2), k, CROPS[random.nextInt(CROPS.length)]);
+                }
+                if (random.nextInt(8) == 0) reader.set(i, ground + 2, k, Material.DIRT);
+                k++;
+            }
+            i++;
+        }
+        // The centre column is fixed, so that every search starts from a crop.
+        reader.set(0, 64, 0, Material.FARMLAND);
+        reader.set(0, 65, 0, Material.WHEAT);
+        return reader;
+    }
+
+    static Set<Long> search(AdjacencySearch.BlockReader reader, Set<Material> materials, int x, int y, int z, int radius, boolean addCentre) {
+        var positions = AdjacencySearch.search(reader, materials, x, y, z, radius, addCentre);
+        var found = new HashSet<Long>();
+        var i = 0;
+        while (i < positions.size()) {
+            found.add(positions.get(i));
+            i++;
+        }
+        assertEquals(positions.size(), found.size(), "The search found a position twice.");
+        return found;
+    }
+
+    @Test
+    void matchesLegacySearchOnRandomFarms() {
+        var random = new Random(8);
+        var materialSets = List.of(EnumSet.of(Material.WHEAT), EnumSet.of(Material.WHEAT, Material.CARROTS), EnumSet.copyOf(Arrays.asList(CROPS)));
+        var radius = 1;
+        while (radius <= 5) {
+            var farm = 0;
+            while (farm < 500) {
+                var reader = randomFarm(random, radius);
+                for (var materials : materialSets) {
+                    for (var addCentre : new boolean[] { true, false }) {
+                        var expected = new HashSet<>(LegacyAdjacency.findAdjacentMaterials(reader, materials, 0, 65, 0, radius, addCentre));
+                        var actual = search(reader, materials, 0, 65, 0, radius, addCentre);
+                        var description = String.format("Farm %d with radius %d, materials %s, centre %b", farm, radius, materials, addCentre);
+                        assertEquals(expected, actual, description);
+                    }
+                }
+                farm++;
+            }
+            radius++;
+        }
+    }
+
+    @Test
+    void followsStepsOfOneBlock() {
+        var reader = new GridReader();
+        reader.set(0, 65, 0, Material.WHEAT);
+        reader.set(1, 66, 0, Material.WHEAT); // One up.
+        reader.set(2, 65, 0, Material.WHEAT); // One down, beside is air.
+        reader.set(-1, 67, 0, Material.WHEAT); // Two up.
+        reader.set(0, 63, 1, Material.WHEAT); // Two down.
+        var materials = EnumSet.of(Material.WHEAT);
+        var expected = Set.of(
+                FarmingUpgradePlugin.packPosition(0, 65, 0),
+                FarmingUpgradePlugin.packPosition(1, 66, 0),
+                FarmingUpgradePlugin.packPosition(2, 65, 0));
+        assertEquals(expected, search(reader, materials, 0, 65, 0, 2, true));
+        assertEquals(expected, new HashSet<>(LegacyAdjacency.findAdjacentMaterials(reader, materials, 0, 65, 0, 2, true)));
+    }
+
+    @Test
+    void onlyStepsDownPastPassableBlocks() {
+        var reader = new GridReader();
+        reader.set(0, 65, 0, Material.WHEAT);
+        reader.set(1, 64, 0, Material.WHEAT);
+        reader.set(1, 65, 0, Material.WATER); // Passable, so the crop below is found.
+        reader.set(-1, 64, 0, Material.WHEAT);
+        reader.set(-1, 65, 0, Material.DIRT); // Not passable, so the crop below is not found.
+        reader.set(0, 64, 1, Material.WHEAT);
+        reader.set(0, 65, 1, Material.CARROTS); // A passable crop that is not searched for.
+        var materials = EnumSet.of(Material.WHEAT);
+        var expected = Set.of(
+                FarmingUpgradePlugin.packPosition(0, 65, 0),
+                FarmingUpgradePlugin.packPosition(1, 64, 0),
+                FarmingUpgradePlugin.packPosition(0, 64, 1));
+        assertEquals(expected, search(reader, materials, 0, 65, 0, 1, true));
+        assertEquals(expected, new HashSet<>(LegacyAdjacency.findAdjacentMaterials(reader, materials, 0, 65, 0, 1, true)));
+    }
+
+    @Test
+    void prefersTheBlockAbove() {
+        var reader = new GridReader();
+        reader.set(0, 65, 0, Material.WHEAT);
+        reader.set(1, 66, 0, Material.WHEAT);
+        reader.set(1, 65, 0, Material.WHEAT);
+        var found = search(reader, EnumSet.of(Material.WHEAT), 0, 65, 0, 1, false);
+        assertEquals(Set.of(FarmingUpgradePlugin.packPosition(1, 66, 0)), found);
+    }
+
+}
@@ -0,0 +1,154 @@
+package no.hyp.farmingupgrade;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the stages sampled by {@link FarmingUpgradePlugin#sampleGrowth(Random, double[])} follow the binomial
+ * distribution of running the growth trials one by one.
+ */
+class GrowthDistributionTest {
+
+    static final int SAMPLES = 200_000;
+
+    /**
+     * The standard normal quantile of 0.999. A correct sampler fails a test with probability 0.001, and the seeds are
+     * fixed, so the result does not change between runs.
+     */
+    static final double Z = 3.090;
+
+    /**
+     * Trials and growth chances, including the defaults of the configuration.
+     */
+    static final double[][] PARAMETERS = {
+            { 8, 0.50 },
+            { 8, 0.25 },
+            { 4, 0.25 },
+            { 1, 0.50 },
+            { 16, 0.10 },
+            { 8, 0.90 },
+            { 30, 0.37 },
+    };
+
+    @Test
+    void distributionIsCumulative() {
+        for (var parameters : PARAMETERS) {
+            var distribution = FarmingUpgradePlugin.growthDistribution((int) parameters[0], parameters[1]);
+            assertEquals((int) parameters[0] + 1, distribution.length);
+            assertEquals(1.0, distribution[distribution.length - 1]);
+            var k = 1;
+            while (k < distribution.length) {
+                assertTrue(distribution[k - 1] <= distribution[k], "The distribution must not decrease.");
+                k++;
+            }
+        }
+    }
+
+    @Test
+    void certainOutcomes() {
+        var random = new Random(1);
+        var never = FarmingUpgradePlugin.growthDistribution(8, 0.0);
+        var always = FarmingUpgradePlugin.growthDistribution(8, 1.0);
+        var none = FarmingUpgradePlugin.growthDistribution(0, 0.5);
+        var i = 0;
+        while (i < 1000) {
+            assertEquals(0, FarmingUpgradePlugin.sampleGrowth(random, never));
+            assertEquals(8, FarmingUpgradePlugin.sampleGrowth(random, always));
+            assertEquals(0, FarmingUpgradePlugin.sampleGrowth(random, none));
+            i++;
+        }
+    }
+
+    @Test
+    void samplesFollowBinomialDistribution() {
+        var seed = 0;
+        for (var parameters : PARAMETERS) {
+            var trials = (int) parameters[0];
+            var probability = parameters[1];
+            var distribution = FarmingUpgradePlugin.growthDistribution(trials, probability);
+            var random = new Random(seed++);
+            var observed = new long[trials + 1];
+            var i = 0;
+            while (i < SAMPLES) {
+                observed[FarmingUpgradePlugin.sampleGrowth(random, distribution)]++;
+                i++;
+            }
+            var statistic = chiSquared(observed, binomial(trials, probability));
+            var message = String.format("%d trials with chance %.2f: chi-squared %.2f with %d degrees of freedom",
+                    trials, probability, statistic[0], (int) statistic[1]);
+            assertTrue(statistic[0] <= criticalValue((int) statistic[1]), message);
+        }
+    }
+
+    /**
+     * The exact probability of each number of successes, computed independently of the plugin.
+     */
+    static double[] binomial(int trials, double probability) {
+        var masses = new double[trials + 1];
+        var k = 0;
+        while (k <= trials) {
+            var coefficient = 1.0;
+            var j = 1;
+            while (j <= k) {
+                coefficient = coefficient * (trials - k + j) / j;
+                j++;
+            }
+            masses[k] = coefficient * Math.pow(probability, k) * Math.pow(1.0 - probability, trials - k);
+            k++;
+        }
+        return masses;
+    }
+
+    /**
+     * Pearson's chi-squared statistic. Outcomes are pooled from the tails inwards until each pooled bin expects at
+     * least 5 samples.
+     *
+     * @return The statistic and the degrees of freedom.
+     */
+    static double[] chiSquared(long[] observed, double[] masses) {
+        var statistic = 0.0;
+        var bins = 0;
+        var pooledObserved = 0.0;
+        var pooledExpected = 0.0;
+        var k = 0;
+        while (k < observed.length) {
+            pooledObserved += observed[k];
+            pooledExpected += masses[k] * SAMPLES;
+            var remaining = 0.0;
+            var j = k + 1;
+            while (j < masses.length) {
+                remaining += masses[j] * SAMPLES;
+                j++;
+            }
+            // Close the bin when it is large enough, unless the rest would be too small for a bin of its own.
+            if (pooledExpected >= 5.0 && (remaining >= 5.0 || k == observed.length - 1)) {
+                var difference = pooledObserved - pooledExpected;
+                statistic += difference * difference / pooledExpected;
+                bins++;
+                pooledObserved = 0.0;
+                pooledExpected = 0.0;
+            }
+            k++;
+        }
+        if (pooledExpected > 0.0) {
+            // A remainder that never reached 5 expected samples. It only happens if all outcomes are in it.
+            var difference = pooledObserved - pooledExpected;
+            statistic += difference * difference / pooledExpected;
+            bins++;
+        }
+        return new double[] { statistic, Math.max(1, bins - 1) };
+    }
+
+    /**
+     * The 0.999 quantile of the chi-squared distribution, by the Wilson-Hilferty approximation.
+     */
+    static double criticalValue(int degreesOfFreedom) {
+        var variance = 2.0 / (9.0 * degreesOfFreedom);
+        var root = 1.0 - variance + Z * Math.sqrt(variance);
+        return degreesOfFreedom * root * root * root;
+    }
+
+}
@@ -0,0 +1,140 @@
+package no.hyp.farmingupgrade;
+
+import org.bukkit.Material;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The adjacency search that {@link AdjacencySearch} replaced, kept as a reference for the differential test. It is
+ * the former FarmingUpgradePlugin.findAdjacentMaterials and locateAdjacentInColumn, with Block objects replaced by
+ * coordinates read through a {@link AdjacencySearch.BlockReader}. The found blocks are stored as their height in a
+ * grid of nullable heights, where the old search stored the blocks.
+ */
+final class LegacyAdjacency {
+
+    /**
+     * Find all horizontally adjacent blocks.
+     *
+     * @return The packed positions of the found blocks.
+     */
+    static List<Long> findAdjacentMaterials(AdjacencySearch.BlockReader reader, Collection<Material> materials, int x, int y, int z, int radius, boolean addCentre) {
+        var diameter = radius + radius + 1;
+        var centreIndex = gridIndex(diameter, radius, 0, 0);
+        var adjacent = new Integer[diameter * diameter]; // Nullable heights representing a square.
+        if (!materials.contains(reader.type(x, y, z))) return new ArrayList<>();
+        if (addCentre) adjacent[centreIndex] = y;
+        // +x axis
+        {
+            Integer previous = y;
+            var i = 1;
+            while (i <= radius) {
+                @Nullable var foundAdjacent = locateAdjacentInColumn(reader, materials, x, z, i, 0, previous);
+                if (foundAdjacent == null) break;
+                adjacent[gridIndex(diameter, radius, i, 0)] = foundAdjacent;
+                previous = foundAdjacent;
+                i++;
+            }
+        }
+        // -x axis
+        {
+            Integer previous = y;
+            var i = -1;
+            while (i >= -radius) {
+                @Nullable var foundAdjacent = locateAdjacentInColumn(reader, materials, x, z, i, 0, previous);
+                if (foundAdjacent == null) break;
+                adjacent[gridIndex(diameter, radius, i, 0)] = foundAdjacent;
+                previous = foundAdjacent;
+                i--;
+            }
+        }
+        // +z axis
+        {
+            Integer previous = y;
+            var k = 1;
+            while (k <= radius) {
+                @Nullable var foundAdjacent = locateAdjacentInColumn(reader, materials, x, z, 0, k, previous);
+                if (foundAdjacent == null) break;
+                adjacent[gridIndex(diameter, radius, 0, k)] = foundAdjacent;
+                previous = foundAdjacent;
+                k++;
+            }
+        }
+        // -z axis
+        {
+            Integer previous = y;
+            var k = -1;
+            while (k >= -radius) {
+                @Nullable var foundAdjacent = locateAdjacentInColumn(reader, materials, x, z, 0, k, previous);
+                if (foundAdjacent == null) break;
+                adjacent[gridIndex(diameter, radius, 0, k)] = foundAdjacent;
+                previous = foundAdjacent;
+                k--;
+            }
+        }
+        // The corners, in the order (+x, +z), (-x, +z), (-x, -z), (+x, -z).
+        int[][] quadrants = { { 1, 1 }, { -1, 1 }, { -1, -1 }, { 1, -1 } };
+        for (var quadrant : quadrants) {
+            var a = 1;
+            while (a <= radius) {
+                var b = 1;
+                while (b <= radius) {
+                    var i = quadrant[0] * a;
+                    var k = quadrant[1] * b;
+                    @Nullable var p1 = adjacent[gridIndex(diameter, radius, i - quadrant[0], k)];
+                    @Nullable var p2 = adjacent[gridIndex(diameter, radius, i, k - quadrant[1])];
+                    if (p1 == null && p2 == null) {
+                        b++;
+                        continue;
+                    }
+                    @Nullable var foundAdjacent = locateAdjacentInColumn(reader, materials, x, z, i, k, p1, p2);
+                    if (foundAdjacent != null) adjacent[gridIndex(diameter, radius, i, k)] = foundAdjacent;
+                    b++;
+                }
+                a++;
+            }
+        }
+        var found = new ArrayList<Long>();
+        var i = -radius;
+        while (i <= radius) {
+            var k = -radius;
+            while (k <= radius) {
+                @Nullable var height = adjacent[gridIndex(diameter, radius, i, k)];
+                if (height != null) found.add(FarmingUpgradePlugin.packPosition(x + i, height, z + k));
+                k++;
+            }
+            i++;
+        }
+        return found;
+    }
+
+    /**
+     * Convert relative coordinates to grid index.
+     */
+    static int gridIndex(int diameter, int radius, int i, int k) {
+        return ((i + radius) * diameter) + (k + radius);
+    }
+
+    /**
+     * Locate a block with a material adjacent to a centre block, in a specific column.
+     *
+     * @param adjacents Nullable heights of adjacent blocks.
+     * @return The height of the adjacent block, or null.
+     */
+    static @Nullable Integer locateAdjacentInColumn(AdjacencySearch.BlockReader reader, Collection<Material> materials, int x, int z, int i, int k, Integer... adjacents) {
+        for (@Nullable var adjacent : adjacents) {
+            if (adjacent == null) continue;
+            var aboveType = reader.type(x + i, adjacent + 1, z + k);
+            if (materials.contains(aboveType)) return adjacent + 1;
+            var besideType = reader.type(x + i, adjacent, z + k);
+            if (materials.contains(besideType)) return adjacent;
+            if (!reader.isPassable(x + i, adjacent, z + k, besideType)) continue;
+            var belowType = reader.type(x + i, adjacent - 1, z + k);
+            if (materials.contains(belowType)) return adjacent - 1;
+        }
+        return null;
+    }
+
+}